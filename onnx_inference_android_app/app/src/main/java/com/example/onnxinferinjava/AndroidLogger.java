@@ -0,0 +1,24 @@
+package com.example.onnxinferinjava;
+
+import android.util.Log;
+
+/**
+ * {@link InferenceLogger} that writes to logcat.
+ */
+public final class AndroidLogger implements InferenceLogger {
+
+    @Override
+    public void d(String tag, String msg) {
+        Log.d(tag, msg);
+    }
+
+    @Override
+    public void w(String tag, String msg) {
+        Log.w(tag, msg);
+    }
+
+    @Override
+    public void e(String tag, String msg, Throwable tr) {
+        Log.e(tag, msg, tr);
+    }
+}
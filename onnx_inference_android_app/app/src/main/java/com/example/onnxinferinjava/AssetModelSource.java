@@ -0,0 +1,81 @@
+package com.example.onnxinferinjava;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Loads a model from the app's assets.
+ * <p>
+ * Assets stored uncompressed in the APK (see {@code noCompress} in the app's build file) are
+ * memory-mapped straight out of the APK. Compressed assets cannot be mapped and are read into
+ * a temporary array that is dropped as soon as the session has been created.
+ */
+public final class AssetModelSource implements ModelSource {
+
+    private final Context mContext;
+    private final String mAssetPath;
+
+    public AssetModelSource(Context context, String assetPath) {
+        mContext = context.getApplicationContext();
+        mAssetPath = assetPath;
+    }
+
+    @Override
+    public String getKey() {
+        return "asset:" + mAssetPath;
+    }
+
+    @Override
+    public OrtSession createSession(OrtEnvironment environment, SessionOptions options) throws OrtException, IOException {
+        MappedByteBuffer modelBuffer = map();
+        if (modelBuffer != null) {
+            return environment.createSession(modelBuffer, options);
+        }
+
+        try (InputStream modelInputStream = mContext.getAssets().open(mAssetPath)) {
+            return environment.createSession(modelInputStream.readAllBytes(), options);
+        }
+    }
+
+    @Override
+    public ByteBuffer readModel() throws IOException {
+        MappedByteBuffer modelBuffer = map();
+        if (modelBuffer != null) {
+            return modelBuffer;
+        }
+
+        try (InputStream modelInputStream = mContext.getAssets().open(mAssetPath)) {
+            return ByteBuffer.wrap(modelInputStream.readAllBytes());
+        }
+    }
+
+    /** Maps the asset out of the APK, or returns null if it is stored compressed. */
+    private MappedByteBuffer map() throws IOException {
+        try (AssetFileDescriptor fd = mContext.getAssets().openFd(mAssetPath);
+             FileInputStream stream = fd.createInputStream();
+             FileChannel channel = stream.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+        } catch (FileNotFoundException e) {
+            InferenceLog.d(OnnxModel.TAG, "asset " + mAssetPath + " is compressed, reading it into memory");
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
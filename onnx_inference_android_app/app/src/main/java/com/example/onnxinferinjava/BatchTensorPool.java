@@ -0,0 +1,265 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.TensorInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of pre-allocated input and output tensors for one session, keyed by batch size.
+ * <p>
+ * Every pooled {@link Batch} owns a direct input buffer and the {@link OnnxTensor} created over
+ * it, plus pinned output tensors over direct buffers that ORT writes into in place. Reusing them
+ * means the steady-state inference path neither copies inputs from the Java heap nor allocates
+ * any tensors. Checkout and return are lock-free and allocation-free.
+ * <p>
+ * An output is only pinned when its shape is fixed apart from the batch dimension: dimension 0,
+ * or the dimension named after the input's batch symbol. Outputs with any other dynamic
+ * dimension are left for ORT to allocate, since their size is not known until the run.
+ */
+final class BatchTensorPool {
+
+    /** Batches larger than this are not pooled; their tensors are created per call. */
+    static final int MAX_POOLED_BATCH_SIZE = 256;
+
+    private static final int SLOTS_PER_BATCH_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final OrtEnvironment mEnvironment;
+    private final String mInputName;
+    private final int mNumFeatures;
+    private final Map<String, NodeInfo> mOutputInfo;
+    /** Shapes of the pinnable outputs, with -1 marking the batch dimension. */
+    private final Map<String, long[]> mPinnableShapes = new HashMap<>();
+    private final AtomicReferenceArray<AtomicReferenceArray<Batch>> mSlots =
+            new AtomicReferenceArray<>(MAX_POOLED_BATCH_SIZE + 1);
+    private volatile boolean mClosed;
+
+    /**
+     * @param batchSymbol The name of the input's first dimension, or null or empty if it has
+     *                    none.
+     */
+    BatchTensorPool(OrtEnvironment environment, String inputName, String batchSymbol, int numFeatures,
+                    Map<String, NodeInfo> outputInfo) {
+        mEnvironment = environment;
+        mInputName = inputName;
+        mNumFeatures = numFeatures;
+        mOutputInfo = outputInfo;
+        for (Map.Entry<String, NodeInfo> output : outputInfo.entrySet()) {
+            if (getOutputType(output.getKey()) != null) {
+                long[] shape = pinnableShape((TensorInfo) output.getValue().getInfo(), batchSymbol);
+                if (shape != null) {
+                    mPinnableShapes.put(output.getKey(), shape);
+                }
+            }
+        }
+    }
+
+    int getNumFeatures() {
+        return mNumFeatures;
+    }
+
+    /**
+     * Returns the element type of the given output if it is an int64 or float tensor, or null
+     * otherwise.
+     */
+    OnnxJavaType getOutputType(String outputName) {
+        NodeInfo nodeInfo = mOutputInfo.get(outputName);
+        if (nodeInfo == null || !(nodeInfo.getInfo() instanceof TensorInfo)) {
+            return null;
+        }
+        OnnxJavaType type = ((TensorInfo) nodeInfo.getInfo()).type;
+        return type == OnnxJavaType.INT64 || type == OnnxJavaType.FLOAT ? type : null;
+    }
+
+    /**
+     * Returns the output shape with only the batch dimension left dynamic, or null if any other
+     * dimension is dynamic. Unnamed dynamic dimensions count as the batch only at index 0.
+     */
+    private static long[] pinnableShape(TensorInfo tensorInfo, String batchSymbol) {
+        long[] shape = tensorInfo.getShape().clone();
+        String[] names = tensorInfo.getDimensionNames();
+        boolean named = batchSymbol != null && !batchSymbol.isEmpty();
+        for (int i = 0; i < shape.length; i++) {
+            if (shape[i] >= 0) {
+                continue;
+            }
+            String name = names != null && i < names.length ? names[i] : null;
+            boolean batch = named && name != null && !name.isEmpty()
+                    ? batchSymbol.equals(name)
+                    : i == 0;
+            if (!batch) {
+                return null;
+            }
+            shape[i] = -1;
+        }
+        return shape;
+    }
+
+    /**
+     * Checks out a batch of the given size, creating one if none is free. The caller must
+     * hand it back with {@link #release(Batch)}.
+     */
+    Batch acquire(int numRows) throws OrtException {
+        if (numRows <= MAX_POOLED_BATCH_SIZE) {
+            AtomicReferenceArray<Batch> slots = slotsFor(numRows);
+            for (int i = 0; i < slots.length(); i++) {
+                Batch batch = slots.getAndSet(i, null);
+                if (batch != null) {
+                    return batch;
+                }
+            }
+        }
+        return new Batch(numRows);
+    }
+
+    void release(Batch batch) {
+        if (!mClosed && batch.mNumRows <= MAX_POOLED_BATCH_SIZE) {
+            AtomicReferenceArray<Batch> slots = slotsFor(batch.mNumRows);
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.compareAndSet(i, null, batch)) {
+                    return;
+                }
+            }
+        }
+        batch.close();
+    }
+
+    /** Closes every pooled tensor. Batches checked out at this point are closed on release. */
+    void close() {
+        mClosed = true;
+        for (int size = 0; size < mSlots.length(); size++) {
+            AtomicReferenceArray<Batch> slots = mSlots.getAndSet(size, null);
+            if (slots == null) {
+                continue;
+            }
+            for (int i = 0; i < slots.length(); i++) {
+                Batch batch = slots.getAndSet(i, null);
+                if (batch != null) {
+                    batch.close();
+                }
+            }
+        }
+    }
+
+    private AtomicReferenceArray<Batch> slotsFor(int numRows) {
+        AtomicReferenceArray<Batch> slots = mSlots.get(numRows);
+        if (slots == null) {
+            mSlots.compareAndSet(numRows, null, new AtomicReferenceArray<>(SLOTS_PER_BATCH_SIZE));
+            slots = mSlots.get(numRows);
+        }
+        return slots;
+    }
+
+    private static ByteBuffer allocateDirect(long elements, int bytesPerElement) {
+        return ByteBuffer.allocateDirect((int) (elements * bytesPerElement)).order(ByteOrder.nativeOrder());
+    }
+
+    /** Input and pinned output tensors for one batch size. Used by one thread at a time. */
+    final class Batch implements AutoCloseable {
+        final int mNumRows;
+        final FloatBuffer mInput;
+        final OnnxTensor mInputTensor;
+        final Map<String, OnnxTensor> mInputs;
+        private final Map<String, PinnedOutput> mPinnedOutputs = new HashMap<>();
+
+        private Batch(int numRows) throws OrtException {
+            mNumRows = numRows;
+            mInput = allocateDirect((long) numRows * mNumFeatures, Float.BYTES).asFloatBuffer();
+            mInputTensor = NativeTensors.created(
+                    OnnxTensor.createTensor(mEnvironment, mInput, new long[]{numRows, mNumFeatures}));
+            mInputs = Collections.singletonMap(mInputName, mInputTensor);
+        }
+
+        /**
+         * Copies {@code mNumRows} rows from {@code rows} into the direct input buffer.
+         */
+        void fill(float[] rows) {
+            mInput.clear();
+            mInput.put(rows, 0, mNumRows * mNumFeatures);
+            mInput.clear();
+        }
+
+        /**
+         * Returns the pinned output tensor for the given output, creating it on first use.
+         *
+         * @return The pinned output, or null if the output is not a numeric tensor or has a
+         *         dynamic dimension other than the batch.
+         */
+        PinnedOutput getPinnedOutput(String outputName) throws OrtException {
+            PinnedOutput pinned = mPinnedOutputs.get(outputName);
+            if (pinned == null) {
+                long[] shape = mPinnableShapes.get(outputName);
+                if (shape == null) {
+                    return null;
+                }
+                pinned = new PinnedOutput(outputName, getOutputType(outputName), shape, mNumRows);
+                mPinnedOutputs.put(outputName, pinned);
+            }
+            return pinned;
+        }
+
+        @Override
+        public void close() {
+            NativeTensors.close(mInputTensor);
+            for (PinnedOutput pinned : mPinnedOutputs.values()) {
+                NativeTensors.close(pinned.mTensor);
+            }
+            mPinnedOutputs.clear();
+        }
+    }
+
+    /** A pre-allocated output tensor that ORT writes into during {@code run}. */
+    final class PinnedOutput {
+        final OnnxJavaType mType;
+        final int mNumElements;
+        final OnnxTensor mTensor;
+        final LongBuffer mLongs;
+        final FloatBuffer mFloats;
+        final Map<String, OnnxTensor> mPinned;
+
+        private PinnedOutput(String outputName, OnnxJavaType type, long[] pinnableShape, int numRows)
+                throws OrtException {
+            long[] shape = pinnableShape.clone();
+            long numElements = 1;
+            for (int i = 0; i < shape.length; i++) {
+                if (shape[i] < 0) {
+                    shape[i] = numRows;
+                }
+                numElements *= shape[i];
+            }
+            mType = type;
+            mNumElements = (int) numElements;
+            if (mType == OnnxJavaType.INT64) {
+                mLongs = allocateDirect(numElements, Long.BYTES).asLongBuffer();
+                mFloats = null;
+                mTensor = NativeTensors.created(OnnxTensor.createTensor(mEnvironment, mLongs, shape));
+            } else {
+                mLongs = null;
+                mFloats = allocateDirect(numElements, Float.BYTES).asFloatBuffer();
+                mTensor = NativeTensors.created(OnnxTensor.createTensor(mEnvironment, mFloats, shape));
+            }
+            mPinned = Collections.singletonMap(outputName, mTensor);
+        }
+
+        void copyTo(long[] out) {
+            mLongs.clear();
+            mLongs.get(out, 0, mNumElements);
+        }
+
+        void copyTo(float[] out) {
+            mFloats.clear();
+            mFloats.get(out, 0, mNumElements);
+        }
+    }
+}
@@ -0,0 +1,649 @@
+package com.example.onnxinferinjava;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline scoring of feature files too large to hold in memory.
+ * <p>
+ * The input is memory-mapped a window at a time and cut into batches of {@code batchSize}
+ * rows, which a fixed pool of worker threads scores through the shared sessions of one
+ * {@link XgbcOnnxModel}. Results are written to the output file in input order. At most
+ * {@code maxPendingBatches} batches are read ahead of the writer, which bounds memory no
+ * matter how large the input is. With more than one worker, give the model a
+ * {@link SessionConfig} with a session pool so the workers do not contend for one session.
+ * <p>
+ * Every {@code checkpointInterval} rows the output is flushed to disk and the input and
+ * output offsets are saved next to it in {@link #getCheckpointPath(Path)}. After a crash or a
+ * failed batch, {@link #resume} truncates the output to the last checkpoint and carries on
+ * from there. The checkpoint is deleted once the whole input has been scored.
+ * <p>
+ * Input formats:
+ * <ul>
+ *     <li>{@link Format#CSV}: one row of {@code numFeatures} comma-separated values per line,
+ *     with an optional header line.</li>
+ *     <li>{@link Format#BINARY}: rows of {@code numFeatures} little-endian float32 values,
+ *     back to back.</li>
+ * </ul>
+ * Output formats:
+ * <ul>
+ *     <li>{@link Format#CSV}: {@code label[,p0,p1,...]} per row, without a header.</li>
+ *     <li>{@link Format#BINARY}: per row a little-endian int64 label, followed by the class
+ *     probabilities as little-endian float32 values if they are written.</li>
+ * </ul>
+ */
+public final class BulkScorer {
+    public static final String TAG = "BulkScorer";
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    /** Receives progress reports on the thread that called {@link #score} or {@link #resume}. */
+    public interface ProgressListener {
+        /**
+         * @param rowsScored    Rows written so far, including those of resumed runs.
+         * @param rowsPerSecond Throughput of this run so far.
+         */
+        void onProgress(long rowsScored, double rowsPerSecond);
+    }
+
+    private final XgbcOnnxModel mModel;
+    private final int mNumFeatures;
+    private final Format mInputFormat;
+    private final Format mOutputFormat;
+    private final boolean mCsvHeader;
+    private final boolean mWriteProbabilities;
+    private final int mBatchSize;
+    private final int mNumThreads;
+    private final int mMaxPendingBatches;
+    private final long mCheckpointInterval;
+    private final ProgressListener mProgressListener;
+
+    private BulkScorer(Builder builder) {
+        mModel = builder.mModel;
+        mNumFeatures = builder.mNumFeatures;
+        mInputFormat = builder.mInputFormat;
+        mOutputFormat = builder.mOutputFormat;
+        mCsvHeader = builder.mCsvHeader;
+        mWriteProbabilities = builder.mWriteProbabilities;
+        mBatchSize = builder.mBatchSize;
+        mNumThreads = builder.mNumThreads;
+        mMaxPendingBatches = builder.mMaxPendingBatches;
+        mCheckpointInterval = builder.mCheckpointInterval;
+        mProgressListener = builder.mProgressListener;
+    }
+
+    /** Returns where the checkpoint of a run writing to {@code output} is kept. */
+    public static Path getCheckpointPath(Path output) {
+        return output.resolveSibling(output.getFileName() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Scores the whole input, replacing the output file.
+     *
+     * @throws IOException if a file cannot be read or written, or the input is malformed.
+     */
+    public Result score(Path input, Path output) throws IOException {
+        Files.deleteIfExists(getCheckpointPath(output));
+        return run(input, output, null);
+    }
+
+    /**
+     * Continues a run from its last checkpoint, or starts over if there is none.
+     *
+     * @throws IOException if a file cannot be read or written, or the input is malformed.
+     */
+    public Result resume(Path input, Path output) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(getCheckpointPath(output));
+        if (checkpoint != null) {
+            InferenceLog.d(TAG, "resuming " + input + " at row " + checkpoint.mRows);
+        }
+        return run(input, output, checkpoint);
+    }
+
+    private Result run(Path input, Path output, Checkpoint start) throws IOException {
+        Path checkpointPath = getCheckpointPath(output);
+        long startNanos = System.nanoTime();
+        long startRows = start != null ? start.mRows : 0;
+        long rows = startRows;
+        long lastCheckpointRows = rows;
+        boolean complete = false;
+
+        ExecutorService workers = Executors.newFixedThreadPool(mNumThreads, new WorkerFactory());
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = openOutput(output, start)) {
+            RowReader reader = mInputFormat == Format.CSV
+                    ? new CsvRowReader(in, mNumFeatures) : new BinaryRowReader(in, mNumFeatures);
+            if (start != null) {
+                reader.seek(start.mInputOffset);
+            } else if (mCsvHeader && mInputFormat == Format.CSV) {
+                reader.skipLine();
+            }
+
+            ArrayDeque<Batch> pending = new ArrayDeque<>();
+            boolean failed = false;
+            while (!failed) {
+                if (pending.size() < mMaxPendingBatches) {
+                    Batch batch = reader.read(mBatchSize);
+                    if (batch != null) {
+                        batch.mResult = workers.submit(() -> encode(batch));
+                        pending.add(batch);
+                        continue;
+                    }
+                }
+                Batch batch = pending.poll();
+                if (batch == null) {
+                    complete = true;
+                    break;
+                }
+                ByteBuffer encoded = await(batch);
+                if (encoded == null) {
+                    InferenceLog.e(TAG, "Scoring failed at row " + rows + " of " + input);
+                    failed = true;
+                } else {
+                    while (encoded.hasRemaining()) {
+                        out.write(encoded);
+                    }
+                    rows += batch.mNumRows;
+                }
+                if (failed || rows - lastCheckpointRows >= mCheckpointInterval) {
+                    out.force(false);
+                    new Checkpoint(rows, failed ? batch.mStartOffset : batch.mEndOffset, out.position())
+                            .write(checkpointPath);
+                    lastCheckpointRows = rows;
+                    reportProgress(rows, rows - startRows, startNanos);
+                }
+            }
+            if (complete) {
+                out.force(false);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (complete) {
+            Files.deleteIfExists(checkpointPath);
+            reportProgress(rows, rows - startRows, startNanos);
+        }
+        Result result = new Result(rows, rows - startRows, System.nanoTime() - startNanos, complete);
+        InferenceLog.d(TAG, input + ": " + result);
+        return result;
+    }
+
+    private static FileChannel openOutput(Path output, Checkpoint start) throws IOException {
+        if (start == null) {
+            return FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (out.size() < start.mOutputOffset) {
+            out.close();
+            throw new IOException(output + " is shorter than its checkpoint");
+        }
+        out.truncate(start.mOutputOffset);
+        out.position(start.mOutputOffset);
+        return out;
+    }
+
+    private void reportProgress(long rows, long rowsThisRun, long startNanos) {
+        if (mProgressListener != null) {
+            long elapsed = System.nanoTime() - startNanos;
+            mProgressListener.onProgress(rows, elapsed > 0 ? rowsThisRun * 1e9 / elapsed : 0);
+        }
+    }
+
+    private static ByteBuffer await(Batch batch) throws IOException {
+        try {
+            return batch.mResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            InferenceLog.e(TAG, "batch error: " + e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+
+    /** Scores a batch on a worker thread and encodes it for the output file. */
+    private ByteBuffer encode(Batch batch) {
+        int numRows = batch.mNumRows;
+        long[] labels = new long[numRows];
+        float[][] probabilities = null;
+        if (mWriteProbabilities) {
+            probabilities = mModel.runInferenceGetLabelsAndProbabilities(batch.mRows, numRows, labels);
+            if (probabilities == null) {
+                return null;
+            }
+        } else if (!mModel.runInferenceGetLabels(batch.mRows, numRows, labels)) {
+            return null;
+        }
+
+        if (mOutputFormat == Format.BINARY) {
+            int numClasses = probabilities != null ? probabilities[0].length : 0;
+            ByteBuffer buffer = ByteBuffer.allocate(numRows * (Long.BYTES + numClasses * Float.BYTES))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int row = 0; row < numRows; row++) {
+                buffer.putLong(labels[row]);
+                for (int c = 0; c < numClasses; c++) {
+                    buffer.putFloat(probabilities[row][c]);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        StringBuilder text = new StringBuilder(numRows * (probabilities != null ? 48 : 4));
+        for (int row = 0; row < numRows; row++) {
+            text.append(labels[row]);
+            if (probabilities != null) {
+                for (float probability : probabilities[row]) {
+                    text.append(',').append(probability);
+                }
+            }
+            text.append('\n');
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Rows read from the input, with their place in it. */
+    private static final class Batch {
+        final float[] mRows;
+        final int mNumRows;
+        final long mStartOffset;
+        /** Input offset just past the batch's last row. */
+        final long mEndOffset;
+        Future<ByteBuffer> mResult;
+
+        Batch(float[] rows, int numRows, long startOffset, long endOffset) {
+            mRows = rows;
+            mNumRows = numRows;
+            mStartOffset = startOffset;
+            mEndOffset = endOffset;
+        }
+    }
+
+    /**
+     * Sequential reader over a memory-mapped window that slides along the file, so files of
+     * any size can be read without mapping them whole.
+     */
+    private abstract static class RowReader {
+        private static final long WINDOW_SIZE = 64L << 20;
+
+        private final FileChannel mChannel;
+        private final long mSize;
+        final int mNumFeatures;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+        long mPosition;
+
+        RowReader(FileChannel channel, int numFeatures) throws IOException {
+            mChannel = channel;
+            mSize = channel.size();
+            mNumFeatures = numFeatures;
+        }
+
+        void seek(long position) throws IOException {
+            if (position < 0 || position > mSize) {
+                throw new IOException("Offset " + position + " is outside the input");
+            }
+            mPosition = position;
+        }
+
+        long remaining() {
+            return mSize - mPosition;
+        }
+
+        /**
+         * Returns the window with at least {@code length} bytes from the current position
+         * mapped, or as many as are left in the file.
+         */
+        MappedByteBuffer window(int length) throws IOException {
+            long end = Math.min(mPosition + length, mSize);
+            if (mWindow == null || mPosition < mWindowStart || end > mWindowStart + mWindow.capacity()) {
+                mWindowStart = mPosition;
+                mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, mPosition,
+                        Math.min(Math.max(WINDOW_SIZE, length), mSize - mPosition));
+                mWindow.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return mWindow;
+        }
+
+        int windowIndex() {
+            return (int) (mPosition - mWindowStart);
+        }
+
+        void skipLine() throws IOException {
+            while (remaining() > 0) {
+                byte b = window(1).get(windowIndex());
+                mPosition++;
+                if (b == '\n') {
+                    return;
+                }
+            }
+        }
+
+        /** Returns up to {@code maxRows} rows, or null at the end of the input. */
+        abstract Batch read(int maxRows) throws IOException;
+    }
+
+    private static final class BinaryRowReader extends RowReader {
+        private final int mRowBytes;
+
+        BinaryRowReader(FileChannel channel, int numFeatures) throws IOException {
+            super(channel, numFeatures);
+            mRowBytes = numFeatures * Float.BYTES;
+            if (channel.size() % mRowBytes != 0) {
+                throw new IOException("Input size " + channel.size() + " is not a multiple of the "
+                        + mRowBytes + "-byte row size");
+            }
+        }
+
+        @Override
+        void seek(long position) throws IOException {
+            if (position % mRowBytes != 0) {
+                throw new IOException("Offset " + position + " is not at a row boundary");
+            }
+            super.seek(position);
+        }
+
+        @Override
+        Batch read(int maxRows) throws IOException {
+            int numRows = (int) Math.min(maxRows, remaining() / mRowBytes);
+            if (numRows == 0) {
+                return null;
+            }
+            long start = mPosition;
+            float[] rows = new float[numRows * mNumFeatures];
+            int value = 0;
+            for (int row = 0; row < numRows; row++) {
+                MappedByteBuffer window = window(mRowBytes);
+                int index = windowIndex();
+                for (int i = 0; i < mNumFeatures; i++) {
+                    rows[value++] = window.getFloat(index + i * Float.BYTES);
+                }
+                mPosition += mRowBytes;
+            }
+            return new Batch(rows, numRows, start, mPosition);
+        }
+    }
+
+    private static final class CsvRowReader extends RowReader {
+        private char[] mField = new char[32];
+
+        CsvRowReader(FileChannel channel, int numFeatures) throws IOException {
+            super(channel, numFeatures);
+        }
+
+        @Override
+        Batch read(int maxRows) throws IOException {
+            long start = mPosition;
+            float[] rows = new float[maxRows * mNumFeatures];
+            int numRows = 0;
+            while (numRows < maxRows && readLine(rows, numRows * mNumFeatures)) {
+                numRows++;
+            }
+            if (numRows == 0) {
+                return null;
+            }
+            if (numRows < maxRows) {
+                float[] trimmed = new float[numRows * mNumFeatures];
+                System.arraycopy(rows, 0, trimmed, 0, trimmed.length);
+                rows = trimmed;
+            }
+            return new Batch(rows, numRows, start, mPosition);
+        }
+
+        /**
+         * Parses the next non-blank line into {@code rows} at {@code offset}.
+         *
+         * @return false at the end of the input.
+         */
+        private boolean readLine(float[] rows, int offset) throws IOException {
+            while (remaining() > 0) {
+                long lineStart = mPosition;
+                int numValues = 0;
+                int length = 0;
+                boolean endOfLine = false;
+                while (!endOfLine) {
+                    // The end of the file ends the last line.
+                    byte b = '\n';
+                    if (remaining() > 0) {
+                        b = window(1).get(windowIndex());
+                        mPosition++;
+                    }
+                    endOfLine = b == '\n';
+                    if (b == ',' || endOfLine) {
+                        if (length > 0 || b == ',') {
+                            if (numValues == mNumFeatures) {
+                                throw new IOException("More than " + mNumFeatures + " values in the line at offset " + lineStart);
+                            }
+                            rows[offset + numValues++] = parse(length, lineStart);
+                        }
+                        length = 0;
+                    } else if (b != '\r' && b != ' ' && b != '\t') {
+                        if (length == mField.length) {
+                            mField = Arrays.copyOf(mField, length * 2);
+                        }
+                        mField[length++] = (char) b;
+                    }
+                }
+                if (numValues == mNumFeatures) {
+                    return true;
+                }
+                if (numValues != 0) {
+                    throw new IOException("Expected " + mNumFeatures + " values, found " + numValues
+                            + " in the line at offset " + lineStart);
+                }
+            }
+            return false;
+        }
+
+        private float parse(int length, long lineStart) throws IOException {
+            try {
+                return Float.parseFloat(new String(mField, 0, length));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad value '" + new String(mField, 0, length) + "' in the line at offset " + lineStart);
+            }
+        }
+    }
+
+    /** Progress of a run that has been durably written, as saved in the checkpoint file. */
+    private static final class Checkpoint {
+        final long mRows;
+        final long mInputOffset;
+        final long mOutputOffset;
+
+        Checkpoint(long rows, long inputOffset, long outputOffset) {
+            mRows = rows;
+            mInputOffset = inputOffset;
+            mOutputOffset = outputOffset;
+        }
+
+        /** Returns the saved checkpoint, or null if there is none. */
+        static Checkpoint read(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+            try {
+                String[] fields = lines.get(0).split(" ");
+                return new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed checkpoint " + path, e);
+            }
+        }
+
+        /** Replaces the checkpoint file atomically, so a crash never leaves a torn one. */
+        void write(Path path) throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temp, (mRows + " " + mInputOffset + " " + mOutputOffset + "\n").getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + "-worker-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /** Outcome of a {@link #score} or {@link #resume} call. */
+    public static final class Result {
+        private final long mTotalRows;
+        private final long mRowsScored;
+        private final long mElapsedNanos;
+        private final boolean mComplete;
+
+        private Result(long totalRows, long rowsScored, long elapsedNanos, boolean complete) {
+            mTotalRows = totalRows;
+            mRowsScored = rowsScored;
+            mElapsedNanos = elapsedNanos;
+            mComplete = complete;
+        }
+
+        /** Rows in the output file, including those written by resumed runs. */
+        public long getTotalRows() {
+            return mTotalRows;
+        }
+
+        /** Rows scored by this run. */
+        public long getRowsScored() {
+            return mRowsScored;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public double getRowsPerSecond() {
+            return mElapsedNanos > 0 ? mRowsScored * 1e9 / mElapsedNanos : 0;
+        }
+
+        /**
+         * Returns true if the whole input was scored, false if a batch failed; the failure is
+         * logged and the run can be continued with {@link #resume}.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        @Override
+        public String toString() {
+            return mRowsScored + " rows in " + mElapsedNanos / 1_000_000 + " ms ("
+                    + Math.round(getRowsPerSecond()) + " rows/s), " + mTotalRows + " total"
+                    + (mComplete ? "" : ", incomplete");
+        }
+    }
+
+    public static final class Builder {
+        private final XgbcOnnxModel mModel;
+        private final int mNumFeatures;
+        private Format mInputFormat = Format.CSV;
+        private Format mOutputFormat = Format.CSV;
+        private boolean mCsvHeader;
+        private boolean mWriteProbabilities = true;
+        private int mBatchSize = 1024;
+        private int mNumThreads = Runtime.getRuntime().availableProcessors();
+        private int mMaxPendingBatches = -1;
+        private long mCheckpointInterval = 1 << 20;
+        private ProgressListener mProgressListener;
+
+        /**
+         * @param model       An initialized model; its sessions are shared by all workers.
+         * @param numFeatures Values per input row.
+         */
+        public Builder(XgbcOnnxModel model, int numFeatures) {
+            mModel = model;
+            mNumFeatures = numFeatures;
+        }
+
+        public Builder setInputFormat(Format inputFormat) {
+            mInputFormat = inputFormat;
+            return this;
+        }
+
+        public Builder setOutputFormat(Format outputFormat) {
+            mOutputFormat = outputFormat;
+            return this;
+        }
+
+        /** Whether the first line of a CSV input is a header to skip; defaults to false. */
+        public Builder setCsvHeader(boolean csvHeader) {
+            mCsvHeader = csvHeader;
+            return this;
+        }
+
+        /** Whether to write class probabilities after each label; defaults to true. */
+        public Builder setWriteProbabilities(boolean writeProbabilities) {
+            mWriteProbabilities = writeProbabilities;
+            return this;
+        }
+
+        /** Rows per model call; defaults to 1024. */
+        public Builder setBatchSize(int batchSize) {
+            mBatchSize = batchSize;
+            return this;
+        }
+
+        /** Worker threads; defaults to the number of available processors. */
+        public Builder setNumThreads(int numThreads) {
+            mNumThreads = numThreads;
+            return this;
+        }
+
+        /** Batches read but not yet written; defaults to twice the number of threads. */
+        public Builder setMaxPendingBatches(int maxPendingBatches) {
+            mMaxPendingBatches = maxPendingBatches;
+            return this;
+        }
+
+        /** Rows between checkpoints and progress reports; defaults to 1048576. */
+        public Builder setCheckpointInterval(long checkpointInterval) {
+            mCheckpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public Builder setProgressListener(ProgressListener progressListener) {
+            mProgressListener = progressListener;
+            return this;
+        }
+
+        public BulkScorer build() {
+            if (mNumFeatures <= 0 || mBatchSize <= 0 || mNumThreads <= 0 || mCheckpointInterval <= 0) {
+                throw new IllegalArgumentException("numFeatures, batchSize, numThreads and checkpointInterval must be positive");
+            }
+            if (mMaxPendingBatches < 0) {
+                mMaxPendingBatches = 2 * mNumThreads;
+            } else if (mMaxPendingBatches == 0) {
+                throw new IllegalArgumentException("maxPendingBatches must be positive");
+            }
+            return new BulkScorer(this);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Loads a model from a byte array the caller already holds, e.g. one downloaded at runtime.
+ * The source keeps a reference to the array, so drop the source once the session is created
+ * if the heap copy should be reclaimed.
+ */
+public final class BytesModelSource implements ModelSource {
+
+    private final String mName;
+    private final byte[] mModelData;
+
+    /**
+     * @param name      A name that uniquely identifies these bytes, used as the cache key.
+     * @param modelData The serialized model.
+     */
+    public BytesModelSource(String name, byte[] modelData) {
+        mName = name;
+        mModelData = modelData;
+    }
+
+    @Override
+    public String getKey() {
+        return "bytes:" + mName;
+    }
+
+    @Override
+    public OrtSession createSession(OrtEnvironment environment, SessionOptions options) throws OrtException {
+        return environment.createSession(mModelData, options);
+    }
+
+    @Override
+    public ByteBuffer readModel() {
+        return ByteBuffer.wrap(mModelData).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
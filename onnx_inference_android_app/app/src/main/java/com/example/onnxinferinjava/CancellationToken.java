@@ -0,0 +1,185 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession.RunOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the caller of an inference call give up on it, explicitly with {@link #cancel()} or
+ * implicitly through a deadline.
+ * <p>
+ * Calls given an expired token are rejected before their input tensor is built. Calls already
+ * running in ORT when the token is cancelled or its deadline passes are stopped through
+ * {@link RunOptions#setTerminate}, which makes {@code OrtSession.run} return early with an
+ * error; their tensors and run options are released as on any other failure. Either way the
+ * call returns null or false and reports {@link InferenceMetrics#ERROR_CANCELLED} or
+ * {@link InferenceMetrics#ERROR_DEADLINE_EXCEEDED} to the model's metrics.
+ * <p>
+ * A token can be shared by several calls, e.g. all the calls made for one user request, and
+ * cancelling it stops all of them. Deadlines are on the {@link System#nanoTime()} clock.
+ */
+public final class CancellationToken {
+    private static final String TAG = "CancellationToken";
+
+    private static final ScheduledThreadPoolExecutor sTimer = createTimer();
+
+    private final boolean mHasDeadline;
+    private final long mDeadlineNanos;
+    private volatile boolean mCancelled;
+    /** Runs in ORT under this token. Guarded by {@code this}. */
+    private final List<Run> mRuns = new ArrayList<>(1);
+
+    private CancellationToken(boolean hasDeadline, long deadlineNanos) {
+        mHasDeadline = hasDeadline;
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Creates the deadline timer. Most runs finish well before their deadline, so cancelled
+     * timers are removed right away instead of holding their run until it would have fired.
+     */
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, TAG + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /** Returns the number of deadline timers that have neither fired nor been cancelled. */
+    static int getPendingTimerCount() {
+        return sTimer.getQueue().size();
+    }
+
+    /** Returns a token without a deadline, which only expires when cancelled. */
+    public static CancellationToken create() {
+        return new CancellationToken(false, 0);
+    }
+
+    /** Returns a token that expires {@code timeout} from now. */
+    public static CancellationToken withTimeout(long timeout, TimeUnit unit) {
+        return withDeadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /** Returns a token that expires when {@link System#nanoTime()} reaches {@code deadlineNanos}. */
+    public static CancellationToken withDeadline(long deadlineNanos) {
+        return new CancellationToken(true, deadlineNanos);
+    }
+
+    /** Expires the token and stops the calls running under it. Idempotent. */
+    public void cancel() {
+        List<Run> runs;
+        synchronized (this) {
+            mCancelled = true;
+            runs = new ArrayList<>(mRuns);
+        }
+        for (Run run : runs) {
+            run.terminate();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean hasDeadline() {
+        return mHasDeadline;
+    }
+
+    /** Returns the deadline on the {@link System#nanoTime()} clock; only meaningful with a deadline. */
+    public long getDeadlineNanos() {
+        return mDeadlineNanos;
+    }
+
+    /** Returns the time left until the deadline, {@link Long#MAX_VALUE} without one. */
+    public long getRemainingNanos() {
+        return mHasDeadline ? mDeadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /** Returns true if the token was cancelled or its deadline has passed. */
+    public boolean isExpired() {
+        return mCancelled || (mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0);
+    }
+
+    /** Returns the {@link InferenceMetrics} error type of an expired token. */
+    String getErrorType() {
+        return mCancelled ? InferenceMetrics.ERROR_CANCELLED : InferenceMetrics.ERROR_DEADLINE_EXCEEDED;
+    }
+
+    /**
+     * Creates run options tied to the token until the returned run is closed: cancelling the
+     * token or reaching its deadline in the meantime sets their terminate flag. Closing the run
+     * also closes the options.
+     */
+    Run newRun() throws OrtException {
+        Run run = new Run(this, new RunOptions());
+        synchronized (this) {
+            if (!mCancelled) {
+                mRuns.add(run);
+            }
+        }
+        if (mCancelled) {
+            run.terminate();
+        } else if (mHasDeadline) {
+            long remaining = getRemainingNanos();
+            if (remaining <= 0) {
+                run.terminate();
+            } else {
+                run.mTimer = sTimer.schedule(run::terminate, remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+        return run;
+    }
+
+    private synchronized void unregister(Run run) {
+        mRuns.remove(run);
+    }
+
+    /** The run options of one run registered with a token. */
+    static final class Run implements AutoCloseable {
+        private final CancellationToken mToken;
+        private final RunOptions mRunOptions;
+        private ScheduledFuture<?> mTimer;
+        /** Set once the run has finished and its options may be closed. Guarded by {@code this}. */
+        private boolean mClosed;
+
+        private Run(CancellationToken token, RunOptions runOptions) {
+            mToken = token;
+            mRunOptions = runOptions;
+        }
+
+        RunOptions getRunOptions() {
+            return mRunOptions;
+        }
+
+        synchronized void terminate() {
+            if (mClosed) {
+                return;
+            }
+            try {
+                mRunOptions.setTerminate(true);
+            } catch (OrtException e) {
+                InferenceLog.e(TAG, "terminate run error: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mClosed = true;
+            }
+            if (mTimer != null) {
+                mTimer.cancel(false);
+            }
+            mToken.unregister(this);
+            mRunOptions.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads a model from a file path. ORT reads the file natively, so the model never passes
+ * through the Java heap.
+ */
+public final class FileModelSource implements ModelSource {
+
+    private final String mPath;
+
+    public FileModelSource(String path) {
+        mPath = new File(path).getAbsolutePath();
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    @Override
+    public String getKey() {
+        return "file:" + mPath;
+    }
+
+    /** Returns the file's length and modification time. */
+    @Override
+    public String getVersionStamp() {
+        File file = new File(mPath);
+        return file.length() + "@" + file.lastModified();
+    }
+
+    @Override
+    public OrtSession createSession(OrtEnvironment environment, SessionOptions options) throws OrtException {
+        return environment.createSession(mPath, options);
+    }
+
+    @Override
+    public ByteBuffer readModel() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(mPath), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public File getTuningProfileFile() {
+        return new File(mPath + TuningProfile.FILE_SUFFIX);
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
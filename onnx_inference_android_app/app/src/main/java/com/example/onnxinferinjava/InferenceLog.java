@@ -0,0 +1,59 @@
+package com.example.onnxinferinjava;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Static logging front end used by the inference classes, mirroring {@code android.util.Log}.
+ * <p>
+ * Output goes to the {@link InferenceLogger} installed with {@link #setLogger}; until one is
+ * installed it goes to {@code java.util.logging}, with debug messages at {@link Level#FINE}.
+ */
+public final class InferenceLog {
+
+    private static volatile InferenceLogger sLogger = new JavaUtilLogger();
+
+    private InferenceLog() {
+    }
+
+    public static void setLogger(InferenceLogger logger) {
+        sLogger = logger;
+    }
+
+    public static InferenceLogger getLogger() {
+        return sLogger;
+    }
+
+    public static void d(String tag, String msg) {
+        sLogger.d(tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        sLogger.w(tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sLogger.e(tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        sLogger.e(tag, msg, tr);
+    }
+
+    private static final class JavaUtilLogger implements InferenceLogger {
+        @Override
+        public void d(String tag, String msg) {
+            Logger.getLogger(tag).fine(msg);
+        }
+
+        @Override
+        public void w(String tag, String msg) {
+            Logger.getLogger(tag).warning(msg);
+        }
+
+        @Override
+        public void e(String tag, String msg, Throwable tr) {
+            Logger.getLogger(tag).log(Level.SEVERE, msg, tr);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.onnxinferinjava;
+
+/**
+ * Destination for the inference classes' log output, so that they do not depend on
+ * {@code android.util.Log}. Install an implementation with {@link InferenceLog#setLogger}.
+ */
+public interface InferenceLogger {
+
+    void d(String tag, String msg);
+
+    void w(String tag, String msg);
+
+    void e(String tag, String msg, Throwable tr);
+}
@@ -0,0 +1,63 @@
+package com.example.onnxinferinjava;
+
+/**
+ * Receives timing and error events from an {@link OnnxModel}.
+ * <p>
+ * Callbacks run on the inference thread, inside the hot path, so implementations must be
+ * cheap and thread-safe. {@link MetricsRecorder} aggregates them into histograms. When a
+ * model's metrics are {@link #NOOP}, the default, the model does not even read the clock.
+ * <p>
+ * Events are keyed by the model's {@link ModelSource#getKey()}. Versions deployed through a
+ * {@link ModelHandle} add {@code "@"} and their name to it, so each gets its own figures even
+ * when it replaced the previous one at the same path.
+ */
+public interface InferenceMetrics {
+
+    /** The model was used before {@link OnnxModel#init()} or after it was closed. */
+    String ERROR_NOT_LOADED = "NOT_LOADED";
+    /** The input rows or output buffers passed by the caller do not fit the model. */
+    String ERROR_INVALID_ARGUMENT = "INVALID_ARGUMENT";
+    /** The session could not be created. */
+    String ERROR_LOAD = "LOAD";
+    /** The call's {@link CancellationToken} was cancelled before or while it ran. */
+    String ERROR_CANCELLED = "CANCELLED";
+    /** The call's {@link CancellationToken} deadline passed before or while it ran. */
+    String ERROR_DEADLINE_EXCEEDED = "DEADLINE_EXCEEDED";
+
+    InferenceMetrics NOOP = new InferenceMetrics() {
+        @Override
+        public void onSessionLoaded(String modelKey, long loadNanos) {
+        }
+
+        @Override
+        public void onInference(String modelKey, int numRows, long buildNanos, long runNanos, long decodeNanos) {
+        }
+
+        @Override
+        public void onError(String modelKey, String errorType) {
+        }
+    };
+
+    /**
+     * A session was acquired for the model. Includes the time to create it, which is close to
+     * zero when the {@link SessionRegistry} already had it cached.
+     */
+    void onSessionLoaded(String modelKey, long loadNanos);
+
+    /**
+     * An inference call succeeded.
+     *
+     * @param buildNanos  Time spent preparing the input tensor.
+     * @param runNanos    Time spent in {@code OrtSession.run}.
+     * @param decodeNanos Time spent copying the outputs out of the result.
+     */
+    void onInference(String modelKey, int numRows, long buildNanos, long runNanos, long decodeNanos);
+
+    /**
+     * An inference call or a load failed.
+     *
+     * @param errorType One of the {@code ERROR_*} constants, or the name of the
+     *                  {@link ai.onnxruntime.OrtException.OrtErrorCode} ORT reported.
+     */
+    void onError(String modelKey, String errorType);
+}
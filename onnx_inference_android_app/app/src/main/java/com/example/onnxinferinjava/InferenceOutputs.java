@@ -0,0 +1,137 @@
+package com.example.onnxinferinjava;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The decoded outputs of one inference call on {@code numRows} rows.
+ * <p>
+ * Tensor outputs are exposed as flat row-major primitive arrays through the typed getters,
+ * e.g. {@link #getLongs} for an int64 label tensor. ZipMap-style score outputs are exposed as
+ * {@code float[rows][classes]} through {@link #getFloatMatrix}. The arrays are owned by this
+ * object and returned without copying.
+ * <p>
+ * A typed getter returns null if the output does not exist, was not computed, or has a
+ * different type.
+ */
+public final class InferenceOutputs {
+    private static final String TAG = "InferenceOutputs";
+
+    private final Map<String, OutputDecoder> mDecoders;
+    private final Object[] mValues;
+    private final long[][] mShapes;
+    private final int mNumRows;
+
+    InferenceOutputs(Map<String, OutputDecoder> decoders, int numRows) {
+        mDecoders = decoders;
+        mValues = new Object[decoders.size()];
+        mShapes = new long[decoders.size()][];
+        mNumRows = numRows;
+    }
+
+    void set(OutputDecoder decoder, Object value, long[] shape) {
+        mValues[decoder.mIndex] = value;
+        mShapes[decoder.mIndex] = shape;
+    }
+
+    Collection<OutputDecoder> getDecoders() {
+        return mDecoders.values();
+    }
+
+    OutputDecoder getDecoder(String outputName) {
+        return mDecoders.get(outputName);
+    }
+
+    public int getNumRows() {
+        return mNumRows;
+    }
+
+    public boolean contains(String outputName) {
+        OutputDecoder decoder = mDecoders.get(outputName);
+        return decoder != null && mValues[decoder.mIndex] != null;
+    }
+
+    /** Returns the decoded output as an {@code Object}, whatever its type, or null. */
+    public Object get(String outputName) {
+        OutputDecoder decoder = mDecoders.get(outputName);
+        return decoder != null ? mValues[decoder.mIndex] : null;
+    }
+
+    /** Returns the actual shape of a tensor output, or null for other outputs. */
+    public long[] getShape(String outputName) {
+        OutputDecoder decoder = mDecoders.get(outputName);
+        return decoder != null ? mShapes[decoder.mIndex] : null;
+    }
+
+    public float[] getFloats(String outputName) {
+        return typed(outputName, float[].class);
+    }
+
+    public long[] getLongs(String outputName) {
+        return typed(outputName, long[].class);
+    }
+
+    public int[] getInts(String outputName) {
+        return typed(outputName, int[].class);
+    }
+
+    public double[] getDoubles(String outputName) {
+        return typed(outputName, double[].class);
+    }
+
+    /**
+     * Returns a float output as a {@code [rows][columns]} matrix: ZipMap scores as decoded, and
+     * rank-2 float tensors split into rows (which copies).
+     */
+    public float[][] getFloatMatrix(String outputName) {
+        Object value = get(outputName);
+        if (value instanceof float[][]) {
+            return (float[][]) value;
+        }
+        long[] shape = getShape(outputName);
+        if (value instanceof float[] && shape != null && shape.length == 2) {
+            float[] values = (float[]) value;
+            int columns = (int) shape[1];
+            float[][] matrix = new float[(int) shape[0]][];
+            for (int i = 0; i < matrix.length; i++) {
+                matrix[i] = Arrays.copyOfRange(values, i * columns, (i + 1) * columns);
+            }
+            return matrix;
+        }
+        logMismatch(outputName, value, float[][].class);
+        return null;
+    }
+
+    /**
+     * Returns one row of a float output as a buffer view over the decoded data, without copying.
+     */
+    public FloatBuffer getFloatRow(String outputName, int row) {
+        Object value = get(outputName);
+        if (value instanceof float[][]) {
+            return FloatBuffer.wrap(((float[][]) value)[row]);
+        }
+        if (value instanceof float[]) {
+            float[] values = (float[]) value;
+            int columns = values.length / mNumRows;
+            return FloatBuffer.wrap(values, row * columns, columns).slice();
+        }
+        logMismatch(outputName, value, float[].class);
+        return null;
+    }
+
+    private <T> T typed(String outputName, Class<T> type) {
+        Object value = get(outputName);
+        if (type.isInstance(value)) {
+            return type.cast(value);
+        }
+        logMismatch(outputName, value, type);
+        return null;
+    }
+
+    private static void logMismatch(String outputName, Object value, Class<?> expected) {
+        InferenceLog.e(TAG, "Output " + outputName + " is " + (value != null ? value.getClass().getSimpleName() : "missing")
+                + ", expected " + expected.getSimpleName());
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.onnxinferinjava;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges concurrent single-row requests into batches for an {@link XgbcOnnxModel}.
+ * <p>
+ * Requests are queued and a single worker thread collects them into one
+ * {@code [N, numFeatures]} batch, which is run as soon as either {@code maxBatchSize} rows
+ * are queued or the oldest queued row has waited {@code maxWait}. The results are then split
+ * back to the callers' futures. This keeps the throughput of offline batching while bounding
+ * the extra latency any one request can see to {@code maxWait} plus one batch run.
+ * <p>
+ * The queue is bounded; when it is full new requests are either rejected with a
+ * {@link RejectedExecutionException} or block the submitting thread, depending on the
+ * {@link OverflowPolicy}. Futures are completed on the worker thread, so dependent work
+ * should be chained with the {@code *Async} variants.
+ * <p>
+ * Requests may carry a {@link CancellationToken}, or get a default deadline from
+ * {@link Builder#setRequestTimeout}. Expired requests are never run: they are refused when
+ * submitted and shed from the batch being collected, failing with a {@link TimeoutException}
+ * or a {@link CancellationException}. Under overload this drops work whose caller has already
+ * given up instead of letting it delay the requests behind it. A batch whose requests all
+ * have deadlines is stopped in ORT once the last of them passes.
+ */
+public class InferenceScheduler implements AutoCloseable {
+    public static final String TAG = "InferenceScheduler";
+
+    public enum OverflowPolicy {
+        /** Fail the request immediately when the queue is full. */
+        REJECT,
+        /**
+         * Block the submitting thread until the queue has room, or until the request's deadline,
+         * at which it expires.
+         */
+        BLOCK
+    }
+
+    /**
+     * Receives metrics for every batch the scheduler runs. Called on the worker thread, so
+     * implementations must be cheap.
+     */
+    public interface BatchListener {
+        void onBatch(int batchSize, long maxQueueWaitNanos, long runNanos, boolean success);
+    }
+
+    private final XgbcOnnxModel mModel;
+    private final int mNumFeatures;
+    private final int mMaxBatchSize;
+    private final long mMaxWaitNanos;
+    private final OverflowPolicy mOverflowPolicy;
+    private final long mRequestTimeoutNanos;
+    private final BatchListener mBatchListener;
+
+    private final BlockingQueue<Request> mQueue;
+    private final Thread mWorker;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mRowCount = new AtomicLong();
+    private final AtomicLong mFailedBatchCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+
+    private InferenceScheduler(Builder builder) {
+        mModel = builder.mModel;
+        mNumFeatures = builder.mNumFeatures;
+        mMaxBatchSize = builder.mMaxBatchSize;
+        mMaxWaitNanos = builder.mMaxWaitNanos;
+        mOverflowPolicy = builder.mOverflowPolicy;
+        mRequestTimeoutNanos = builder.mRequestTimeoutNanos;
+        mBatchListener = builder.mBatchListener;
+        mQueue = new ArrayBlockingQueue<>(builder.mQueueCapacity);
+        mWorker = new Thread(this::runLoop, TAG);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Queues a row for label prediction.
+     *
+     * @return A future completed with the predicted label, or exceptionally if the request
+     *         was rejected, the batch failed or the scheduler was closed.
+     */
+    public CompletableFuture<Long> submitLabel(float[] row) {
+        return submitLabel(row, null);
+    }
+
+    /**
+     * Queues a row for label prediction, to be dropped if {@code token} expires first.
+     *
+     * @param token The request's token, or null for the scheduler's default request timeout.
+     * @return A future completed with the predicted label, or exceptionally if the request
+     *         was rejected or expired, the batch failed or the scheduler was closed.
+     */
+    public CompletableFuture<Long> submitLabel(float[] row, CancellationToken token) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        enqueue(new Request(row, defaultToken(token), future, null), future);
+        return future;
+    }
+
+    /**
+     * Queues a row for class-probability prediction.
+     *
+     * @return A future completed with the row's class probabilities, or exceptionally if the
+     *         request was rejected, the batch failed or the scheduler was closed.
+     */
+    public CompletableFuture<float[]> submitProbabilities(float[] row) {
+        return submitProbabilities(row, null);
+    }
+
+    /**
+     * Queues a row for class-probability prediction, to be dropped if {@code token} expires
+     * first.
+     *
+     * @param token The request's token, or null for the scheduler's default request timeout.
+     * @return A future completed with the row's class probabilities, or exceptionally if the
+     *         request was rejected or expired, the batch failed or the scheduler was closed.
+     */
+    public CompletableFuture<float[]> submitProbabilities(float[] row, CancellationToken token) {
+        CompletableFuture<float[]> future = new CompletableFuture<>();
+        enqueue(new Request(row, defaultToken(token), null, future), future);
+        return future;
+    }
+
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    public long getRowCount() {
+        return mRowCount.get();
+    }
+
+    public long getFailedBatchCount() {
+        return mFailedBatchCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /** Returns the number of requests dropped because their token expired before they ran. */
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stops accepting requests, finishes the batch in progress and fails every request that
+     * is still queued. Does not deinit the model.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mWorker.interrupt();
+        try {
+            mWorker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued();
+    }
+
+    private CancellationToken defaultToken(CancellationToken token) {
+        if (token == null && mRequestTimeoutNanos > 0) {
+            return CancellationToken.withTimeout(mRequestTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        return token;
+    }
+
+    private void enqueue(Request request, CompletableFuture<?> future) {
+        if (request.mRow.length != mNumFeatures) {
+            future.completeExceptionally(new IllegalArgumentException(
+                    "Expected " + mNumFeatures + " features, got " + request.mRow.length));
+            return;
+        }
+        if (mClosed) {
+            future.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+            return;
+        }
+        if (request.isExpired()) {
+            expire(request);
+            return;
+        }
+
+        if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                if (request.mToken == null || !request.mToken.hasDeadline()) {
+                    mQueue.put(request);
+                } else if (!mQueue.offer(request, request.mToken.getRemainingNanos(), TimeUnit.NANOSECONDS)) {
+                    // Waiting for room past the deadline would only queue work nobody waits for.
+                    expire(request);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return;
+            }
+        } else if (!mQueue.offer(request)) {
+            mRejectedCount.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "Inference queue is full (" + (mQueue.size() + mQueue.remainingCapacity()) + ")"));
+            return;
+        }
+        // close() may have drained the queue between the check above and the enqueue, e.g.
+        // while a BLOCK caller waited for room. Whoever takes the request out completes it.
+        if (mClosed && mQueue.remove(request)) {
+            fail(request, new IllegalStateException("Scheduler is closed"));
+        }
+    }
+
+    private void runLoop() {
+        List<Request> batch = new ArrayList<>(mMaxBatchSize);
+        float[] flatRows = new float[mMaxBatchSize * mNumFeatures];
+        boolean interrupted = false;
+
+        while (!interrupted) {
+            try {
+                batch.add(mQueue.take());
+                long deadline = batch.get(0).mEnqueuedNanos + mMaxWaitNanos;
+                while (batch.size() < mMaxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? mQueue.poll(remaining, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+
+            shedExpired(batch);
+            if (!batch.isEmpty()) {
+                runBatch(batch, flatRows);
+                batch.clear();
+            }
+        }
+        InferenceLog.d(TAG, "worker stopped after " + mBatchCount.get() + " batches");
+    }
+
+    /** Drops the requests of {@code batch} whose token expired while they were queued. */
+    private void shedExpired(List<Request> batch) {
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            if (request.isExpired()) {
+                expire(request);
+            } else {
+                batch.set(kept++, request);
+            }
+        }
+        batch.subList(kept, batch.size()).clear();
+    }
+
+    private void expire(Request request) {
+        mExpiredCount.incrementAndGet();
+        fail(request, request.mToken.isCancelled()
+                ? new CancellationException("Request cancelled")
+                : new TimeoutException("Request deadline exceeded"));
+    }
+
+    private static void fail(Request request, Exception e) {
+        if (request.mLabel != null) {
+            request.mLabel.completeExceptionally(e);
+        } else {
+            request.mProbabilities.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Returns a token for running {@code batch}, which expires with the last deadline of its
+     * requests, or null if some request has none. Cancelling a single request does not stop
+     * the batch, as the other requests still need its results.
+     */
+    private static CancellationToken batchToken(List<Request> batch) {
+        long deadline = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            CancellationToken token = batch.get(i).mToken;
+            if (token == null || !token.hasDeadline()) {
+                return null;
+            }
+            if (i == 0 || token.getDeadlineNanos() - deadline > 0) {
+                deadline = token.getDeadlineNanos();
+            }
+        }
+        return CancellationToken.withDeadline(deadline);
+    }
+
+    private void runBatch(List<Request> batch, float[] flatRows) {
+        int size = batch.size();
+        long start = System.nanoTime();
+        boolean wantLabels = false;
+        boolean wantProbabilities = false;
+        for (int i = 0; i < size; i++) {
+            Request request = batch.get(i);
+            System.arraycopy(request.mRow, 0, flatRows, i * mNumFeatures, mNumFeatures);
+            wantLabels |= request.mLabel != null;
+            wantProbabilities |= request.mProbabilities != null;
+        }
+        float[] rows = size == mMaxBatchSize ? flatRows : Arrays.copyOf(flatRows, size * mNumFeatures);
+        // Only fetch what the batch's requests read; probabilities are costly to decode.
+        Set<String> outputNames = !wantProbabilities ? XgbcOnnxModel.LABEL_OUTPUT
+                : !wantLabels ? XgbcOnnxModel.PROBABILITY_OUTPUT : null;
+
+        CancellationToken batchToken = batchToken(batch);
+        InferenceOutputs outputs;
+        try {
+            outputs = mModel.runInferenceOutputs(rows, size, outputNames, batchToken);
+        } catch (RuntimeException e) {
+            InferenceLog.e(TAG, "Batch inference failed: " + e.getMessage(), e);
+            outputs = null;
+        }
+        long runNanos = System.nanoTime() - start;
+
+        long[] labels = wantLabels ? XgbcOnnxModel.getLabels(outputs) : null;
+        float[][] probabilities = wantProbabilities ? XgbcOnnxModel.getProbabilities(outputs) : null;
+        boolean success = (!wantLabels || labels != null) && (!wantProbabilities || probabilities != null);
+        for (int i = 0; i < size; i++) {
+            Request request = batch.get(i);
+            if (!success && batchToken != null && batchToken.isExpired()) {
+                expire(request);
+                continue;
+            }
+            if (request.mLabel != null) {
+                if (labels != null) {
+                    request.mLabel.complete(labels[i]);
+                } else {
+                    request.mLabel.completeExceptionally(new IllegalStateException("Batch inference failed"));
+                }
+            } else if (probabilities != null) {
+                request.mProbabilities.complete(probabilities[i]);
+            } else {
+                request.mProbabilities.completeExceptionally(new IllegalStateException("Batch inference failed"));
+            }
+        }
+
+        mBatchCount.incrementAndGet();
+        mRowCount.addAndGet(size);
+        if (!success) {
+            mFailedBatchCount.incrementAndGet();
+        }
+        if (mBatchListener != null) {
+            mBatchListener.onBatch(size, start - batch.get(0).mEnqueuedNanos, runNanos, success);
+        }
+    }
+
+    private void failQueued() {
+        Request request;
+        while ((request = mQueue.poll()) != null) {
+            fail(request, new IllegalStateException("Scheduler is closed"));
+        }
+    }
+
+    private static final class Request {
+        final float[] mRow;
+        final CancellationToken mToken;
+        final CompletableFuture<Long> mLabel;
+        final CompletableFuture<float[]> mProbabilities;
+        final long mEnqueuedNanos = System.nanoTime();
+
+        Request(float[] row, CancellationToken token, CompletableFuture<Long> label,
+                CompletableFuture<float[]> probabilities) {
+            mRow = row;
+            mToken = token;
+            mLabel = label;
+            mProbabilities = probabilities;
+        }
+
+        boolean isExpired() {
+            return mToken != null && mToken.isExpired();
+        }
+    }
+
+    public static final class Builder {
+        private final XgbcOnnxModel mModel;
+        private final int mNumFeatures;
+        private int mMaxBatchSize = 64;
+        private long mMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        private int mQueueCapacity = 1024;
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.REJECT;
+        private long mRequestTimeoutNanos;
+        private BatchListener mBatchListener;
+
+        /**
+         * @param model       An initialized model. The scheduler does not take ownership of it.
+         * @param numFeatures The number of features per row, e.g. 4 for the iris model.
+         */
+        public Builder(XgbcOnnxModel model, int numFeatures) {
+            mModel = model;
+            mNumFeatures = numFeatures;
+        }
+
+        public Builder setMaxBatchSize(int maxBatchSize) {
+            mMaxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder setMaxWait(long maxWait, TimeUnit unit) {
+            mMaxWaitNanos = unit.toNanos(maxWait);
+            return this;
+        }
+
+        public Builder setQueueCapacity(int queueCapacity) {
+            mQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            mOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Deadline given to requests submitted without a {@link CancellationToken}, measured
+         * from submission; 0, the default, means none.
+         */
+        public Builder setRequestTimeout(long timeout, TimeUnit unit) {
+            mRequestTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public Builder setBatchListener(BatchListener batchListener) {
+            mBatchListener = batchListener;
+            return this;
+        }
+
+        public InferenceScheduler build() {
+            if (mMaxBatchSize <= 0 || mQueueCapacity <= 0 || mNumFeatures <= 0) {
+                throw new IllegalArgumentException("maxBatchSize, queueCapacity and numFeatures must be positive");
+            }
+            if (mRequestTimeoutNanos < 0) {
+                throw new IllegalArgumentException("requestTimeout must not be negative");
+            }
+            return new InferenceScheduler(this);
+        }
+    }
+}
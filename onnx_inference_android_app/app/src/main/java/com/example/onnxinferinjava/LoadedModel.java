@@ -0,0 +1,262 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A session opened by {@link OnnxModel#init()} together with everything resolved from it, and
+ * a guard that tracks the inference calls currently using it.
+ * <p>
+ * Calls bracket their use with {@link #enter()} and {@link #exit()}. Neither takes a lock, so
+ * any number of calls run concurrently. {@link #close()} stops new calls from entering and
+ * waits for the ones in flight before closing the tensor pool and releasing the session.
+ * <p>
+ * With a {@link SessionConfig#getSessionPoolSize() session pool}, the model holds several
+ * independent sessions of the same graph. Each run picks the one with the fewest calls in
+ * flight through {@link #acquireSession()}, starting its search at a slot derived from the
+ * calling thread so that threads keep to the same session while the load is even.
+ */
+final class LoadedModel {
+    private static final String TAG = OnnxModel.TAG;
+
+    /**
+     * The {@link ModelSource#getKey()} of the model, followed by {@code "@"} and the
+     * {@link #mVersion} when there is one. Keys its metrics and audit records.
+     */
+    volatile String mModelKey;
+    /**
+     * The name a {@link ModelHandle} deployed the model under, or null. Set later by
+     * {@link #setVersion} for the model an {@link OnnxModel} was initialized with.
+     */
+    volatile String mVersion;
+    final OrtEnvironment mEnvironment;
+    /** The first session of the pool, used for everything but running calls. */
+    final OrtSession mSession;
+    /** Every session of the pool; calls run on the one {@link #acquireSession()} returns. */
+    final OrtSession[] mSessions;
+    /** The first input, which the {@code float[]} entry points feed. */
+    final String mInputName;
+    final Map<String, NodeInfo> mInputInfo;
+    final Map<String, NodeInfo> mOutputInfo;
+    /** One decoder per output, in the model's output order. */
+    final Map<String, OutputDecoder> mDecoders;
+    /** Null when the input has no fixed feature count. */
+    final BatchTensorPool mTensorPool;
+    /**
+     * Pure-Java evaluator that {@link XgbcOnnxModel} uses instead of the session when it is
+     * faster, or null. Set before the model is published to callers.
+     */
+    TreeEnsembleModel mTreeEnsemble;
+
+    /** Ints between the load counters of two sessions, so that they sit on different cache lines. */
+    private static final int LOAD_STRIDE = 16;
+
+    private final SessionHandle[] mSessionHandles;
+    /** Calls in flight per session, at {@code index * LOAD_STRIDE}. */
+    private final AtomicIntegerArray mSessionLoad;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private volatile boolean mClosing;
+
+    private LoadedModel(String modelKey, String version, OrtEnvironment environment, SessionHandle[] sessionHandles,
+                        Map<String, NodeInfo> inputInfo, Map<String, NodeInfo> outputInfo, BatchTensorPool tensorPool) {
+        mModelKey = modelKey;
+        mVersion = version;
+        mEnvironment = environment;
+        mSessionHandles = sessionHandles;
+        mSessions = new OrtSession[sessionHandles.length];
+        for (int i = 0; i < sessionHandles.length; i++) {
+            mSessions[i] = sessionHandles[i].getSession();
+        }
+        mSession = mSessions[0];
+        mSessionLoad = new AtomicIntegerArray(sessionHandles.length * LOAD_STRIDE);
+        mInputInfo = inputInfo;
+        mInputName = inputInfo.keySet().iterator().next();
+        mOutputInfo = outputInfo;
+        mTensorPool = tensorPool;
+
+        Map<String, OutputDecoder> decoders = new LinkedHashMap<>();
+        for (Map.Entry<String, NodeInfo> output : outputInfo.entrySet()) {
+            decoders.put(output.getKey(), new OutputDecoder(output.getKey(), decoders.size(), output.getValue()));
+        }
+        mDecoders = Collections.unmodifiableMap(decoders);
+    }
+
+    /**
+     * Acquires the shared sessions for the source and resolves the input and output names once,
+     * so that inference calls do not have to query the session. The source's
+     * {@link TuningProfile}, if any, is applied to {@code baseConfig} first. Reports the time
+     * taken, or the failure, to {@code metrics}.
+     */
+    static LoadedModel load(ModelSource source, SessionConfig baseConfig, InferenceMetrics metrics)
+            throws OrtException, IOException {
+        return load(source, baseConfig, metrics, null);
+    }
+
+    /**
+     * Loads a version deployed through a {@link ModelHandle}. It gets sessions of its own, so
+     * that a file replaced in place is read again rather than served from the registry, and
+     * its name is part of its {@link #mModelKey}.
+     */
+    static LoadedModel load(ModelSource source, SessionConfig baseConfig, InferenceMetrics metrics, String version)
+            throws OrtException, IOException {
+        long start = System.nanoTime();
+        String modelKey = version != null ? source.getKey() + "@" + version : source.getKey();
+        SessionConfig config = TuningProfile.apply(source, baseConfig);
+        SessionHandle[] sessionHandles = new SessionHandle[config.getSessionPoolSize()];
+        try {
+            for (int i = 0; i < sessionHandles.length; i++) {
+                sessionHandles[i] = SessionRegistry.getInstance().acquire(source, config, i, version);
+            }
+        } catch (OrtException | IOException | RuntimeException e) {
+            metrics.onError(modelKey, InferenceMetrics.ERROR_LOAD);
+            closeAll(sessionHandles);
+            throw e;
+        }
+        // After the registry, which may have created the environment with a global thread pool.
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        try {
+            OrtSession session = sessionHandles[0].getSession();
+            Map<String, NodeInfo> inputInfo = session.getInputInfo();
+            if (inputInfo.isEmpty()) {
+                throw new IllegalStateException("No input names found in ONNX model " + source);
+            }
+            Map.Entry<String, NodeInfo> input = inputInfo.entrySet().iterator().next();
+            Map<String, NodeInfo> outputInfo = session.getOutputInfo();
+
+            BatchTensorPool tensorPool = null;
+            if (input.getValue().getInfo() instanceof TensorInfo) {
+                TensorInfo inputTensor = (TensorInfo) input.getValue().getInfo();
+                long[] inputShape = inputTensor.getShape();
+                if (inputShape.length == 2 && inputShape[1] > 0) {
+                    String[] dimensionNames = inputTensor.getDimensionNames();
+                    String batchSymbol = dimensionNames != null && dimensionNames.length > 0 ? dimensionNames[0] : null;
+                    tensorPool = new BatchTensorPool(environment, input.getKey(), batchSymbol, (int) inputShape[1],
+                            outputInfo);
+                }
+            }
+            LoadedModel loadedModel = new LoadedModel(modelKey, version, environment, sessionHandles, inputInfo,
+                    outputInfo, tensorPool);
+            metrics.onSessionLoaded(modelKey, System.nanoTime() - start);
+            return loadedModel;
+        } catch (OrtException | RuntimeException e) {
+            metrics.onError(modelKey, InferenceMetrics.ERROR_LOAD);
+            closeAll(sessionHandles);
+            throw e;
+        }
+    }
+
+    /**
+     * Names a model loaded without a version, once a {@link ModelHandle} adopts it. Its
+     * sessions stay where they are in the registry; only its metrics and audit key change.
+     */
+    void setVersion(String version) {
+        if (mVersion == null) {
+            mModelKey = mModelKey + "@" + version;
+            mVersion = version;
+        }
+    }
+
+    private static void closeAll(SessionHandle[] sessionHandles) {
+        for (SessionHandle sessionHandle : sessionHandles) {
+            if (sessionHandle != null) {
+                sessionHandle.close();
+            }
+        }
+    }
+
+    /**
+     * Picks the session with the fewest calls in flight and counts the caller against it.
+     * Must be paired with {@link #releaseSession(int)}.
+     *
+     * @return The index of the session in {@link #mSessions}.
+     */
+    int acquireSession() {
+        int numSessions = mSessions.length;
+        if (numSessions == 1) {
+            return 0;
+        }
+        int first = (int) (Thread.currentThread().getId() % numSessions);
+        int best = first;
+        int bestLoad = mSessionLoad.get(first * LOAD_STRIDE);
+        for (int i = 1; i < numSessions && bestLoad > 0; i++) {
+            int index = (first + i) % numSessions;
+            int load = mSessionLoad.get(index * LOAD_STRIDE);
+            if (load < bestLoad) {
+                best = index;
+                bestLoad = load;
+            }
+        }
+        mSessionLoad.incrementAndGet(best * LOAD_STRIDE);
+        return best;
+    }
+
+    void releaseSession(int index) {
+        if (mSessions.length > 1) {
+            mSessionLoad.decrementAndGet(index * LOAD_STRIDE);
+        }
+    }
+
+    /**
+     * Registers an inference call. Must be paired with {@link #exit()} when it returns true.
+     *
+     * @return false if the model is closing and the call must not use it.
+     */
+    boolean enter() {
+        mInFlight.incrementAndGet();
+        if (mClosing) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    void exit() {
+        if (mInFlight.decrementAndGet() == 0 && mClosing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    /**
+     * Rejects new calls, waits for the calls in flight to finish, then closes the tensor pool
+     * and releases the session. Idempotent.
+     */
+    void close() {
+        mClosing = true;
+        boolean interrupted = false;
+        synchronized (this) {
+            while (mInFlight.get() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (mTensorPool != null) {
+            mTensorPool.close();
+        }
+        closeAll(mSessionHandles);
+        InferenceLog.d(TAG, "closed " + mSessionHandles[0].getKey()
+                + (mSessionHandles.length > 1 ? " and " + (mSessionHandles.length - 1) + " pooled session(s)" : ""));
+    }
+}
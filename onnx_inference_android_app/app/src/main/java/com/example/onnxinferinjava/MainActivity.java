@@ -10,14 +10,32 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
 
+    /** Scored once the model is loaded so that the first tap does not pay for ORT's first run. */
+    private static final float[] WARMUP_ROW = {5.7f, 3.8f, 1.7f, 0.3f};
+
+    private XgbcOnnxModel mOnnxModel;
+    private ModelPreloader mPreloader;
+    private CompletableFuture<ModelPreloader.StartupTimings> mModelReady;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        InferenceLog.setLogger(new AndroidLogger());
+        SessionConfig sessionConfig = new SessionConfig.Builder()
+                .setOptimizedModelCacheDir(new File(getCodeCacheDir(), "onnx").getPath())
+                .build();
+        mOnnxModel = new XgbcOnnxModel(new AssetModelSource(MainActivity.this, "models/xgbc_iris.ort"), sessionConfig);
+        mPreloader = new ModelPreloader.Builder().build();
+        mModelReady = mPreloader.register(mOnnxModel, WARMUP_ROW, 1);
+        mPreloader.start();
         final EditText inputSepalLength = (EditText) this.findViewById(R.id.input_sepal_length);
         final EditText inputSepalWidth = (EditText) this.findViewById(R.id.input_sepal_width);
         final EditText inputPetalLength = (EditText) this.findViewById(R.id.input_petal_length);
@@ -30,10 +48,18 @@ public class MainActivity extends AppCompatActivity {
                 float inputSepalWidthFloat = Float.parseFloat(inputSepalWidth.getText().toString());
                 float inputPetalLengthFloat = Float.parseFloat(inputPetalLength.getText().toString());
                 float inputPetalWidthFloat = Float.parseFloat(inputPetalWidth.getText().toString());
-                if (true) {
+                if (!mModelReady.isDone()) {
+                    Toast.makeText(MainActivity.this, "The model is still loading", Toast.LENGTH_SHORT).show();
+                } else if (mModelReady.isCompletedExceptionally()) {
+                    Toast.makeText(MainActivity.this, "The model failed to load", Toast.LENGTH_LONG).show();
+                } else if (true) {
                     float[] inputData = {inputSepalLengthFloat, inputSepalWidthFloat, inputPetalLengthFloat, inputPetalWidthFloat};
 
                     int outputClass = predictIris(inputData);
+                    if (outputClass < 0) {
+                        Toast.makeText(MainActivity.this, "Prediction failed", Toast.LENGTH_LONG).show();
+                        return;
+                    }
                     String outputString = "";
 
                     switch (outputClass) {
@@ -60,15 +86,23 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        mPreloader.close();
+        mOnnxModel.deinit();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        SessionRegistry.getInstance().trimIdle();
+    }
+
+    /** Returns the predicted class, or -1 if inference failed. */
     private int predictIris(float[] inputData) {
-        XgbcOnnxModel onnxModel = new XgbcOnnxModel(MainActivity.this, "models/xgbc_iris.ort");
-        onnxModel.init();
-//        float[] inputData = {5.7f, 3.8f, 1.7f, 0.3f};
-//        float[] inputData = {6.1f, 2.8f, 4.7f, 1.2f};
-        float[]  inputData2 = {7.7f, 2.6f, 6.9f, 2.3f};
-        long label = onnxModel.runInferenceGetLabel(inputData2);
+        Long label = mOnnxModel.runInferenceGetLabel(inputData);
         Log.d(TAG, "label: " + label);
-        onnxModel.deinit();
-        return (int) label;
+        return label != null ? label.intValue() : -1;
     }
 }
\ No newline at end of file
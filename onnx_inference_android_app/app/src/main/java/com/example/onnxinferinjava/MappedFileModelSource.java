@@ -0,0 +1,76 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads a model by memory-mapping a region of a file and passing the mapped buffer to ORT.
+ * <p>
+ * The pages are backed by the page cache rather than the Java heap. The region form is used
+ * for models stored inside a larger file, such as an uncompressed APK asset.
+ */
+public final class MappedFileModelSource implements ModelSource {
+
+    private final String mPath;
+    private final long mOffset;
+    private final long mLength;
+
+    public MappedFileModelSource(String path) {
+        this(path, 0, new File(path).length());
+    }
+
+    public MappedFileModelSource(String path, long offset, long length) {
+        mPath = new File(path).getAbsolutePath();
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public String getKey() {
+        return "mmap:" + mPath + "@" + mOffset + "+" + mLength;
+    }
+
+    /** Returns the file's length and modification time. */
+    @Override
+    public String getVersionStamp() {
+        File file = new File(mPath);
+        return file.length() + "@" + file.lastModified();
+    }
+
+    @Override
+    public OrtSession createSession(OrtEnvironment environment, SessionOptions options) throws OrtException, IOException {
+        return environment.createSession(map(), options);
+    }
+
+    @Override
+    public ByteBuffer readModel() throws IOException {
+        return map();
+    }
+
+    /** Returns a file next to the model if it is the whole file, null for a region of a larger one. */
+    @Override
+    public File getTuningProfileFile() {
+        return mOffset == 0 && mLength == new File(mPath).length() ? new File(mPath + TuningProfile.FILE_SUFFIX) : null;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(mPath), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, mOffset, mLength);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.onnxinferinjava;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link InferenceMetrics} that aggregates events per model key into histograms, for
+ * dashboards and alerting.
+ * <p>
+ * Recording is lock-free. {@link #snapshot()} copies the current state; histograms are
+ * cumulative until {@link #reset()}, so periodic exporters should diff or reset between
+ * reads. One recorder can be shared by many models.
+ */
+public final class MetricsRecorder implements InferenceMetrics {
+
+    private final ConcurrentHashMap<String, ModelStats> mStats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onSessionLoaded(String modelKey, long loadNanos) {
+        stats(modelKey).mLoad.record(loadNanos);
+    }
+
+    @Override
+    public void onInference(String modelKey, int numRows, long buildNanos, long runNanos, long decodeNanos) {
+        ModelStats stats = stats(modelKey);
+        stats.mBuild.record(buildNanos);
+        stats.mRun.record(runNanos);
+        stats.mDecode.record(decodeNanos);
+        stats.mTotal.record(buildNanos + runNanos + decodeNanos);
+        stats.mBatchSize.record(numRows);
+        stats.mRows.add(numRows);
+    }
+
+    @Override
+    public void onError(String modelKey, String errorType) {
+        stats(modelKey).mErrors.computeIfAbsent(errorType, type -> new LongAdder()).increment();
+    }
+
+    /**
+     * Returns the native tensors created by this library and not yet closed, by every model in
+     * the process: per-call inputs and outputs, {@link ModelInputs} and the tensor pools. It is
+     * not a per-model figure, so it is not part of a {@link Snapshot}. A value that keeps
+     * growing while traffic is steady points to a leak.
+     */
+    public static long getLiveTensorCount() {
+        return NativeTensors.getLiveCount();
+    }
+
+    /** Returns a copy of the metrics of every model that has reported an event. */
+    public Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> snapshots = new HashMap<>();
+        for (Map.Entry<String, ModelStats> entry : mStats.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return snapshots;
+    }
+
+    /** Returns a copy of one model's metrics, or null if it has not reported any event. */
+    public Snapshot snapshot(String modelKey) {
+        ModelStats stats = mStats.get(modelKey);
+        return stats != null ? stats.snapshot(modelKey) : null;
+    }
+
+    public void reset() {
+        mStats.clear();
+    }
+
+    private ModelStats stats(String modelKey) {
+        ModelStats stats = mStats.get(modelKey);
+        return stats != null ? stats : mStats.computeIfAbsent(modelKey, key -> new ModelStats());
+    }
+
+    private static final class ModelStats {
+        final LogHistogram mLoad = new LogHistogram();
+        final LogHistogram mBuild = new LogHistogram();
+        final LogHistogram mRun = new LogHistogram();
+        final LogHistogram mDecode = new LogHistogram();
+        final LogHistogram mTotal = new LogHistogram();
+        final LogHistogram mBatchSize = new LogHistogram();
+        final LongAdder mRows = new LongAdder();
+        final ConcurrentHashMap<String, LongAdder> mErrors = new ConcurrentHashMap<>();
+
+        Snapshot snapshot(String modelKey) {
+            Map<String, Long> errors = new HashMap<>();
+            for (Map.Entry<String, LongAdder> error : mErrors.entrySet()) {
+                errors.put(error.getKey(), error.getValue().sum());
+            }
+            return new Snapshot(modelKey, mLoad.snapshot(), mBuild.snapshot(), mRun.snapshot(),
+                    mDecode.snapshot(), mTotal.snapshot(), mBatchSize.snapshot(), mRows.sum(),
+                    Collections.unmodifiableMap(errors));
+        }
+    }
+
+    /** Metrics of one model at one point in time. Latencies are in nanoseconds. */
+    public static final class Snapshot {
+        private final String mModelKey;
+        private final LogHistogram.Snapshot mLoad;
+        private final LogHistogram.Snapshot mBuild;
+        private final LogHistogram.Snapshot mRun;
+        private final LogHistogram.Snapshot mDecode;
+        private final LogHistogram.Snapshot mTotal;
+        private final LogHistogram.Snapshot mBatchSize;
+        private final long mRows;
+        private final Map<String, Long> mErrors;
+
+        private Snapshot(String modelKey, LogHistogram.Snapshot load, LogHistogram.Snapshot build,
+                         LogHistogram.Snapshot run, LogHistogram.Snapshot decode, LogHistogram.Snapshot total,
+                         LogHistogram.Snapshot batchSize, long rows, Map<String, Long> errors) {
+            mModelKey = modelKey;
+            mLoad = load;
+            mBuild = build;
+            mRun = run;
+            mDecode = decode;
+            mTotal = total;
+            mBatchSize = batchSize;
+            mRows = rows;
+            mErrors = errors;
+        }
+
+        public String getModelKey() {
+            return mModelKey;
+        }
+
+        public LogHistogram.Snapshot getLoadLatency() {
+            return mLoad;
+        }
+
+        public LogHistogram.Snapshot getBuildLatency() {
+            return mBuild;
+        }
+
+        public LogHistogram.Snapshot getRunLatency() {
+            return mRun;
+        }
+
+        public LogHistogram.Snapshot getDecodeLatency() {
+            return mDecode;
+        }
+
+        /** Latency of whole calls: build, run and decode together. */
+        public LogHistogram.Snapshot getLatency() {
+            return mTotal;
+        }
+
+        public LogHistogram.Snapshot getBatchSizes() {
+            return mBatchSize;
+        }
+
+        public long getCallCount() {
+            return mTotal.getCount();
+        }
+
+        public long getRowCount() {
+            return mRows;
+        }
+
+        /** Failed calls and loads, by error type. */
+        public Map<String, Long> getErrorCounts() {
+            return mErrors;
+        }
+
+        /**
+         * Flattens the snapshot into metric names and values, e.g. {@code latency.p99} or
+         * {@code errors.NOT_LOADED}, for exporting to a monitoring backend.
+         */
+        public Map<String, Number> toMap() {
+            Map<String, Number> map = new LinkedHashMap<>();
+            map.put("calls", getCallCount());
+            map.put("rows", mRows);
+            put(map, "latency", mTotal);
+            put(map, "build", mBuild);
+            put(map, "run", mRun);
+            put(map, "decode", mDecode);
+            put(map, "load", mLoad);
+            put(map, "batch_size", mBatchSize);
+            for (Map.Entry<String, Long> error : mErrors.entrySet()) {
+                map.put("errors." + error.getKey(), error.getValue());
+            }
+            return map;
+        }
+
+        private static void put(Map<String, Number> map, String prefix, LogHistogram.Snapshot histogram) {
+            map.put(prefix + ".count", histogram.getCount());
+            map.put(prefix + ".mean", histogram.getMean());
+            map.put(prefix + ".p50", histogram.getValueAtPercentile(50));
+            map.put(prefix + ".p90", histogram.getValueAtPercentile(90));
+            map.put(prefix + ".p99", histogram.getValueAtPercentile(99));
+            map.put(prefix + ".p999", histogram.getValueAtPercentile(99.9));
+            map.put(prefix + ".max", histogram.getMax());
+        }
+
+        @Override
+        public String toString() {
+            return mModelKey + ": latency[" + mTotal + "] run[" + mRun + "] batch[" + mBatchSize
+                    + "] errors=" + mErrors;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Versioned, hot-swappable model behind an {@link OnnxModel}.
+ * <p>
+ * {@link #deploy} loads a new version next to the one serving requests, warms it up with the
+ * configured sample rows, checks that it has the same inputs and outputs, and only then swaps
+ * it in. Callers keep using the wrapped model the whole time: calls that started on the old
+ * session finish there, calls that start after the swap run on the new one, and none of them
+ * fail or wait for the load. The most recent {@code maxResidentVersions} versions stay open,
+ * so {@link #rollback()} to one of them is just another swap; older versions are closed once
+ * their in-flight calls finish and are reloaded from their source if rolled back to.
+ * <p>
+ * The handle owns the model's lifecycle: close the handle rather than calling
+ * {@link OnnxModel#deinit()} on the model. Deploys and rollbacks are serialized.
+ */
+public final class ModelHandle implements AutoCloseable {
+    public static final String TAG = "ModelHandle";
+
+    /** Number of versions remembered for rollback, resident or not. */
+    static final int MAX_HISTORY = 8;
+
+    private final OnnxModel mModel;
+    private final int mMaxResidentVersions;
+    private final float[] mWarmupRows;
+    private final int mWarmupNumRows;
+    private final int mWarmupIterations;
+
+    /** Deployed versions, the active one first. Guarded by {@code this}. */
+    private final Deque<Version> mVersions = new ArrayDeque<>();
+    private ExecutorService mLoader;
+    private boolean mClosed;
+
+    private ModelHandle(Builder builder) {
+        mModel = builder.mModel;
+        mMaxResidentVersions = builder.mMaxResidentVersions;
+        mWarmupRows = builder.mWarmupRows;
+        mWarmupNumRows = builder.mWarmupNumRows;
+        mWarmupIterations = builder.mWarmupIterations;
+
+        LoadedModel current = mModel.getLoadedModel();
+        if (current != null) {
+            current.setVersion(builder.mInitialVersion);
+            mVersions.push(new Version(builder.mInitialVersion, mModel.getModelSource(), current));
+        }
+    }
+
+    /** Returns the model that serves requests; it always runs on the active version. */
+    public OnnxModel getModel() {
+        return mModel;
+    }
+
+    /** Returns the name of the active version, or null if nothing has been deployed. */
+    public synchronized String getActiveVersion() {
+        Version active = mVersions.peekFirst();
+        return active != null ? active.mName : null;
+    }
+
+    /** Returns the remembered versions, the active one first. */
+    public synchronized List<String> getVersions() {
+        List<String> names = new ArrayList<>(mVersions.size());
+        for (Version version : mVersions) {
+            names.add(version.mName);
+        }
+        return names;
+    }
+
+    /**
+     * Loads, warms up and activates a new version. Blocks the calling thread for the load but
+     * not the callers of the model.
+     *
+     * @return true if the version is now active, false if it failed to load, failed warm-up or
+     *         does not match the active version's inputs and outputs.
+     */
+    public synchronized boolean deploy(String name, ModelSource source) {
+        if (mClosed) {
+            InferenceLog.e(TAG, "deploy " + name + " on a closed handle");
+            return false;
+        }
+        LoadedModel loaded = loadAndWarmUp(name, source);
+        if (loaded == null) {
+            return false;
+        }
+        activate(new Version(name, source, loaded));
+        return true;
+    }
+
+    /**
+     * Runs {@link #deploy} on a background thread owned by this handle.
+     */
+    public CompletableFuture<Boolean> deployAsync(String name, ModelSource source) {
+        return CompletableFuture.supplyAsync(() -> deploy(name, source), loader());
+    }
+
+    /**
+     * Drops the active version and reactivates the one deployed before it.
+     *
+     * @return true on success, false if there is no previous version or it cannot be reloaded,
+     *         in which case the active version is left in place.
+     */
+    public synchronized boolean rollback() {
+        if (mClosed || mVersions.size() < 2) {
+            InferenceLog.e(TAG, "No version to roll back to.");
+            return false;
+        }
+        Iterator<Version> it = mVersions.iterator();
+        Version current = it.next();
+        Version previous = it.next();
+        if (previous.mLoaded == null) {
+            previous.mLoaded = loadAndWarmUp(previous.mName, previous.mSource);
+            if (previous.mLoaded == null) {
+                return false;
+            }
+        }
+
+        mVersions.removeFirst();
+        mModel.swap(previous.mLoaded, previous.mSource);
+        current.retire();
+        InferenceLog.d(TAG, "rolled back from " + current.mName + " to " + previous.mName);
+        return true;
+    }
+
+    /** Closes every resident version, after waiting for their in-flight calls. */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mModel.swap(null, mModel.getModelSource());
+        for (Version version : mVersions) {
+            version.retire();
+        }
+        mVersions.clear();
+        if (mLoader != null) {
+            mLoader.shutdown();
+        }
+    }
+
+    private void activate(Version next) {
+        Version current = mVersions.peekFirst();
+        mVersions.push(next);
+        mModel.swap(next.mLoaded, next.mSource);
+        InferenceLog.d(TAG, "activated " + next.mName + (current != null ? ", replacing " + current.mName : ""));
+
+        int index = 0;
+        Iterator<Version> it = mVersions.iterator();
+        while (it.hasNext()) {
+            Version version = it.next();
+            if (index >= mMaxResidentVersions) {
+                version.retire();
+            }
+            if (index >= MAX_HISTORY) {
+                it.remove();
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Opens a version and runs the warm-up rows through it before it sees real traffic, so
+     * that ORT's first-run allocations and the output decoders' caches are not paid for by a
+     * caller.
+     *
+     * @return The loaded version, or null if it could not be used.
+     */
+    private LoadedModel loadAndWarmUp(String name, ModelSource source) {
+        long start = System.nanoTime();
+        LoadedModel loaded;
+        try {
+            loaded = LoadedModel.load(source, mModel.getSessionConfig(), mModel.getMetrics(), name);
+        } catch (OrtException | IOException | RuntimeException e) {
+            InferenceLog.e(TAG, "load " + name + " from " + source + " error: " + e.getMessage(), e);
+            return null;
+        }
+
+        Version active = mVersions.peekFirst();
+        if (active != null && active.mLoaded != null && !isCompatible(active.mLoaded, loaded)) {
+            InferenceLog.e(TAG, "Version " + name + " does not match the inputs and outputs of " + active.mName);
+            loaded.close();
+            return null;
+        }
+
+        if (mWarmupRows != null) {
+            try {
+                OnnxModel.warmUp(loaded, mWarmupRows, mWarmupNumRows, mWarmupIterations);
+            } catch (OrtException | RuntimeException e) {
+                InferenceLog.e(TAG, "warm-up of " + name + " error: " + e.getMessage(), e);
+                loaded.close();
+                return null;
+            }
+        }
+        try {
+            mModel.onLoaded(loaded, source);
+        } catch (RuntimeException e) {
+            InferenceLog.e(TAG, "prepare " + name + " error: " + e.getMessage(), e);
+            loaded.close();
+            return null;
+        }
+        InferenceLog.d(TAG, "loaded " + name + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return loaded;
+    }
+
+    private static boolean isCompatible(LoadedModel current, LoadedModel next) {
+        int currentFeatures = current.mTensorPool != null ? current.mTensorPool.getNumFeatures() : -1;
+        int nextFeatures = next.mTensorPool != null ? next.mTensorPool.getNumFeatures() : -1;
+        return current.mInputName.equals(next.mInputName)
+                && currentFeatures == nextFeatures
+                && current.mDecoders.keySet().equals(next.mDecoders.keySet());
+    }
+
+    private synchronized ExecutorService loader() {
+        if (mLoader == null) {
+            mLoader = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, TAG + "-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mLoader;
+    }
+
+    private static final class Version {
+        final String mName;
+        final ModelSource mSource;
+        /** Null once the version has been retired. */
+        LoadedModel mLoaded;
+
+        Version(String name, ModelSource source, LoadedModel loaded) {
+            mName = name;
+            mSource = source;
+            mLoaded = loaded;
+        }
+
+        /** Closes the session once the calls still running on it have finished. */
+        void retire() {
+            if (mLoaded != null) {
+                mLoaded.close();
+                mLoaded = null;
+            }
+        }
+    }
+
+    public static final class Builder {
+        private final OnnxModel mModel;
+        private String mInitialVersion = "initial";
+        private int mMaxResidentVersions = 2;
+        private float[] mWarmupRows;
+        private int mWarmupNumRows;
+        private int mWarmupIterations = 3;
+
+        /**
+         * @param model The model to serve through the handle. If it is already initialized,
+         *              its current session becomes the first version.
+         */
+        public Builder(OnnxModel model) {
+            mModel = model;
+        }
+
+        /** Name given to the model's current session; defaults to {@code "initial"}. */
+        public Builder setInitialVersion(String initialVersion) {
+            mInitialVersion = initialVersion;
+            return this;
+        }
+
+        /**
+         * Versions kept open, including the active one. 1 closes the previous version as soon
+         * as its calls finish; 2, the default, keeps it ready for an instant rollback.
+         */
+        public Builder setMaxResidentVersions(int maxResidentVersions) {
+            mMaxResidentVersions = maxResidentVersions;
+            return this;
+        }
+
+        /**
+         * Sample rows, flattened in row-major order, that every new version must score before
+         * it is activated. Without them versions are activated cold.
+         */
+        public Builder setWarmupRows(float[] rows, int numRows) {
+            mWarmupRows = rows;
+            mWarmupNumRows = numRows;
+            return this;
+        }
+
+        public Builder setWarmupIterations(int warmupIterations) {
+            mWarmupIterations = warmupIterations;
+            return this;
+        }
+
+        public ModelHandle build() {
+            if (mMaxResidentVersions < 1 || mMaxResidentVersions > MAX_HISTORY) {
+                throw new IllegalArgumentException("maxResidentVersions must be between 1 and " + MAX_HISTORY);
+            }
+            if (mWarmupRows != null && (mWarmupNumRows <= 0 || mWarmupRows.length % mWarmupNumRows != 0)) {
+                throw new IllegalArgumentException("Warm-up rows do not split into " + mWarmupNumRows + " rows");
+            }
+            return new ModelHandle(this);
+        }
+    }
+}
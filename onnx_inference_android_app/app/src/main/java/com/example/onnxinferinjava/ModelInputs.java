@@ -0,0 +1,210 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.TensorInfo;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named input tensors bound to caller-owned direct buffers, for models with several inputs or
+ * with inputs other than one float matrix. Obtain a builder from {@link OnnxModel#newInputs()}
+ * and run them with {@link OnnxModel#runInferenceOutputs(ModelInputs)}.
+ * <p>
+ * Each tensor is created over its buffer without copying: ORT reads the buffer's memory, from
+ * its position at build time, on every run. A feature pipeline can therefore write straight
+ * into the buffers and run the same inputs again, as long as the shapes do not change. The
+ * buffers must stay reachable and unchanged while a run is in flight, and the inputs must be
+ * closed once they are no longer used; closing them does not touch the buffers. Several
+ * threads may run the same inputs concurrently.
+ * <p>
+ * Bindings are checked against the model's input info once, when they are made: the input
+ * must exist and have the buffer's element type, the shape must have the input's rank and
+ * fixed dimensions, and the buffer must hold exactly the shape's elements. {@link Builder#build()}
+ * then checks that every input of the model is bound.
+ */
+public final class ModelInputs implements AutoCloseable {
+    private final Map<String, OnnxTensor> mTensors;
+    private final int mNumRows;
+
+    private ModelInputs(Map<String, OnnxTensor> tensors, int numRows) {
+        mTensors = Collections.unmodifiableMap(tensors);
+        mNumRows = numRows;
+    }
+
+    Map<String, OnnxTensor> getTensors() {
+        return mTensors;
+    }
+
+    /** Returns the leading dimension of the first input, or 1 if it is a scalar. */
+    public int getNumRows() {
+        return mNumRows;
+    }
+
+    /** Releases the tensors. The buffers they were created over are left to the caller. */
+    @Override
+    public void close() {
+        for (OnnxTensor tensor : mTensors.values()) {
+            NativeTensors.close(tensor);
+        }
+    }
+
+    public static final class Builder {
+        private final OrtEnvironment mEnvironment;
+        private final Map<String, NodeInfo> mInputInfo;
+        private final Map<String, Binding> mBindings = new LinkedHashMap<>();
+
+        Builder(OrtEnvironment environment, Map<String, NodeInfo> inputInfo) {
+            mEnvironment = environment;
+            mInputInfo = inputInfo;
+        }
+
+        /** Binds a float32 input. */
+        public Builder bind(String name, FloatBuffer data, long... shape) {
+            checkOrder(name, data.order());
+            return bind(name, data, shape, OnnxJavaType.FLOAT, data.remaining());
+        }
+
+        /** Binds an int64 input. */
+        public Builder bind(String name, LongBuffer data, long... shape) {
+            checkOrder(name, data.order());
+            return bind(name, data, shape, OnnxJavaType.INT64, data.remaining());
+        }
+
+        /** Binds a float16 input, each element being the IEEE 754 half-precision bits of a value. */
+        public Builder bindFloat16(String name, ShortBuffer data, long... shape) {
+            checkOrder(name, data.order());
+            return bind(name, data, shape, OnnxJavaType.FLOAT16, data.remaining());
+        }
+
+        /**
+         * Binds an input of any numeric or boolean element type to the raw bytes of its values,
+         * in native byte order. The element type is taken from the model.
+         */
+        public Builder bind(String name, ByteBuffer data, long... shape) {
+            OnnxJavaType type = tensorInfo(name).type;
+            if (type == OnnxJavaType.STRING || type == OnnxJavaType.UNKNOWN) {
+                throw new IllegalArgumentException("Input " + name + " of type " + type + " cannot be bound to bytes");
+            }
+            if (data.remaining() % type.size != 0) {
+                throw new IllegalArgumentException("Input " + name + ": " + data.remaining()
+                        + " bytes is not a whole number of " + type + " values");
+            }
+            return bind(name, data, shape, type, data.remaining() / type.size);
+        }
+
+        /**
+         * Creates the tensors over the bound buffers.
+         *
+         * @throws IllegalArgumentException if an input of the model is not bound.
+         */
+        public ModelInputs build() throws OrtException {
+            for (String name : mInputInfo.keySet()) {
+                if (!mBindings.containsKey(name)) {
+                    throw new IllegalArgumentException("Input " + name + " is not bound");
+                }
+            }
+
+            Map<String, OnnxTensor> tensors = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<String, Binding> entry : mBindings.entrySet()) {
+                    tensors.put(entry.getKey(), NativeTensors.created(entry.getValue().createTensor(mEnvironment)));
+                }
+            } catch (OrtException | RuntimeException e) {
+                for (OnnxTensor tensor : tensors.values()) {
+                    NativeTensors.close(tensor);
+                }
+                throw e;
+            }
+            long[] firstShape = mBindings.values().iterator().next().mShape;
+            return new ModelInputs(tensors, firstShape.length > 0 ? (int) firstShape[0] : 1);
+        }
+
+        private Builder bind(String name, Buffer data, long[] shape, OnnxJavaType type, long numElements) {
+            TensorInfo info = tensorInfo(name);
+            if (info.type != type) {
+                throw new IllegalArgumentException("Input " + name + " is " + info.type + ", not " + type);
+            }
+            if (!data.isDirect()) {
+                throw new IllegalArgumentException("Input " + name + " must be bound to a direct buffer");
+            }
+            if (mBindings.containsKey(name)) {
+                throw new IllegalArgumentException("Input " + name + " is already bound");
+            }
+
+            long[] modelShape = info.getShape();
+            if (shape.length != modelShape.length) {
+                throw new IllegalArgumentException("Input " + name + " has shape " + Arrays.toString(modelShape)
+                        + ", got " + Arrays.toString(shape));
+            }
+            long expectedElements = 1;
+            for (int i = 0; i < shape.length; i++) {
+                if (shape[i] <= 0 || (modelShape[i] > 0 && shape[i] != modelShape[i])) {
+                    throw new IllegalArgumentException("Input " + name + " has shape " + Arrays.toString(modelShape)
+                            + ", got " + Arrays.toString(shape));
+                }
+                expectedElements *= shape[i];
+            }
+            if (numElements != expectedElements) {
+                throw new IllegalArgumentException("Input " + name + " of shape " + Arrays.toString(shape) + " needs "
+                        + expectedElements + " values, buffer holds " + numElements);
+            }
+
+            mBindings.put(name, new Binding(data, shape.clone(), type));
+            return this;
+        }
+
+        private TensorInfo tensorInfo(String name) {
+            NodeInfo nodeInfo = mInputInfo.get(name);
+            if (nodeInfo == null) {
+                throw new IllegalArgumentException("Model has no input " + name + ", inputs are " + mInputInfo.keySet());
+            }
+            if (!(nodeInfo.getInfo() instanceof TensorInfo)) {
+                throw new IllegalArgumentException("Input " + name + " is not a tensor");
+            }
+            return (TensorInfo) nodeInfo.getInfo();
+        }
+
+        /** ORT reads typed buffers as raw memory, so a view in the other byte order would be misread. */
+        private static void checkOrder(String name, ByteOrder order) {
+            if (order != ByteOrder.nativeOrder()) {
+                throw new IllegalArgumentException("Input " + name + " must be in native byte order");
+            }
+        }
+    }
+
+    private static final class Binding {
+        final Buffer mData;
+        final long[] mShape;
+        final OnnxJavaType mType;
+
+        Binding(Buffer data, long[] shape, OnnxJavaType type) {
+            mData = data;
+            mShape = shape;
+            mType = type;
+        }
+
+        OnnxTensor createTensor(OrtEnvironment environment) throws OrtException {
+            if (mData instanceof FloatBuffer) {
+                return OnnxTensor.createTensor(environment, (FloatBuffer) mData, mShape);
+            } else if (mData instanceof LongBuffer) {
+                return OnnxTensor.createTensor(environment, (LongBuffer) mData, mShape);
+            } else if (mData instanceof ShortBuffer) {
+                return OnnxTensor.createTensor(environment, (ShortBuffer) mData, mShape, mType);
+            }
+            return OnnxTensor.createTensor(environment, (ByteBuffer) mData, mShape, mType);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads and warms up models in the background when the app or a service starts, so that no
+ * caller pays for a cold session.
+ * <p>
+ * {@link #register} returns a readiness future per model. Once {@link #start()} has been
+ * called, each registered model is initialized on the preloader's executor, its warm-up rows
+ * are run through every session, and the future completes with the {@link StartupTimings} of
+ * the model. Callers on latency-sensitive threads check the future instead of calling the
+ * model while it may still be loading; the future completes exceptionally if the model fails
+ * to load or warm up. Combine it with an optimized-model cache directory in the
+ * {@link SessionConfig} to shorten the load itself on later starts.
+ */
+public final class ModelPreloader implements AutoCloseable {
+    public static final String TAG = "ModelPreloader";
+
+    private final ExecutorService mExecutor;
+    private final int mWarmupIterations;
+
+    /** Every registered model, in registration order. Guarded by {@code this}. */
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private boolean mStarted;
+    private boolean mClosed;
+
+    private ModelPreloader(Builder builder) {
+        mWarmupIterations = builder.mWarmupIterations;
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(builder.mNumThreads, r -> {
+            Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a model to preload. Models registered after {@link #start()} are preloaded
+     * right away.
+     *
+     * @param warmupRows Rows to score after loading, flattened in row-major order, or null
+     *                   to only load the model.
+     * @return A future that completes once the model is loaded and warmed up.
+     * @throws IllegalStateException if the preloader has been closed.
+     */
+    public synchronized CompletableFuture<StartupTimings> register(OnnxModel model, float[] warmupRows, int numRows) {
+        if (mClosed) {
+            throw new IllegalStateException("Cannot register " + model.getModelSource() + ": the preloader is closed");
+        }
+        if (warmupRows != null && (numRows <= 0 || warmupRows.length % numRows != 0)) {
+            throw new IllegalArgumentException("Warm-up rows do not split into " + numRows + " rows");
+        }
+        Registration registration = new Registration(model, warmupRows, numRows);
+        mRegistrations.add(registration);
+        if (mStarted) {
+            submit(registration, System.nanoTime());
+        }
+        return registration.mReady;
+    }
+
+    /**
+     * Starts preloading the registered models. Their startup timings are measured from this
+     * call, those of models registered later from their registration. Idempotent, and does
+     * nothing once the preloader has been closed.
+     */
+    public synchronized void start() {
+        if (mStarted || mClosed) {
+            return;
+        }
+        mStarted = true;
+        long startNanos = System.nanoTime();
+        for (Registration registration : mRegistrations) {
+            submit(registration, startNanos);
+        }
+    }
+
+    /**
+     * Stops the preloader's threads. Models that have not been preloaded yet are not loaded
+     * and their futures are cancelled. A model being loaded finishes loading before this
+     * returns, so that the caller can {@link OnnxModel#deinit()} it afterwards without a
+     * preload opening its sessions again behind it.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mExecutor.shutdownNow();
+            for (Registration registration : mRegistrations) {
+                registration.mReady.cancel(false);
+            }
+            mRegistrations.clear();
+        }
+        try {
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(Registration registration, long startNanos) {
+        mExecutor.execute(() -> preload(registration, startNanos));
+    }
+
+    private void preload(Registration registration, long startNanos) {
+        OnnxModel model = registration.mModel;
+        long loadStart = System.nanoTime();
+        model.init();
+        long loadNanos = System.nanoTime() - loadStart;
+        LoadedModel loaded = model.getLoadedModel();
+        if (loaded == null || !loaded.enter()) {
+            registration.mReady.completeExceptionally(
+                    new IllegalStateException("Failed to load " + model.getModelSource()));
+            return;
+        }
+
+        long firstRunNanos = 0;
+        long warmupStart = System.nanoTime();
+        try {
+            if (registration.mWarmupRows != null && mWarmupIterations > 0) {
+                firstRunNanos = OnnxModel.warmUp(loaded, registration.mWarmupRows, registration.mNumRows,
+                        mWarmupIterations);
+            }
+        } catch (OrtException | RuntimeException e) {
+            InferenceLog.e(TAG, "warm-up of " + model.getModelSource() + " error: " + e.getMessage(), e);
+            registration.mReady.completeExceptionally(e);
+            return;
+        } finally {
+            loaded.exit();
+        }
+        long readyNanos = System.nanoTime();
+
+        StartupTimings timings = new StartupTimings(model, loadNanos, firstRunNanos, readyNanos - warmupStart,
+                firstRunNanos > 0 ? warmupStart + firstRunNanos - startNanos : 0, readyNanos - startNanos);
+        InferenceLog.d(TAG, model.getModelSource() + ": " + timings);
+        registration.mReady.complete(timings);
+    }
+
+    private static final class Registration {
+        final OnnxModel mModel;
+        final float[] mWarmupRows;
+        final int mNumRows;
+        final CompletableFuture<StartupTimings> mReady = new CompletableFuture<>();
+
+        Registration(OnnxModel model, float[] warmupRows, int numRows) {
+            mModel = model;
+            mWarmupRows = warmupRows;
+            mNumRows = numRows;
+        }
+    }
+
+    /** How long a model took to become ready. Durations are in nanoseconds. */
+    public static final class StartupTimings {
+        private final OnnxModel mModel;
+        private final long mLoadNanos;
+        private final long mFirstRunNanos;
+        private final long mWarmupNanos;
+        private final long mTimeToFirstPredictionNanos;
+        private final long mTimeToReadyNanos;
+
+        private StartupTimings(OnnxModel model, long loadNanos, long firstRunNanos, long warmupNanos,
+                               long timeToFirstPredictionNanos, long timeToReadyNanos) {
+            mModel = model;
+            mLoadNanos = loadNanos;
+            mFirstRunNanos = firstRunNanos;
+            mWarmupNanos = warmupNanos;
+            mTimeToFirstPredictionNanos = timeToFirstPredictionNanos;
+            mTimeToReadyNanos = timeToReadyNanos;
+        }
+
+        public OnnxModel getModel() {
+            return mModel;
+        }
+
+        /** Time spent in {@link OnnxModel#init()}, creating or reusing the sessions. */
+        public long getLoadNanos() {
+            return mLoadNanos;
+        }
+
+        /** Duration of the first inference, which includes ORT's first-run initialization. */
+        public long getFirstRunNanos() {
+            return mFirstRunNanos;
+        }
+
+        /** Duration of all warm-up inferences, the first one included. */
+        public long getWarmupNanos() {
+            return mWarmupNanos;
+        }
+
+        /**
+         * Time from {@link ModelPreloader#start()} to the end of the first inference, or 0 if
+         * the model had no warm-up rows. This is the cold-start latency a caller would have
+         * seen without the preloader.
+         */
+        public long getTimeToFirstPredictionNanos() {
+            return mTimeToFirstPredictionNanos;
+        }
+
+        /** Time from {@link ModelPreloader#start()} until the model was ready. */
+        public long getTimeToReadyNanos() {
+            return mTimeToReadyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "load " + mLoadNanos / 1000 + " us, first run " + mFirstRunNanos / 1000 + " us, warm-up "
+                    + mWarmupNanos / 1000 + " us, first prediction after " + mTimeToFirstPredictionNanos / 1000
+                    + " us, ready after " + mTimeToReadyNanos / 1000 + " us";
+        }
+    }
+
+    public static final class Builder {
+        private int mNumThreads = 1;
+        private int mWarmupIterations = 3;
+
+        /** Models loaded in parallel; defaults to 1, which keeps startup I/O sequential. */
+        public Builder setNumThreads(int numThreads) {
+            mNumThreads = numThreads;
+            return this;
+        }
+
+        /** Warm-up runs per session; defaults to 3. */
+        public Builder setWarmupIterations(int warmupIterations) {
+            mWarmupIterations = warmupIterations;
+            return this;
+        }
+
+        public ModelPreloader build() {
+            if (mNumThreads <= 0 || mWarmupIterations < 0) {
+                throw new IllegalArgumentException("numThreads must be positive and warmupIterations not negative");
+            }
+            return new ModelPreloader(this);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a model is loaded from.
+ * <p>
+ * Implementations decide how the model bytes reach ORT: {@link FileModelSource} lets ORT read
+ * the file natively, {@link MappedFileModelSource} hands it a memory-mapped buffer, and
+ * {@link BytesModelSource} passes an array the caller already holds. None of them keep a copy
+ * of the model on the Java heap once the session has been created.
+ */
+public interface ModelSource {
+
+    /**
+     * Returns a string that uniquely identifies the model, used by the {@link SessionRegistry}
+     * to share sessions. Two sources with the same key must load the same model.
+     */
+    String getKey();
+
+    /**
+     * Returns something that changes when the model behind {@link #getKey()} does, for sources
+     * keyed by a location whose content can be replaced, such as a file overwritten by a newer
+     * model. The {@link SessionRegistry} adds it to its key so that it does not hand out a
+     * session of the old content. Read when a session is acquired, never on inference calls.
+     *
+     * @return The stamp, or null if the key alone identifies the content.
+     */
+    default String getVersionStamp() {
+        return null;
+    }
+
+    /**
+     * Creates a new session for this model. The caller owns the session and the options.
+     */
+    OrtSession createSession(OrtEnvironment environment, SessionOptions options) throws OrtException, IOException;
+
+    /**
+     * Returns the serialized model, for code that inspects it on the Java side such as
+     * {@link TreeEnsembleModel}. Sources map the model where they can rather than copying it.
+     *
+     * @return The model bytes, or null if this source cannot provide them.
+     */
+    default ByteBuffer readModel() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns where the {@link TuningProfile} of this model is kept, next to the model where
+     * it is a file of its own.
+     *
+     * @return The profile file, or null if this source has no place for one.
+     */
+    default File getTuningProfileFile() {
+        return null;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtSession.Result;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the native tensors created by this library and not yet closed, across every model in
+ * the process: the input tensors built per call, held by {@link ModelInputs} or pooled by
+ * {@link BatchTensorPool}, and the outputs of every {@link Result}. Each place that creates a
+ * tensor or runs a session passes it through {@code created} and releases it with
+ * {@code close}. Exported by {@link MetricsRecorder#getLiveTensorCount()}.
+ */
+final class NativeTensors {
+
+    private static final LongAdder sLive = new LongAdder();
+
+    private NativeTensors() {
+    }
+
+    static long getLiveCount() {
+        return sLive.sum();
+    }
+
+    /** Counts a tensor that was just created, and returns it. */
+    static OnnxTensor created(OnnxTensor tensor) {
+        sLive.increment();
+        return tensor;
+    }
+
+    /** Closes a tensor counted by {@link #created(OnnxTensor)}. */
+    static void close(OnnxTensor tensor) {
+        tensor.close();
+        sLive.decrement();
+    }
+
+    /** Counts the outputs of a run that just returned, and returns its result. */
+    static Result created(Result result) {
+        sLive.add(result.size());
+        return result;
+    }
+
+    /** Closes a result counted by {@link #created(Result)}, and every output in it. */
+    static void close(Result result) {
+        int size = result.size();
+        result.close();
+        sLive.add(-size);
+    }
+}
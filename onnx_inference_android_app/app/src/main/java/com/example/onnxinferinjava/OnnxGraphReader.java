@@ -0,0 +1,305 @@
+package com.example.onnxinferinjava;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal reader for the nodes of a serialized ONNX {@code ModelProto}.
+ * <p>
+ * Decodes just enough of the protobuf wire format to list the graph's nodes and their scalar
+ * and list attributes, without depending on a protobuf runtime. Tensor and graph attributes,
+ * initializers and everything else are skipped. Only {@code .onnx} files can be read; the
+ * {@code .ort} format is a FlatBuffer and is rejected.
+ */
+final class OnnxGraphReader {
+
+    // Field numbers from onnx.proto.
+    private static final int MODEL_GRAPH = 7;
+    private static final int GRAPH_NODE = 1;
+    private static final int NODE_INPUT = 1;
+    private static final int NODE_OUTPUT = 2;
+    private static final int NODE_OP_TYPE = 4;
+    private static final int NODE_ATTRIBUTE = 5;
+    private static final int NODE_DOMAIN = 7;
+    private static final int ATTRIBUTE_NAME = 1;
+    private static final int ATTRIBUTE_F = 2;
+    private static final int ATTRIBUTE_I = 3;
+    private static final int ATTRIBUTE_S = 4;
+    private static final int ATTRIBUTE_FLOATS = 7;
+    private static final int ATTRIBUTE_INTS = 8;
+    private static final int ATTRIBUTE_STRINGS = 9;
+    private static final int ATTRIBUTE_TYPE = 20;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    /** ORT format files carry this FlatBuffer file identifier at offset 4. */
+    private static final byte[] ORT_FILE_IDENTIFIER = "ORTM".getBytes(StandardCharsets.US_ASCII);
+
+    private OnnxGraphReader() {
+    }
+
+    /** A graph node with its attributes. List attributes keep their serialized order. */
+    static final class Node {
+        String mOpType = "";
+        String mDomain = "";
+        final List<String> mInputs = new ArrayList<>();
+        final List<String> mOutputs = new ArrayList<>();
+        final Map<String, Float> mFloat = new HashMap<>();
+        final Map<String, Long> mInt = new HashMap<>();
+        final Map<String, String> mString = new HashMap<>();
+        final Map<String, float[]> mFloats = new HashMap<>();
+        final Map<String, long[]> mInts = new HashMap<>();
+        final Map<String, List<String>> mStrings = new HashMap<>();
+        /** Names of attributes of a kind this reader does not decode, such as tensors. */
+        final List<String> mUnsupported = new ArrayList<>();
+    }
+
+    static boolean isOrtFormat(ByteBuffer model) {
+        if (model.remaining() < 8) {
+            return false;
+        }
+        for (int i = 0; i < ORT_FILE_IDENTIFIER.length; i++) {
+            if (model.get(model.position() + 4 + i) != ORT_FILE_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the nodes of the model's main graph, in graph order.
+     *
+     * @throws IllegalArgumentException if the buffer is not a well-formed ONNX model.
+     */
+    static List<Node> readNodes(ByteBuffer model) {
+        if (isOrtFormat(model)) {
+            throw new IllegalArgumentException("ORT format models cannot be read, use the .onnx file");
+        }
+        ByteBuffer buffer = model.slice().order(ByteOrder.LITTLE_ENDIAN);
+        List<Node> nodes = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            if (tag >>> 3 == MODEL_GRAPH && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                ByteBuffer graph = readDelimited(buffer);
+                while (graph.hasRemaining()) {
+                    int graphTag = (int) readVarint(graph);
+                    if (graphTag >>> 3 == GRAPH_NODE && (graphTag & 7) == WIRE_LENGTH_DELIMITED) {
+                        nodes.add(readNode(readDelimited(graph)));
+                    } else {
+                        skip(graph, graphTag & 7);
+                    }
+                }
+            } else {
+                skip(buffer, tag & 7);
+            }
+        }
+        return nodes;
+    }
+
+    private static Node readNode(ByteBuffer buffer) {
+        Node node = new Node();
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            int wireType = tag & 7;
+            switch (tag >>> 3) {
+                case NODE_INPUT:
+                    node.mInputs.add(readString(buffer));
+                    break;
+                case NODE_OUTPUT:
+                    node.mOutputs.add(readString(buffer));
+                    break;
+                case NODE_OP_TYPE:
+                    node.mOpType = readString(buffer);
+                    break;
+                case NODE_DOMAIN:
+                    node.mDomain = readString(buffer);
+                    break;
+                case NODE_ATTRIBUTE:
+                    readAttribute(readDelimited(buffer), node);
+                    break;
+                default:
+                    skip(buffer, wireType);
+                    break;
+            }
+        }
+        return node;
+    }
+
+    private static void readAttribute(ByteBuffer buffer, Node node) {
+        String name = null;
+        Float f = null;
+        Long i = null;
+        String s = null;
+        FloatList floats = null;
+        LongList ints = null;
+        List<String> strings = null;
+        boolean unsupported = false;
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            int wireType = tag & 7;
+            switch (tag >>> 3) {
+                case ATTRIBUTE_NAME:
+                    name = readString(buffer);
+                    break;
+                case ATTRIBUTE_F:
+                    f = buffer.getFloat();
+                    break;
+                case ATTRIBUTE_I:
+                    i = readVarint(buffer);
+                    break;
+                case ATTRIBUTE_S:
+                    s = readString(buffer);
+                    break;
+                case ATTRIBUTE_FLOATS:
+                    if (floats == null) {
+                        floats = new FloatList();
+                    }
+                    if (wireType == WIRE_LENGTH_DELIMITED) {
+                        ByteBuffer packed = readDelimited(buffer);
+                        while (packed.hasRemaining()) {
+                            floats.add(packed.getFloat());
+                        }
+                    } else {
+                        floats.add(buffer.getFloat());
+                    }
+                    break;
+                case ATTRIBUTE_INTS:
+                    if (ints == null) {
+                        ints = new LongList();
+                    }
+                    if (wireType == WIRE_LENGTH_DELIMITED) {
+                        ByteBuffer packed = readDelimited(buffer);
+                        while (packed.hasRemaining()) {
+                            ints.add(readVarint(packed));
+                        }
+                    } else {
+                        ints.add(readVarint(buffer));
+                    }
+                    break;
+                case ATTRIBUTE_STRINGS:
+                    if (strings == null) {
+                        strings = new ArrayList<>();
+                    }
+                    strings.add(readString(buffer));
+                    break;
+                case ATTRIBUTE_TYPE:
+                    // Implied by which value field is set.
+                    skip(buffer, wireType);
+                    break;
+                default:
+                    // t, g, tensors, graphs, sparse tensors, type protos.
+                    unsupported = true;
+                    skip(buffer, wireType);
+                    break;
+            }
+        }
+        if (name == null) {
+            return;
+        }
+        if (unsupported) {
+            node.mUnsupported.add(name);
+        } else if (f != null) {
+            node.mFloat.put(name, f);
+        } else if (i != null) {
+            node.mInt.put(name, i);
+        } else if (s != null) {
+            node.mString.put(name, s);
+        } else if (floats != null) {
+            node.mFloats.put(name, floats.toArray());
+        } else if (ints != null) {
+            node.mInts.put(name, ints.toArray());
+        } else if (strings != null) {
+            node.mStrings.put(name, strings);
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static ByteBuffer readDelimited(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated field");
+        }
+        ByteBuffer field = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        field.limit(length);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        ByteBuffer field = readDelimited(buffer);
+        byte[] bytes = new byte[field.remaining()];
+        field.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skip(ByteBuffer buffer, int wireType) {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(buffer);
+                break;
+            case WIRE_FIXED64:
+                buffer.position(buffer.position() + 8);
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                readDelimited(buffer);
+                break;
+            case WIRE_FIXED32:
+                buffer.position(buffer.position() + 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private static final class FloatList {
+        private float[] mValues = new float[16];
+        private int mSize;
+
+        void add(float value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        float[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+
+    private static final class LongList {
+        private long[] mValues = new long[16];
+        private int mSize;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
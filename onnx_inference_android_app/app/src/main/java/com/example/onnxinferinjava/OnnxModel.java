@@ -1,91 +1,257 @@
 package com.example.onnxinferinjava;
 
-import android.content.Context;
-import android.util.Log;
-
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxValue;
-import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
 import ai.onnxruntime.OrtSession.Result;
-import ai.onnxruntime.OrtSession.SessionOptions;
 import ai.onnxruntime.OnnxTensor;
 
-import java.io.InputStream;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 
+/**
+ * Wrapper around an ONNX Runtime session for one model.
+ * <p>
+ * Concurrency: once {@link #init()} has returned, any number of threads may call the
+ * {@code runInference*} methods concurrently; they share one session without taking a lock
+ * (ORT's {@code run} is thread-safe). {@link #deinit()} may be called at any time: calls that
+ * start after it are rejected (they return null or false) and it blocks until the calls
+ * already in flight have finished before releasing the session. {@code init()} and
+ * {@code deinit()} themselves are serialized. How ORT parallelizes a single call, and whether
+ * calls are spread over a pool of sessions, is set through the {@link SessionConfig}.
+ * <p>
+ * To replace the model while it serves requests, wrap it in a {@link ModelHandle}, which swaps
+ * the session underneath it without rejecting any call.
+ * <p>
+ * The {@code float[]} entry points feed the model's first input. Models with several inputs,
+ * or with int64 or float16 inputs, are fed through {@link #newInputs()} instead.
+ * <p>
+ * Nothing is logged on the inference path. To observe it, pass an {@link InferenceMetrics},
+ * such as a {@link MetricsRecorder}, to {@link #setMetrics}. To keep a record of every
+ * prediction, attach a {@link PredictionAuditLog} with {@link #setAuditLog}.
+ */
 public class OnnxModel {
     public static final String TAG = "OnnxModel";
 
-    private final Context mContext;
+    private volatile LoadedModel mLoadedModel;
+    private volatile InferenceMetrics mMetrics = InferenceMetrics.NOOP;
+    private volatile PredictionAuditLog mAuditLog;
 
-    private OrtEnvironment mOrtEnvironment;
-    private OrtSession mOrtSession;
-    private SessionOptions mSessionOptions;
+    private ModelSource mModelSource;
+    private final SessionConfig mSessionConfig;
 
-    private final String mModelAssetPath;
-    private InputStream mModelInputStream;
-    private byte[] mModelData;
+    public OnnxModel(ModelSource modelSource) {
+        this(modelSource, SessionConfig.DEFAULT);
+    }
 
-    public OnnxModel(Context context, String modelFile) {
-        mContext = context;
-        mModelAssetPath = modelFile;
+    public OnnxModel(ModelSource modelSource, SessionConfig sessionConfig) {
+        mModelSource = modelSource;
+        mSessionConfig = sessionConfig;
     }
 
-    public void init() {
-        Log.d(TAG, "OnnxModel onOpenSession enter");
+    /**
+     * Acquires the session for this model from the {@link SessionRegistry}. The session is
+     * shared with every other model instance using the same source and {@link SessionConfig},
+     * so only the first call in the process pays for loading and optimizing the model.
+     * Does nothing if the model is already initialized.
+     */
+    public synchronized void init() {
+        InferenceLog.d(TAG, "OnnxModel onOpenSession enter");
+        if (mLoadedModel != null) {
+            return;
+        }
         try {
-            mOrtEnvironment = OrtEnvironment.getEnvironment();
-            mSessionOptions = new SessionOptions();
-
-            mModelInputStream = mContext.getAssets().open(mModelAssetPath);
-            mModelData = mModelInputStream.readAllBytes();
-
-            mOrtSession = mOrtEnvironment.createSession(mModelData, mSessionOptions);
+            LoadedModel loadedModel = LoadedModel.load(mModelSource, mSessionConfig, mMetrics);
+            try {
+                onLoaded(loadedModel, mModelSource);
+            } catch (RuntimeException e) {
+                loadedModel.close();
+                throw e;
+            }
+            mLoadedModel = loadedModel;
         } catch (OrtException e) {
-            Log.e(TAG, "open session for " + mModelAssetPath + " error: " + e.getMessage(), e);
+            InferenceLog.e(TAG, "open session for " + mModelSource + " error: " + e.getMessage(), e);
         } catch (IOException e) {
-            Log.e(TAG, "open session IOException for " + mModelAssetPath + " error: " + e.getMessage(), e);
+            InferenceLog.e(TAG, "open session IOException for " + mModelSource + " error: " + e.getMessage(), e);
         } catch (Exception e) {
-            Log.e(TAG, "open session exception " + e.getMessage(), e);
-        } finally {
-            if (mModelInputStream != null) {
-                try {
-                    mModelInputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing InputStream: " + e.getMessage(), e);
-                }
-            }
+            InferenceLog.e(TAG, "open session exception " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Called with every newly loaded session before it starts serving calls, from
+     * {@link #init()} and from {@link ModelHandle} deploys. Subclasses can inspect the model or
+     * attach state to it.
+     */
+    void onLoaded(LoadedModel loadedModel, ModelSource source) {
+    }
 
-    public void deinit() {
-        Log.d(TAG, "OnnxModel onCloseSession enter");
+    /**
+     * Releases this model's reference to the shared session, after waiting for inference calls
+     * in flight to finish. The registry closes the session once it has been idle for its
+     * configured timeout.
+     */
+    public synchronized void deinit() {
+        InferenceLog.d(TAG, "OnnxModel onCloseSession enter");
+        LoadedModel loadedModel = mLoadedModel;
+        mLoadedModel = null;
+        if (loadedModel != null) {
+            loadedModel.close();
+        }
+        InferenceLog.d(TAG, "OnnxModel onCloseSession complete");
+    }
+
+    public boolean isInitialized() {
+        return mLoadedModel != null;
+    }
+
+    /**
+     * Sets where this model reports load times, call latencies and errors. Pass
+     * {@link InferenceMetrics#NOOP}, the default, to turn reporting off.
+     */
+    public void setMetrics(InferenceMetrics metrics) {
+        mMetrics = metrics != null ? metrics : InferenceMetrics.NOOP;
+    }
+
+    public InferenceMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Records the rows and predictions of every successful {@code float[]} call in
+     * {@code auditLog}, or stops recording if it is null. The log can be shared by several
+     * models and stays open when detached.
+     */
+    public void setAuditLog(PredictionAuditLog auditLog) {
+        mAuditLog = auditLog;
+    }
+
+    public PredictionAuditLog getAuditLog() {
+        return mAuditLog;
+    }
+
+    /**
+     * Stops ORT's profiler for the current session and returns the path of the trace file it
+     * wrote. Only meaningful when the {@link SessionConfig} enabled profiling. With a session
+     * pool every session writes its own trace; the others are logged.
+     *
+     * @return The trace file path of the first session, or null if the model is not
+     *         initialized or profiling fails.
+     */
+    public String endProfiling() {
+        LoadedModel model = enter();
+        if (model == null) {
+            return null;
+        }
         try {
-            if (mSessionOptions != null) {
-                mSessionOptions.close();
-                mSessionOptions = null;
-            }
-            if (mOrtSession != null) {
-                mOrtSession.close();
-                mOrtSession = null;
+            for (int i = 1; i < model.mSessions.length; i++) {
+                InferenceLog.d(TAG, "profile of pooled session " + i + ": " + model.mSessions[i].endProfiling());
             }
+            return model.mSession.endProfiling();
         } catch (OrtException e) {
-            Log.e(TAG, "close session for " + mModelAssetPath + " error: " + e.getMessage(), e);
+            InferenceLog.e(TAG, "end profiling error: " + e.getMessage(), e);
+            return null;
         } finally {
-            mOrtEnvironment = null;
-            mModelData = null;
-            mModelInputStream = null;
-            Log.d(TAG, "OnnxModel onCloseSession complete");
+            model.exit();
+        }
+    }
+
+    ModelSource getModelSource() {
+        return mModelSource;
+    }
+
+    SessionConfig getSessionConfig() {
+        return mSessionConfig;
+    }
+
+    LoadedModel getLoadedModel() {
+        return mLoadedModel;
+    }
+
+    /**
+     * Makes {@code next} the session that new calls run on, without closing the previous one.
+     * Calls already in flight finish on the previous session; the caller decides when to close
+     * it.
+     *
+     * @return The previously loaded model, or null if there was none.
+     */
+    synchronized LoadedModel swap(LoadedModel next, ModelSource source) {
+        LoadedModel previous = mLoadedModel;
+        mLoadedModel = next;
+        mModelSource = source;
+        return previous;
+    }
+
+    /**
+     * Registers an inference call against the current session. If the session is closed by a
+     * concurrent swap between reading it and entering it, the call moves on to its replacement.
+     *
+     * @return The loaded model, which the caller must {@link LoadedModel#exit()} when done, or
+     *         null if the model is not initialized or is being closed.
+     */
+    private LoadedModel enter() {
+        LoadedModel loadedModel = mLoadedModel;
+        while (loadedModel != null && !loadedModel.enter()) {
+            LoadedModel current = mLoadedModel;
+            if (current == loadedModel) {
+                loadedModel = null;
+            } else {
+                loadedModel = current;
+            }
+        }
+        if (loadedModel == null) {
+            InferenceLog.e(TAG, "OrtSession is null.");
+            recordError(InferenceMetrics.ERROR_NOT_LOADED);
+        }
+        return loadedModel;
+    }
+
+    /**
+     * Records an error of a call that has not entered a model, under the key of the version
+     * currently loaded, or the source's key if there is none.
+     */
+    private void recordError(String errorType) {
+        LoadedModel model = mLoadedModel;
+        mMetrics.onError(model != null ? model.mModelKey : mModelSource.getKey(), errorType);
+    }
+
+    private void recordError(LoadedModel model, String errorType) {
+        mMetrics.onError(model.mModelKey, errorType);
+    }
+
+    private void recordError(LoadedModel model, OrtException e) {
+        recordError(model, e.getCode().name());
+    }
+
+    /**
+     * Records a failed call as cancelled if its token has expired, which is what makes ORT
+     * fail a terminated run.
+     *
+     * @return true if the failure was recorded, false if it is a genuine error.
+     */
+    private boolean recordIfExpired(LoadedModel model, CancellationToken token) {
+        if (token != null && token.isExpired()) {
+            recordError(model, token.getErrorType());
+            return true;
         }
+        return false;
+    }
+
+    /** Returns true, after recording it, if the call's token has already expired. */
+    boolean rejectExpired(CancellationToken token) {
+        if (token != null && token.isExpired()) {
+            recordError(token.getErrorType());
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -99,275 +265,613 @@ public class OnnxModel {
      * @return A map containing all outputs, or null if inference fails. The keys
      *         of the map are the output names (Strings), and the values are the
      *         corresponding output values (Objects).  The specific type of the
-     *         output value depends on the model definition.
+     *         output value depends on the model definition: for a tensor of rank 2 or more
+     *         it is the primitive array of the first row, for a rank-1 tensor its first
+     *         element, and for a ZipMap output the scores of the first row.
+     * @see #runInferenceOutputs(float[], int)
      */
     public Map<String, Object> runInference(float[] inputData) {
-        Log.d(TAG, "runInference() called with: inputData = [" + inputData + "]");
+        InferenceOutputs outputs = runInferenceOutputs(inputData, 1);
+        if (outputs == null) {
+            return null;
+        }
 
-        if (mOrtSession == null) {
-            Log.e(TAG, "OrtSession is null.");
+        Map<String, Object> outputMap = new HashMap<>();
+        for (OutputDecoder decoder : outputs.getDecoders()) {
+            Object value = firstRow(decoder, outputs.get(decoder.mName));
+            if (value != null) {
+                outputMap.put(decoder.mName, value);
+            } else {
+                InferenceLog.w(TAG, "Output " + decoder.mName + " not found in results.");
+            }
+        }
+        return outputMap;
+    }
+
+    private static Object firstRow(OutputDecoder decoder, Object value) {
+        if (value == null) {
             return null;
         }
+        boolean scalarRows = decoder.mRank <= 1;
+        switch (decoder.mKind) {
+            case FLOAT_TENSOR: {
+                float[] values = (float[]) value;
+                return scalarRows && values.length > 0 ? (Object) values[0] : values;
+            }
+            case LONG_TENSOR: {
+                long[] values = (long[]) value;
+                return scalarRows && values.length > 0 ? (Object) values[0] : values;
+            }
+            case INT_TENSOR: {
+                int[] values = (int[]) value;
+                return scalarRows && values.length > 0 ? (Object) values[0] : values;
+            }
+            case DOUBLE_TENSOR: {
+                double[] values = (double[]) value;
+                return scalarRows && values.length > 0 ? (Object) values[0] : values;
+            }
+            case SCORE_MAPS: {
+                float[][] rows = (float[][]) value;
+                return rows.length > 0 ? rows[0] : rows;
+            }
+            default:
+                if (value.getClass().isArray() && Array.getLength(value) > 0) {
+                    return Array.get(value, 0);
+                }
+                return value;
+        }
+    }
 
-        try {
-            Iterator<String> inputNameIterator = mOrtSession.getInputNames().iterator();
-            if (!inputNameIterator.hasNext()) {
-                Log.e(TAG, "No input names found in ONNX model.");
+    /**
+     * Runs inference on the ONNX model and returns the specified output.
+     *
+     * @param inputData  The input data for the model.
+     * @param outputName The name of the output to return.
+     * @return The specified output, or null if inference fails or the output is not found.
+     */
+    public Object runInference(float[] inputData, String outputName) {
+        LoadedModel model = mLoadedModel;
+        if (model != null && !model.mDecoders.containsKey(outputName)) {
+            InferenceLog.w(TAG, "Output " + outputName + " not found in results.");
+            return null;
+        }
+
+        InferenceOutputs outputs = runInferenceOutputs(inputData, 1, Collections.singleton(outputName), null);
+        return outputs != null ? firstRow(outputs.getDecoder(outputName), outputs.get(outputName)) : null;
+    }
+
+    /**
+     * Runs inference on a batch of rows with a single native call.
+     *
+     * @param rows The input rows; all rows must have the same number of features.
+     * @return A map from output name to the full batch output, or null if inference fails.
+     * @see #runInferenceBatch(float[], int)
+     */
+    public Map<String, Object> runInferenceBatch(float[][] rows) {
+        float[] flatRows = flattenRows(rows);
+        return flatRows != null ? runInferenceBatch(flatRows, rows.length) : null;
+    }
+
+    /**
+     * Copies rows into one row-major array.
+     *
+     * @return The flattened rows, or null if there are no rows or their lengths differ.
+     */
+    static float[] flattenRows(float[][] rows) {
+        if (rows.length == 0) {
+            InferenceLog.e(TAG, "No rows to run inference on.");
+            return null;
+        }
+
+        int numFeatures = rows[0].length;
+        float[] flatRows = new float[rows.length * numFeatures];
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].length != numFeatures) {
+                InferenceLog.e(TAG, "Row " + i + " has " + rows[i].length + " features, expected " + numFeatures + ".");
                 return null;
             }
-            String inputName = inputNameIterator.next();
+            System.arraycopy(rows[i], 0, flatRows, i * numFeatures, numFeatures);
+        }
+        return flatRows;
+    }
 
-            FloatBuffer floatBufferInputs = FloatBuffer.wrap(inputData);
-            OnnxTensor inputTensor = OnnxTensor.createTensor(mOrtEnvironment, floatBufferInputs, new long[]{1, inputData.length});
+    /**
+     * Runs inference on a batch of rows with a single native call.
+     * <p>
+     * The rows are passed as one row-major array and fed to the model as a single
+     * {@code [numRows, rows.length / numRows]} tensor. Unlike {@link #runInference(float[])},
+     * every output is returned for the whole batch: rank-2 float tensors and ZipMap-style
+     * outputs as {@code float[numRows][columns]} matrices, other tensors as flat row-major
+     * arrays (for example {@code long[numRows]} for a label output).
+     *
+     * @param rows    The input rows, flattened in row-major order.
+     * @param numRows The number of rows in {@code rows}.
+     * @return A map from output name to the full batch output, or null if inference fails.
+     * @see #runInferenceOutputs(float[], int)
+     */
+    public Map<String, Object> runInferenceBatch(float[] rows, int numRows) {
+        InferenceOutputs outputs = runInferenceOutputs(rows, numRows);
+        if (outputs == null) {
+            return null;
+        }
 
-            Result results = mOrtSession.run(Collections.singletonMap(inputName, inputTensor));
+        Map<String, Object> outputMap = new HashMap<>();
+        for (OutputDecoder decoder : outputs.getDecoders()) {
+            if (!outputs.contains(decoder.mName)) {
+                continue;
+            }
+            boolean matrix = decoder.mKind == OutputDecoder.Kind.FLOAT_TENSOR && decoder.mRank == 2;
+            outputMap.put(decoder.mName, matrix ? outputs.getFloatMatrix(decoder.mName) : outputs.get(decoder.mName));
+        }
+        return outputMap;
+    }
 
-            Map<String, Object> outputMap = new HashMap<>();
+    /**
+     * Runs inference on {@code numRows} row-major rows and returns every output, decoded by the
+     * decoder chosen for it from the model's output info when the session was opened.
+     * <p>
+     * Tensor outputs are read with one bulk copy into a primitive array; nothing is boxed,
+     * logged or reflected on per call.
+     *
+     * @param rows    The input rows, flattened in row-major order.
+     * @param numRows The number of rows in {@code rows}.
+     * @return The decoded outputs, or null if inference fails.
+     */
+    public InferenceOutputs runInferenceOutputs(float[] rows, int numRows) {
+        return runInferenceOutputs(rows, numRows, null);
+    }
 
-            Set<String> outputNames = mOrtSession.getOutputInfo().keySet();
-            for (String outputName : outputNames) {
-                Optional<?> outputObj = results.get(outputName);
-                if (outputObj.isPresent()) {
-                    Object value = ((OnnxValue) outputObj.get()).getValue();
+    /**
+     * Like {@link #runInferenceOutputs(float[], int)}, but gives up when {@code token} expires:
+     * the call is rejected if it already has, and stopped inside ORT if it expires while the
+     * call runs.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return The decoded outputs, or null if inference fails or the token expired.
+     */
+    public InferenceOutputs runInferenceOutputs(float[] rows, int numRows, CancellationToken token) {
+        return runInferenceOutputs(rows, numRows, null, token);
+    }
 
-                    if (value instanceof long[][]) {
-                        long[][] long2DArray = (long[][]) value;
-                        Log.d(TAG, "  Detected long[][]");
-                        if (long2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first long[]: " + java.util.Arrays.toString(long2DArray[0]));
-                            outputMap.put(outputName, long2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof float[][]) {
-                        float[][] float2DArray = (float[][]) value;
-                        Log.d(TAG, "  Detected float[][]");
-                        if (float2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first float[]: " + java.util.Arrays.toString(float2DArray[0]));
-                            outputMap.put(outputName, float2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof int[][]) {
-                        int[][] int2DArray = (int[][]) value;
-                        Log.d(TAG, "  Detected int[][]");
-                        if (int2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first int[]: " + java.util.Arrays.toString(int2DArray[0]));
-                            outputMap.put(outputName, int2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof double[][]) {
-                        double[][] double2DArray = (double[][]) value;
-                        Log.d(TAG, "  Detected double[][]");
-                        if (double2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first double[]: " + java.util.Arrays.toString(double2DArray[0]));
-                            outputMap.put(outputName, double2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof byte[][]) {
-                        byte[][] byte2DArray = (byte[][]) value;
-                        Log.d(TAG, "  Detected byte[][]");
-                        if (byte2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first byte[]: " + java.util.Arrays.toString(byte2DArray[0]));
-                            outputMap.put(outputName, byte2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof short[][]) {
-                        short[][] short2DArray = (short[][]) value;
-                        Log.d(TAG, "  Detected short[][]");
-                        if (short2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first short[]: " + java.util.Arrays.toString(short2DArray[0]));
-                            outputMap.put(outputName, short2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof boolean[][]) {
-                        boolean[][] boolean2DArray = (boolean[][]) value;
-                        Log.d(TAG, "  Detected boolean[][]");
-                        if (boolean2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first boolean[]: " + java.util.Arrays.toString(boolean2DArray[0]));
-                            outputMap.put(outputName, boolean2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof String[][]) {
-                        String[][] string2DArray = (String[][]) value;
-                        Log.d(TAG, "  Detected String[][]");
-                        if (string2DArray.length > 0) {
-                            Log.d(TAG, "  Extracted first String[]: " + java.util.Arrays.toString(string2DArray[0]));
-                            outputMap.put(outputName, string2DArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof long[]) {
-                        long[] longArray = (long[]) value;
-                        Log.d(TAG, "  Detected long[]");
-                        if (longArray.length > 0) {
-                            Log.d(TAG, "  Extracted first long: " + longArray[0]);
-                            outputMap.put(outputName, longArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof float[]) {
-                        float[] floatArray = (float[]) value;
-                        Log.d(TAG, "  Detected float[]");
-                        if (floatArray.length > 0) {
-                            Log.d(TAG, "  Extracted first float: " + floatArray[0]);
-                            outputMap.put(outputName, floatArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof int[]) {
-                        int[] intArray = (int[]) value;
-                        Log.d(TAG, "  Detected int[]");
-                        if (intArray.length > 0) {
-                            Log.d(TAG, "  Extracted first int: " + intArray[0]);
-                            outputMap.put(outputName, intArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof double[]) {
-                        double[] doubleArray = (double[]) value;
-                        Log.d(TAG, "  Detected double[]");
-                        if (doubleArray.length > 0) {
-                            Log.d(TAG, "  Extracted first double: " + doubleArray[0]);
-                            outputMap.put(outputName, doubleArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof byte[]) {
-                        byte[] byteArray = (byte[]) value;
-                        Log.d(TAG, "  Detected byte[]");
-                        if (byteArray.length > 0) {
-                            Log.d(TAG, "  Extracted first byte: " + byteArray[0]);
-                            outputMap.put(outputName, byteArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof short[]) {
-                        short[] shortArray = (short[]) value;
-                        Log.d(TAG, "  Detected short[]");
-                        if (shortArray.length > 0) {
-                            Log.d(TAG, "  Extracted first short: " + shortArray[0]);
-                            outputMap.put(outputName, shortArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof boolean[]) {
-                        boolean[] booleanArray = (boolean[]) value;
-                        Log.d(TAG, "  Detected boolean[]");
-                        if (booleanArray.length > 0) {
-                            Log.d(TAG, "  Extracted first boolean: " + booleanArray[0]);
-                            outputMap.put(outputName, booleanArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else if (value instanceof String[]) {
-                        String[] stringArray = (String[]) value;
-                        Log.d(TAG, "  Detected String[]");
-                        if (stringArray.length > 0) {
-                            Log.d(TAG, "  Extracted first String: " + stringArray[0]);
-                            outputMap.put(outputName, stringArray[0]);
-                        } else {
-                            outputMap.put(outputName, value);
-                        }
-                    } else {
-                        Log.w(TAG, "  Unsupported type for extracting first element: " + value.getClass().getName());
-                    }
-                } else {
-                    Log.w(TAG, "Output " + outputName + " not found in results.");
-                }
-            }
-            return outputMap;
+    /**
+     * Like {@link #runInferenceOutputs(float[], int, CancellationToken)}, but only fetches and
+     * decodes the named outputs; the others are missing from the result. Skipping outputs the
+     * caller does not read, e.g. a ZipMap probability output when only labels are needed,
+     * saves converting them into Java objects.
+     *
+     * @param outputNames The outputs to fetch, or null for all of them.
+     * @param token       The token to observe, or null to run to completion.
+     * @return The decoded outputs, or null if inference fails or the token expired.
+     */
+    public InferenceOutputs runInferenceOutputs(float[] rows, int numRows, Set<String> outputNames,
+                                                CancellationToken token) {
+        if (numRows <= 0 || rows.length % numRows != 0) {
+            InferenceLog.e(TAG, "Cannot split " + rows.length + " values into " + numRows + " rows.");
+            recordError(InferenceMetrics.ERROR_INVALID_ARGUMENT);
+            return null;
+        }
+        if (rejectExpired(token)) {
+            return null;
+        }
+        LoadedModel model = enter();
+        if (model == null) {
+            return null;
+        }
 
+        PredictionAuditLog auditLog = mAuditLog;
+        long start = auditLog != null ? System.nanoTime() : 0;
+        try {
+            InferenceOutputs outputs = run(model, rows, numRows, outputNames, mMetrics, token);
+            if (auditLog != null) {
+                auditLog.record(model.mModelKey, rows, numRows, outputs, System.nanoTime() - start);
+            }
+            return outputs;
         } catch (OrtException e) {
-            Log.e(TAG, "Inference failed: " + e.getMessage(), e);
+            if (!recordIfExpired(model, token)) {
+                InferenceLog.e(TAG, "Inference failed: " + e.getMessage(), e);
+                recordError(model, e);
+            }
             return null;
+        } finally {
+            model.exit();
         }
     }
 
     /**
-     * Runs inference on the ONNX model and returns the specified output.
+     * Returns a builder for inputs bound to caller-owned direct buffers, checked against the
+     * inputs of the currently loaded model. Use it for models with several inputs, with int64
+     * or float16 inputs, or when the features are already in native memory.
      *
-     * @param inputData  The input data for the model.
-     * @param outputName The name of the output to return.
-     * @return The specified output, or null if inference fails or the output is not found.
+     * @throws IllegalStateException if the model is not initialized.
      */
-    public Object runInference(float[] inputData, String outputName) {
-        Log.d(TAG, "runInference() called with: inputData = [" + inputData + "], outputName = [" + outputName + "]");
+    public ModelInputs.Builder newInputs() {
+        LoadedModel model = mLoadedModel;
+        if (model == null) {
+            throw new IllegalStateException("Model is not initialized");
+        }
+        return new ModelInputs.Builder(model.mEnvironment, model.mInputInfo);
+    }
 
-        Map<String, Object> outputMap = runInference(inputData);
+    /**
+     * Runs inference on inputs from {@link #newInputs()} and returns every output, decoded as
+     * by {@link #runInferenceOutputs(float[], int)}. The input tensors are used as they are,
+     * so nothing is copied into ORT.
+     *
+     * @return The decoded outputs, or null if inference fails.
+     */
+    public InferenceOutputs runInferenceOutputs(ModelInputs inputs) {
+        return runInferenceOutputs(inputs, null);
+    }
+
+    /**
+     * Like {@link #runInferenceOutputs(ModelInputs)}, but gives up when {@code token} expires.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return The decoded outputs, or null if inference fails or the token expired.
+     */
+    public InferenceOutputs runInferenceOutputs(ModelInputs inputs, CancellationToken token) {
+        return runInferenceOutputs(inputs, null, token);
+    }
 
-        if (outputMap == null) {
+    /**
+     * Like {@link #runInferenceOutputs(ModelInputs, CancellationToken)}, but only fetches and
+     * decodes the named outputs.
+     *
+     * @param outputNames The outputs to fetch, or null for all of them.
+     * @param token       The token to observe, or null to run to completion.
+     * @return The decoded outputs, or null if inference fails or the token expired.
+     */
+    public InferenceOutputs runInferenceOutputs(ModelInputs inputs, Set<String> outputNames, CancellationToken token) {
+        if (rejectExpired(token)) {
+            return null;
+        }
+        LoadedModel model = enter();
+        if (model == null) {
             return null;
         }
 
-        if (outputMap.containsKey(outputName)) {
-            return outputMap.get(outputName);
-        } else {
-            Log.w(TAG, "Output " + outputName + " not found in results.");
+        int session = model.acquireSession();
+        try {
+            long start = mMetrics != InferenceMetrics.NOOP ? System.nanoTime() : 0;
+            return run(model, session, inputs.getTensors(), inputs.getNumRows(), outputNames, mMetrics, token,
+                    start, start);
+        } catch (OrtException e) {
+            if (!recordIfExpired(model, token)) {
+                InferenceLog.e(TAG, "Inference failed: " + e.getMessage(), e);
+                recordError(model, e);
+            }
             return null;
+        } finally {
+            model.releaseSession(session);
+            model.exit();
         }
     }
 
+    /**
+     * Runs and decodes one batch on a model the caller has already entered, reporting the
+     * time of each stage to {@code metrics} unless it is {@link InferenceMetrics#NOOP}.
+     */
+    static InferenceOutputs run(LoadedModel model, float[] rows, int numRows, InferenceMetrics metrics)
+            throws OrtException {
+        return run(model, rows, numRows, null, metrics, null);
+    }
+
+    /**
+     * Runs and decodes one batch like {@link #run(LoadedModel, float[], int, InferenceMetrics)},
+     * fetching only {@code outputNames} unless it is null and stopping the run if
+     * {@code token} expires. A terminated run fails with an {@link OrtException}.
+     */
+    static InferenceOutputs run(LoadedModel model, float[] rows, int numRows, Set<String> outputNames,
+                                InferenceMetrics metrics, CancellationToken token) throws OrtException {
+        int session = model.acquireSession();
+        try {
+            return run(model, session, rows, numRows, outputNames, metrics, token);
+        } finally {
+            model.releaseSession(session);
+        }
+    }
+
+    /**
+     * Runs every session of a model the caller has already entered on the given rows
+     * {@code iterations} times, so that ORT's first-run allocations and the output decoders'
+     * caches are not paid for by a caller.
+     *
+     * @return The duration of the first run, in nanoseconds.
+     */
+    static long warmUp(LoadedModel model, float[] rows, int numRows, int iterations) throws OrtException {
+        long firstRunNanos = 0;
+        for (int session = 0; session < model.mSessions.length; session++) {
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                run(model, session, rows, numRows, null, InferenceMetrics.NOOP, null);
+                if (session == 0 && i == 0) {
+                    firstRunNanos = System.nanoTime() - start;
+                }
+            }
+        }
+        return firstRunNanos;
+    }
+
+    private static InferenceOutputs run(LoadedModel model, int session, float[] rows, int numRows,
+                                        Set<String> outputNames, InferenceMetrics metrics, CancellationToken token)
+            throws OrtException {
+        boolean timed = metrics != InferenceMetrics.NOOP;
+        long start = timed ? System.nanoTime() : 0;
+        long[] shape = new long[]{numRows, rows.length / numRows};
+        OnnxTensor inputTensor = NativeTensors.created(
+                OnnxTensor.createTensor(model.mEnvironment, FloatBuffer.wrap(rows), shape));
+        try {
+            long built = timed ? System.nanoTime() : 0;
+            return run(model, session, Collections.singletonMap(model.mInputName, inputTensor), numRows, outputNames,
+                    metrics, token, start, built);
+        } finally {
+            NativeTensors.close(inputTensor);
+        }
+    }
+
+    /**
+     * Runs built input tensors on one session and decodes the outputs in {@code outputNames},
+     * or every output if it is null. {@code start} and
+     * {@code built} are when building the inputs started and ended, only read if
+     * {@code metrics} is not {@link InferenceMetrics#NOOP}.
+     */
+    private static InferenceOutputs run(LoadedModel model, int session, Map<String, OnnxTensor> inputs, int numRows,
+                                        Set<String> outputNames, InferenceMetrics metrics, CancellationToken token,
+                                        long start, long built) throws OrtException {
+        boolean timed = metrics != InferenceMetrics.NOOP;
+        Set<String> fetched = outputNames != null ? outputNames : model.mOutputInfo.keySet();
+        try (CancellationToken.Run run = token != null ? token.newRun() : null) {
+            Result results = NativeTensors.created(run != null
+                    ? model.mSessions[session].run(inputs, fetched, run.getRunOptions())
+                    : model.mSessions[session].run(inputs, fetched));
+            try {
+                long ran = timed ? System.nanoTime() : 0;
+                InferenceOutputs outputs = new InferenceOutputs(model.mDecoders, numRows);
+                for (Map.Entry<String, OnnxValue> output : results) {
+                    OutputDecoder decoder = model.mDecoders.get(output.getKey());
+                    OnnxValue value = output.getValue();
+                    outputs.set(decoder, decoder.decode(value), OutputDecoder.shapeOf(value));
+                }
+                if (timed) {
+                    metrics.onInference(model.mModelKey, numRows, built - start, ran - built, System.nanoTime() - ran);
+                }
+                return outputs;
+            } finally {
+                NativeTensors.close(results);
+            }
+        }
+    }
+
+    /**
+     * Runs inference on {@code numRows} row-major rows and copies one int64 tensor output into
+     * a caller-owned array.
+     * <p>
+     * This is the allocation-light hot path: input rows are copied into a pooled direct buffer
+     * that the input tensor wraps, ORT writes the output straight into a pooled pinned tensor,
+     * only the requested output is computed, and nothing is boxed or logged. The remaining
+     * per-call garbage is what {@link OrtSession#run} itself allocates for its {@link Result}.
+     * An output with a dynamic dimension other than the batch cannot be pinned; ORT allocates
+     * it per call and it is copied out.
+     * Only tensor outputs are supported; ZipMap-style outputs must go through
+     * {@link #runInferenceBatch(float[], int)}.
+     *
+     * @param rows       The input rows, flattened in row-major order.
+     * @param numRows    The number of rows to score.
+     * @param outputName The output to fetch; must be an int64 tensor.
+     * @param out        Receives the output; must hold at least as many elements as the output.
+     * @return true on success, false if inference fails, the output is not an int64 tensor or it
+     *         does not fit in {@code out}.
+     */
+    public boolean runInferenceInto(float[] rows, int numRows, String outputName, long[] out) {
+        return runPooled(rows, numRows, outputName, out, null, null);
+    }
+
+    /**
+     * Like {@link #runInferenceInto(float[], int, String, long[])}, but gives up when
+     * {@code token} expires.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return true on success, false if inference fails or the token expired.
+     * @see #runInferenceOutputs(float[], int, CancellationToken)
+     */
+    public boolean runInferenceInto(float[] rows, int numRows, String outputName, long[] out,
+                                    CancellationToken token) {
+        return runPooled(rows, numRows, outputName, out, null, token);
+    }
+
+    /**
+     * Runs inference on {@code numRows} row-major rows and copies one float tensor output into
+     * a caller-owned array.
+     *
+     * @see #runInferenceInto(float[], int, String, long[])
+     */
+    public boolean runInferenceInto(float[] rows, int numRows, String outputName, float[] out) {
+        return runPooled(rows, numRows, outputName, null, out, null);
+    }
+
+    /**
+     * Like {@link #runInferenceInto(float[], int, String, float[])}, but gives up when
+     * {@code token} expires.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return true on success, false if inference fails or the token expired.
+     */
+    public boolean runInferenceInto(float[] rows, int numRows, String outputName, float[] out,
+                                    CancellationToken token) {
+        return runPooled(rows, numRows, outputName, null, out, token);
+    }
+
+    private boolean runPooled(float[] rows, int numRows, String outputName, long[] longOut, float[] floatOut,
+                              CancellationToken token) {
+        if (rejectExpired(token)) {
+            return false;
+        }
+        LoadedModel model = enter();
+        if (model == null) {
+            return false;
+        }
+        BatchTensorPool pool = model.mTensorPool;
+        if (pool == null) {
+            InferenceLog.e(TAG, "Model input has no fixed feature count.");
+            recordError(model, InferenceMetrics.ERROR_INVALID_ARGUMENT);
+            model.exit();
+            return false;
+        }
+        if (numRows <= 0 || rows.length < numRows * pool.getNumFeatures()) {
+            InferenceLog.e(TAG, "Cannot read " + numRows + " rows from " + rows.length + " values.");
+            recordError(model, InferenceMetrics.ERROR_INVALID_ARGUMENT);
+            model.exit();
+            return false;
+        }
+
+        InferenceMetrics metrics = mMetrics;
+        PredictionAuditLog auditLog = mAuditLog;
+        boolean timed = metrics != InferenceMetrics.NOOP || auditLog != null;
+        long start = timed ? System.nanoTime() : 0;
+        BatchTensorPool.Batch batch = null;
+        try {
+            OnnxJavaType type = pool.getOutputType(outputName);
+            if (type != (longOut != null ? OnnxJavaType.INT64 : OnnxJavaType.FLOAT)) {
+                InferenceLog.e(TAG, "Output " + outputName + " is not a tensor of the requested type.");
+                recordError(model, InferenceMetrics.ERROR_INVALID_ARGUMENT);
+                return false;
+            }
+            batch = pool.acquire(numRows);
+            // Null when the output has a dynamic dimension besides the batch; ORT allocates it.
+            BatchTensorPool.PinnedOutput pinned = batch.getPinnedOutput(outputName);
+            int capacity = longOut != null ? longOut.length : floatOut.length;
+            if (pinned != null && capacity < pinned.mNumElements) {
+                logOutputTooLarge(outputName, pinned.mNumElements, capacity);
+                recordError(model, InferenceMetrics.ERROR_INVALID_ARGUMENT);
+                return false;
+            }
+
+            batch.fill(rows);
+            long built = timed ? System.nanoTime() : 0;
+            long ran;
+            int session = model.acquireSession();
+            try (CancellationToken.Run run = token != null ? token.newRun() : null) {
+                if (pinned != null) {
+                    Result result = NativeTensors.created(run != null
+                            ? model.mSessions[session].run(batch.mInputs, Collections.emptySet(), pinned.mPinned,
+                                    run.getRunOptions())
+                            : model.mSessions[session].run(batch.mInputs, pinned.mPinned));
+                    // ORT wrote the output into the pinned tensor; the result holds nothing else.
+                    NativeTensors.close(result);
+                    ran = timed ? System.nanoTime() : 0;
+                    if (longOut != null) {
+                        pinned.copyTo(longOut);
+                    } else {
+                        pinned.copyTo(floatOut);
+                    }
+                } else {
+                    Set<String> requested = Collections.singleton(outputName);
+                    Result result = NativeTensors.created(run != null
+                            ? model.mSessions[session].run(batch.mInputs, requested, run.getRunOptions())
+                            : model.mSessions[session].run(batch.mInputs, requested));
+                    try {
+                        ran = timed ? System.nanoTime() : 0;
+                        OnnxTensor tensor = (OnnxTensor) result.get(0);
+                        Buffer values = longOut != null ? tensor.getLongBuffer() : tensor.getFloatBuffer();
+                        if (values.remaining() > capacity) {
+                            logOutputTooLarge(outputName, values.remaining(), capacity);
+                            recordError(model, InferenceMetrics.ERROR_INVALID_ARGUMENT);
+                            return false;
+                        }
+                        if (longOut != null) {
+                            ((LongBuffer) values).get(longOut, 0, values.remaining());
+                        } else {
+                            ((FloatBuffer) values).get(floatOut, 0, values.remaining());
+                        }
+                    } finally {
+                        NativeTensors.close(result);
+                    }
+                }
+            } finally {
+                model.releaseSession(session);
+            }
+            if (timed) {
+                long end = System.nanoTime();
+                metrics.onInference(model.mModelKey, numRows, built - start, ran - built, end - ran);
+                if (auditLog != null) {
+                    auditLog.record(model.mModelKey, rows, numRows, outputName, longOut, floatOut, end - start);
+                }
+            }
+            return true;
+        } catch (OrtException e) {
+            if (!recordIfExpired(model, token)) {
+                InferenceLog.e(TAG, "Pooled inference failed: " + e.getMessage(), e);
+                recordError(model, e);
+            }
+            return false;
+        } finally {
+            if (batch != null) {
+                pool.release(batch);
+            }
+            model.exit();
+        }
+    }
+
+    private static void logOutputTooLarge(String outputName, long numElements, int capacity) {
+        InferenceLog.e(TAG, "Output " + outputName + " has " + numElements + " elements but only " + capacity
+                + " fit.");
+    }
+
     public static void printInferenceResult(Map<String, Object> result) {
         if (result == null) {
-            Log.d(TAG, "Inference result is null.");
+            InferenceLog.d(TAG, "Inference result is null.");
             return;
         }
 
-        Log.d(TAG, "Inference result:");
+        InferenceLog.d(TAG, "Inference result:");
         for (Map.Entry<String, Object> entry : result.entrySet()) {
             String key = entry.getKey();
             Object value = entry.getValue();
 
-            Log.d(TAG, "  Key: " + key);
+            InferenceLog.d(TAG, "  Key: " + key);
 
             if (value instanceof long[]) {
                 long[] longArray = (long[]) value;
-                Log.d(TAG, "    Value (long[]): " + java.util.Arrays.toString(longArray));
+                InferenceLog.d(TAG, "    Value (long[]): " + java.util.Arrays.toString(longArray));
             } else if (value instanceof float[]) {
                 float[] floatArray = (float[]) value;
-                Log.d(TAG, "    Value (float[]): " + java.util.Arrays.toString(floatArray));
+                InferenceLog.d(TAG, "    Value (float[]): " + java.util.Arrays.toString(floatArray));
             } else if (value instanceof int[]) {
                 int[] intArray = (int[]) value;
-                Log.d(TAG, "    Value (int[]): " + java.util.Arrays.toString(intArray));
+                InferenceLog.d(TAG, "    Value (int[]): " + java.util.Arrays.toString(intArray));
             } else if (value instanceof double[]) {
                 double[] doubleArray = (double[]) value;
-                Log.d(TAG, "    Value (double[]): " + java.util.Arrays.toString(doubleArray));
+                InferenceLog.d(TAG, "    Value (double[]): " + java.util.Arrays.toString(doubleArray));
             } else if (value instanceof byte[]) {
                 byte[] byteArray = (byte[]) value;
-                Log.d(TAG, "    Value (byte[]): " + java.util.Arrays.toString(byteArray));
+                InferenceLog.d(TAG, "    Value (byte[]): " + java.util.Arrays.toString(byteArray));
             } else if (value instanceof short[]) {
                 short[] shortArray = (short[]) value;
-                Log.d(TAG, "    Value (short[]): " + java.util.Arrays.toString(shortArray));
+                InferenceLog.d(TAG, "    Value (short[]): " + java.util.Arrays.toString(shortArray));
             } else if (value instanceof boolean[]) {
                 boolean[] booleanArray = (boolean[]) value;
-                Log.d(TAG, "    Value (boolean[]): " + java.util.Arrays.toString(booleanArray));
+                InferenceLog.d(TAG, "    Value (boolean[]): " + java.util.Arrays.toString(booleanArray));
             } else if (value instanceof String[]) {
                 String[] stringArray = (String[]) value;
-                Log.d(TAG, "    Value (String[]): " + java.util.Arrays.toString(stringArray));
+                InferenceLog.d(TAG, "    Value (String[]): " + java.util.Arrays.toString(stringArray));
             } else if (value instanceof String) {
-                Log.d(TAG, "    Value (String): " + value);
+                InferenceLog.d(TAG, "    Value (String): " + value);
             } else if (value instanceof Long) {
-                Log.d(TAG, "    Value (Long): " + value);
+                InferenceLog.d(TAG, "    Value (Long): " + value);
             } else if (value instanceof Float) {
-                Log.d(TAG, "    Value (Float): " + value);
+                InferenceLog.d(TAG, "    Value (Float): " + value);
             } else if (value instanceof Integer) {
-                Log.d(TAG, "    Value (Integer): " + value);
+                InferenceLog.d(TAG, "    Value (Integer): " + value);
             } else if (value instanceof Double) {
-                Log.d(TAG, "    Value (Double): " + value);
+                InferenceLog.d(TAG, "    Value (Double): " + value);
             } else if (value instanceof Byte) {
-                Log.d(TAG, "    Value (Byte): " + value);
+                InferenceLog.d(TAG, "    Value (Byte): " + value);
             } else if (value instanceof Short) {
-                Log.d(TAG, "    Value (Short): " + value);
+                InferenceLog.d(TAG, "    Value (Short): " + value);
             } else if (value instanceof Boolean) {
-                Log.d(TAG, "    Value (Boolean): " + value);
+                InferenceLog.d(TAG, "    Value (Boolean): " + value);
             } else {
-                Log.d(TAG, "    Value (Unknown Type): " + value.toString());
+                InferenceLog.d(TAG, "    Value (Unknown Type): " + value.toString());
             }
         }
     }
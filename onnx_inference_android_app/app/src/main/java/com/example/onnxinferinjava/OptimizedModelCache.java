@@ -0,0 +1,142 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of optimized models, used by the {@link SessionRegistry} when a
+ * {@link SessionConfig} names a cache directory.
+ * <p>
+ * On a miss the session is created as usual, with ORT told to save the optimized graph in ORT
+ * format ({@code SessionOptions.setOptimizedModelFilePath}). On a hit the saved graph is
+ * loaded with graph optimization turned off, which skips the most expensive part of session
+ * creation.
+ * <p>
+ * Entries are named after a digest of the model bytes, the optimization level, the execution
+ * provider and allocator settings, the ORT version and the CPU architecture. Optimized graphs
+ * may contain kernels specific to the providers and the machine they were optimized for, so a
+ * graph partitioned for XNNPACK, say, is never loaded for a CPU-only config. A changed model
+ * therefore never hits a stale entry. Old entries are left in place, so the directory should
+ * be one the system may clear.
+ * <p>
+ * Any failure to read or write the cache falls back to creating the session from the source.
+ */
+final class OptimizedModelCache {
+    private static final String TAG = "OptimizedModelCache";
+
+    private static final String CONFIG_SAVE_MODEL_FORMAT = "session.save_model_format";
+    private static final String FILE_SUFFIX = ".ort";
+
+    private OptimizedModelCache() {
+    }
+
+    static OrtSession createSession(ModelSource source, SessionConfig config, OrtEnvironment environment)
+            throws OrtException, IOException {
+        File cacheDir = new File(config.getOptimizedModelCacheDir());
+        File cached = cacheFile(source, config, environment, cacheDir);
+        if (cached == null) {
+            return createUncached(source, config, environment);
+        }
+
+        if (cached.isFile()) {
+            long start = System.nanoTime();
+            try (SessionOptions options = config.createSessionOptions(OptLevel.NO_OPT)) {
+                OrtSession session = environment.createSession(cached.getPath(), options);
+                InferenceLog.d(TAG, "loaded " + source + " from " + cached.getName() + " in "
+                        + (System.nanoTime() - start) / 1000 + " us");
+                return session;
+            } catch (OrtException e) {
+                InferenceLog.w(TAG, "discarding unreadable " + cached + ": " + e.getMessage());
+                if (!cached.delete()) {
+                    return createUncached(source, config, environment);
+                }
+            }
+        }
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            InferenceLog.w(TAG, "Cannot create " + cacheDir + ", not caching " + source);
+            return createUncached(source, config, environment);
+        }
+        // Concurrent processes each write their own file and the last rename wins.
+        File temp = File.createTempFile(cached.getName(), ".tmp", cacheDir);
+        OrtSession session;
+        try (SessionOptions options = config.createSessionOptions()) {
+            options.setOptimizedModelFilePath(temp.getPath());
+            options.addConfigEntry(CONFIG_SAVE_MODEL_FORMAT, "ORT");
+            session = source.createSession(environment, options);
+        } catch (OrtException | IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            InferenceLog.d(TAG, "cached optimized " + source + " as " + cached.getName());
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "cache " + source + " error: " + e.getMessage());
+            deleteQuietly(temp);
+        }
+        return session;
+    }
+
+    private static OrtSession createUncached(ModelSource source, SessionConfig config, OrtEnvironment environment)
+            throws OrtException, IOException {
+        try (SessionOptions options = config.createSessionOptions()) {
+            return source.createSession(environment, options);
+        }
+    }
+
+    /** Returns the cache entry for the model, or null if its bytes cannot be read. */
+    private static File cacheFile(ModelSource source, SessionConfig config, OrtEnvironment environment,
+                                  File cacheDir) {
+        ByteBuffer model;
+        try {
+            model = source.readModel();
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "read " + source + " error: " + e.getMessage());
+            return null;
+        }
+        if (model == null) {
+            InferenceLog.d(TAG, source + " cannot provide its bytes, not caching it");
+            return null;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(model.duplicate());
+        String variant = config.getOptLevel()
+                + "|xnnpack=" + config.getUseXnnpack()
+                + "|mempattern=" + config.getMemoryPatternEnabled()
+                + "|arena=" + config.getCpuArenaEnabled()
+                + "|" + environment.getVersion() + "|" + System.getProperty("os.arch");
+        digest.update(variant.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(cacheDir, name.append(FILE_SUFFIX).toString());
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            InferenceLog.w(TAG, "Cannot delete " + file);
+        }
+    }
+}
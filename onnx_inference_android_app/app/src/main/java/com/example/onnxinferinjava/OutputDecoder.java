@@ -0,0 +1,173 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.MapInfo;
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxMap;
+import ai.onnxruntime.OnnxSequence;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.SequenceInfo;
+import ai.onnxruntime.TensorInfo;
+import ai.onnxruntime.ValueInfo;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes one model output into a primitive array, chosen once from the output's declared
+ * {@link NodeInfo} when the session is opened.
+ * <p>
+ * Numeric tensors are copied out of the native tensor in one bulk buffer read, without the
+ * reflective multi-dimensional array construction of {@link OnnxValue#getValue()}. A ZipMap
+ * output (a sequence of one class-to-score map per row) becomes a {@code float[rows][classes]}
+ * matrix ordered by class key. Other outputs fall back to {@link OnnxValue#getValue()}.
+ */
+final class OutputDecoder {
+
+    enum Kind {
+        FLOAT_TENSOR,
+        LONG_TENSOR,
+        INT_TENSOR,
+        DOUBLE_TENSOR,
+        /** A sequence of maps from class label to score, as produced by ZipMap. */
+        SCORE_MAPS,
+        OTHER
+    }
+
+    final String mName;
+    final int mIndex;
+    final Kind mKind;
+    /** Declared tensor rank, or -1 for non-tensor outputs. */
+    final int mRank;
+
+    /** Class keys in ascending order, learned from the first decoded ZipMap output. */
+    private volatile Object[] mScoreKeys;
+
+    OutputDecoder(String name, int index, NodeInfo nodeInfo) {
+        mName = name;
+        mIndex = index;
+        ValueInfo info = nodeInfo.getInfo();
+        if (info instanceof TensorInfo) {
+            TensorInfo tensorInfo = (TensorInfo) info;
+            mRank = tensorInfo.getShape().length;
+            switch (tensorInfo.type) {
+                case FLOAT:
+                    mKind = Kind.FLOAT_TENSOR;
+                    break;
+                case INT64:
+                    mKind = Kind.LONG_TENSOR;
+                    break;
+                case INT32:
+                    mKind = Kind.INT_TENSOR;
+                    break;
+                case DOUBLE:
+                    mKind = Kind.DOUBLE_TENSOR;
+                    break;
+                default:
+                    mKind = Kind.OTHER;
+                    break;
+            }
+        } else {
+            mRank = -1;
+            mKind = isScoreMaps(info) ? Kind.SCORE_MAPS : Kind.OTHER;
+        }
+    }
+
+    private static boolean isScoreMaps(ValueInfo info) {
+        if (!(info instanceof SequenceInfo) || !((SequenceInfo) info).isSequenceOfMaps()) {
+            return false;
+        }
+        MapInfo mapInfo = ((SequenceInfo) info).mapInfo;
+        switch (mapInfo.valueType) {
+            case FLOAT:
+            case DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decodes the output. Tensors become flat row-major primitive arrays; see the class comment
+     * for the other kinds.
+     */
+    Object decode(OnnxValue value) throws OrtException {
+        switch (mKind) {
+            case FLOAT_TENSOR: {
+                FloatBuffer buffer = ((OnnxTensor) value).getFloatBuffer();
+                return buffer.hasArray() && buffer.array().length == buffer.remaining() ? buffer.array() : copy(buffer);
+            }
+            case LONG_TENSOR: {
+                LongBuffer buffer = ((OnnxTensor) value).getLongBuffer();
+                return buffer.hasArray() && buffer.array().length == buffer.remaining() ? buffer.array() : copy(buffer);
+            }
+            case INT_TENSOR: {
+                IntBuffer buffer = ((OnnxTensor) value).getIntBuffer();
+                return buffer.hasArray() && buffer.array().length == buffer.remaining() ? buffer.array() : copy(buffer);
+            }
+            case DOUBLE_TENSOR: {
+                DoubleBuffer buffer = ((OnnxTensor) value).getDoubleBuffer();
+                return buffer.hasArray() && buffer.array().length == buffer.remaining() ? buffer.array() : copy(buffer);
+            }
+            case SCORE_MAPS:
+                return decodeScoreMaps((OnnxSequence) value);
+            default:
+                return value.getValue();
+        }
+    }
+
+    /** Returns the actual shape of a decoded tensor output, or null for other outputs. */
+    static long[] shapeOf(OnnxValue value) {
+        return value instanceof OnnxTensor ? ((OnnxTensor) value).getInfo().getShape() : null;
+    }
+
+    private float[][] decodeScoreMaps(OnnxSequence sequence) throws OrtException {
+        List<? extends OnnxValue> rows = sequence.getValue();
+        float[][] matrix = new float[rows.size()][];
+        for (int i = 0; i < matrix.length; i++) {
+            Map<? extends Object, ? extends Object> scores = ((OnnxMap) rows.get(i)).getValue();
+            Object[] keys = mScoreKeys;
+            if (keys == null || keys.length != scores.size()) {
+                keys = scores.keySet().toArray();
+                Arrays.sort(keys);
+                mScoreKeys = keys;
+            }
+            float[] row = new float[keys.length];
+            for (int j = 0; j < keys.length; j++) {
+                row[j] = ((Number) scores.get(keys[j])).floatValue();
+            }
+            matrix[i] = row;
+        }
+        return matrix;
+    }
+
+    private static float[] copy(FloatBuffer buffer) {
+        float[] values = new float[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    private static long[] copy(LongBuffer buffer) {
+        long[] values = new long[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    private static int[] copy(IntBuffer buffer) {
+        int[] values = new int[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    private static double[] copy(DoubleBuffer buffer) {
+        double[] values = new double[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+}
@@ -0,0 +1,567 @@
+package com.example.onnxinferinjava;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every prediction of the models it is attached to (see {@link OnnxModel#setAuditLog})
+ * as a fixed-size binary record: the input features, the label and class scores, the model
+ * version, the batch size and the latency of the call.
+ * <p>
+ * Recording does not touch the disk. Inference threads copy each row into a preallocated
+ * ring of records, claiming slots with a compare-and-set and publishing them with an ordered
+ * write; nothing is allocated, formatted or locked. One background thread drains the ring in
+ * order into memory-mapped segment files in the log's directory and rotates to a new segment
+ * when one is full. When the ring is full the {@link OverflowPolicy} either drops the record,
+ * counting it in {@link #getDroppedCount()} and in the segment headers, or makes the inference
+ * thread wait for the writer.
+ * <p>
+ * Each row keeps the first {@code numFeatures} features and {@code numClasses} scores; missing
+ * values are written as NaN and a missing label as {@link #NO_LABEL}. A record's model key is
+ * the {@link ModelSource#getKey()} of the version that served it, followed by {@code "@"} and
+ * the version's name when it was deployed through a {@link ModelHandle}. Keys are stored as
+ * small ids, whose keys are appended to {@value #MODELS_FILE_NAME} the first time a key is
+ * recorded. Segments are decoded by {@link PredictionAuditReader}.
+ * <p>
+ * Calls fed through {@link ModelInputs} are not recorded, as their features are not rows of
+ * floats. Records made concurrently with {@link #close()} may be lost.
+ */
+public final class PredictionAuditLog implements AutoCloseable {
+    private static final String TAG = "PredictionAuditLog";
+
+    /** The label of a record whose call did not fetch the label output. */
+    public static final long NO_LABEL = Long.MIN_VALUE;
+
+    static final String MODELS_FILE_NAME = "models.tsv";
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    static final long MAGIC = 0x4F4E4E5841554454L; // "ONNXAUDT"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int HEADER_FORMAT_VERSION = 8;
+    static final int HEADER_RECORD_SIZE = 12;
+    static final int HEADER_NUM_FEATURES = 16;
+    static final int HEADER_NUM_CLASSES = 20;
+    static final int HEADER_RECORD_COUNT = 24;
+    static final int HEADER_DROPPED_COUNT = 32;
+    static final int HEADER_CREATED_MILLIS = 40;
+
+    static final int RECORD_SEQUENCE = 0;
+    static final int RECORD_TIMESTAMP_MILLIS = 8;
+    static final int RECORD_LATENCY_NANOS = 16;
+    static final int RECORD_MODEL_ID = 24;
+    static final int RECORD_BATCH_SIZE = 28;
+    static final int RECORD_LABEL = 32;
+    static final int RECORD_FEATURES = 40;
+
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    public enum OverflowPolicy {
+        /** Drop the record and count it when the ring is full. */
+        DROP,
+        /** Make the inference thread wait until the writer frees a slot. */
+        BLOCK
+    }
+
+    private final File mDirectory;
+    private final int mNumFeatures;
+    private final int mNumClasses;
+    private final int mRecordSize;
+    private final int mCapacity;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+    private final long mSegmentSize;
+    private final int mMaxSegments;
+    private final long mDrainIntervalNanos;
+    private final String mLabelOutput;
+    private final String mScoreOutput;
+
+    /** The records, {@code mRecordSize} bytes per slot. Slots are written with absolute puts only. */
+    private final ByteBuffer mRing;
+    /** The sequence last published in each slot, or -1. */
+    private final AtomicLongArray mPublished;
+    /** The next sequence to claim. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** The next sequence to write; slots below it are free. */
+    private final AtomicLong mTail = new AtomicLong();
+    private final LongAdder mDropped = new LongAdder();
+    private final AtomicLong mWritten = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Integer> mModelIds = new ConcurrentHashMap<>();
+    /** Guarded by {@code this}. */
+    private int mNextModelId;
+    private final Thread mWriter;
+    private volatile boolean mClosed;
+
+    // Writer thread state.
+    private final ArrayDeque<File> mSegments = new ArrayDeque<>();
+    private int mNextSegmentIndex;
+    private FileChannel mSegmentChannel;
+    private MappedByteBuffer mSegment;
+    private long mSegmentRecords;
+
+    private PredictionAuditLog(Builder builder) throws IOException {
+        mDirectory = builder.mDirectory;
+        mNumFeatures = builder.mNumFeatures;
+        mNumClasses = builder.mNumClasses;
+        mRecordSize = recordSize(mNumFeatures, mNumClasses);
+        mCapacity = builder.mCapacity;
+        mMask = mCapacity - 1;
+        mOverflowPolicy = builder.mOverflowPolicy;
+        mSegmentSize = builder.mSegmentSize;
+        mMaxSegments = builder.mMaxSegments;
+        mDrainIntervalNanos = builder.mDrainIntervalNanos;
+        mLabelOutput = builder.mLabelOutput;
+        mScoreOutput = builder.mScoreOutput;
+
+        mRing = ByteBuffer.allocateDirect(mCapacity * mRecordSize).order(ByteOrder.LITTLE_ENDIAN);
+        mPublished = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mPublished.set(i, -1);
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        loadModelIds();
+        for (File segment : PredictionAuditReader.listSegments(mDirectory)) {
+            mSegments.add(segment);
+            mNextSegmentIndex = Math.max(mNextSegmentIndex, PredictionAuditReader.segmentIndex(segment) + 1);
+        }
+
+        mWriter = new Thread(this::drainLoop, TAG + "-writer");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /** Returns the bytes taken by one record, rounded up to a multiple of 8. */
+    static int recordSize(int numFeatures, int numClasses) {
+        return (RECORD_FEATURES + Float.BYTES * (numFeatures + numClasses) + 7) & ~7;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public int getNumFeatures() {
+        return mNumFeatures;
+    }
+
+    public int getNumClasses() {
+        return mNumClasses;
+    }
+
+    /** Returns the number of records dropped because the ring was full or the writer failed. */
+    public long getDroppedCount() {
+        return mDropped.sum();
+    }
+
+    /** Returns the number of records written to segments so far. */
+    public long getWrittenCount() {
+        return mWritten.get();
+    }
+
+    /**
+     * Records a call from its decoded outputs, reading the label and score outputs configured
+     * on the builder if the call fetched them.
+     */
+    void record(String modelKey, float[] rows, int numRows, InferenceOutputs outputs, long latencyNanos) {
+        Object labels = mLabelOutput != null ? outputs.get(mLabelOutput) : null;
+        Object scores = mScoreOutput != null ? outputs.get(mScoreOutput) : null;
+        record(modelKey, rows, numRows,
+                labels instanceof long[] ? (long[]) labels : null,
+                scores instanceof float[] ? (float[]) scores : null,
+                scores instanceof float[][] ? (float[][]) scores : null,
+                latencyNanos);
+    }
+
+    /** Records a call that fetched a single output into {@code longOut} or {@code floatOut}. */
+    void record(String modelKey, float[] rows, int numRows, String outputName, long[] longOut, float[] floatOut,
+                long latencyNanos) {
+        long[] labels = longOut != null && outputName.equals(mLabelOutput) ? longOut : null;
+        float[] scores = floatOut != null && outputName.equals(mScoreOutput) ? floatOut : null;
+        record(modelKey, rows, numRows, labels, scores, null, latencyNanos);
+    }
+
+    /**
+     * Records {@code numRows} predictions made by one call. The scores are given either flat,
+     * row-major, or as one array per row; any of the outputs may be null.
+     */
+    void record(String modelKey, float[] rows, int numRows, long[] labels, float[] flatScores, float[][] scoreRows,
+                long latencyNanos) {
+        if (mClosed || numRows <= 0) {
+            return;
+        }
+        int modelId = modelId(modelKey);
+        long timestampMillis = System.currentTimeMillis();
+        int rowFeatures = rows.length / numRows;
+        int rowScores = flatScores != null ? flatScores.length / numRows : 0;
+        for (int row = 0; row < numRows; row++) {
+            long sequence = claim();
+            if (sequence < 0) {
+                continue;
+            }
+            int offset = (int) (sequence & mMask) * mRecordSize;
+            ByteBuffer ring = mRing;
+            ring.putLong(offset + RECORD_SEQUENCE, sequence);
+            ring.putLong(offset + RECORD_TIMESTAMP_MILLIS, timestampMillis);
+            ring.putLong(offset + RECORD_LATENCY_NANOS, latencyNanos);
+            ring.putInt(offset + RECORD_MODEL_ID, modelId);
+            ring.putInt(offset + RECORD_BATCH_SIZE, numRows);
+            ring.putLong(offset + RECORD_LABEL, labels != null && row < labels.length ? labels[row] : NO_LABEL);
+
+            int position = offset + RECORD_FEATURES;
+            int featureBase = row * rowFeatures;
+            for (int i = 0; i < mNumFeatures; i++, position += Float.BYTES) {
+                ring.putFloat(position, i < rowFeatures ? rows[featureBase + i] : Float.NaN);
+            }
+            float[] rowScoreArray = scoreRows != null && row < scoreRows.length ? scoreRows[row] : null;
+            int scoreBase = row * rowScores;
+            for (int i = 0; i < mNumClasses; i++, position += Float.BYTES) {
+                float score;
+                if (rowScoreArray != null) {
+                    score = i < rowScoreArray.length ? rowScoreArray[i] : Float.NaN;
+                } else {
+                    score = i < rowScores ? flatScores[scoreBase + i] : Float.NaN;
+                }
+                ring.putFloat(position, score);
+            }
+            mPublished.lazySet((int) (sequence & mMask), sequence);
+        }
+    }
+
+    /** Claims the next slot, or returns -1 after counting a dropped record. */
+    private long claim() {
+        while (true) {
+            long head = mHead.get();
+            if (head - mTail.get() >= mCapacity) {
+                if (mOverflowPolicy == OverflowPolicy.DROP || mClosed) {
+                    mDropped.increment();
+                    return -1;
+                }
+                LockSupport.unpark(mWriter);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                continue;
+            }
+            if (mHead.compareAndSet(head, head + 1)) {
+                return head;
+            }
+        }
+    }
+
+    private int modelId(String modelKey) {
+        Integer id = mModelIds.get(modelKey);
+        return id != null ? id : registerModel(modelKey);
+    }
+
+    /** Assigns the next id to a model key and appends it to the models file before first use. */
+    private synchronized int registerModel(String modelKey) {
+        Integer id = mModelIds.get(modelKey);
+        if (id != null) {
+            return id;
+        }
+        int newId = mNextModelId++;
+        File file = new File(mDirectory, MODELS_FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(newId + "\t" + modelKey + "\n");
+        } catch (IOException e) {
+            InferenceLog.e(TAG, "append " + file + " error: " + e.getMessage(), e);
+        }
+        mModelIds.put(modelKey, newId);
+        return newId;
+    }
+
+    private void loadModelIds() throws IOException {
+        File file = new File(mDirectory, MODELS_FILE_NAME);
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    int id = Integer.parseInt(line.substring(0, tab));
+                    mModelIds.put(line.substring(tab + 1), id);
+                    mNextModelId = Math.max(mNextModelId, id + 1);
+                }
+            }
+        }
+    }
+
+    private void drainLoop() {
+        long parkNanos = mDrainIntervalNanos;
+        while (true) {
+            boolean closed = mClosed;
+            if (drain() > 0) {
+                parkNanos = mDrainIntervalNanos;
+            } else if (closed && mTail.get() == mHead.get()) {
+                break;
+            } else {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = closed ? mDrainIntervalNanos : Math.min(parkNanos * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+        closeSegment();
+    }
+
+    /**
+     * Writes the published records following the tail, in sequence order, and frees their
+     * slots.
+     *
+     * @return The number of records drained.
+     */
+    private int drain() {
+        long tail = mTail.get();
+        long end = tail;
+        while (end - tail < mCapacity && mPublished.get((int) (end & mMask)) == end) {
+            end++;
+        }
+        if (end == tail) {
+            return 0;
+        }
+
+        ByteBuffer ring = mRing.duplicate();
+        long next = tail;
+        long written = 0;
+        while (next < end) {
+            if (mSegment == null && !openSegment()) {
+                mDropped.add(end - next);
+                break;
+            }
+            long fit = (mSegment.capacity() - mSegment.position()) / mRecordSize;
+            int slot = (int) (next & mMask);
+            int count = (int) Math.min(Math.min(end - next, mCapacity - slot), fit);
+            ring.limit((slot + count) * mRecordSize).position(slot * mRecordSize);
+            mSegment.put(ring);
+            mSegmentRecords += count;
+            written += count;
+            next += count;
+            if (count == fit) {
+                closeSegment();
+            }
+        }
+        if (mSegment != null) {
+            mSegment.putLong(HEADER_RECORD_COUNT, mSegmentRecords);
+            mSegment.putLong(HEADER_DROPPED_COUNT, mDropped.sum());
+        }
+        mWritten.addAndGet(written);
+        mTail.set(end);
+        return (int) (end - tail);
+    }
+
+    private boolean openSegment() {
+        File file = new File(mDirectory, PredictionAuditReader.segmentName(mNextSegmentIndex++));
+        try {
+            mSegmentChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mSegment = mSegmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            InferenceLog.e(TAG, "open segment " + file + " error: " + e.getMessage(), e);
+            closeChannel();
+            return false;
+        }
+        mSegment.order(ByteOrder.LITTLE_ENDIAN);
+        mSegment.putLong(0, MAGIC);
+        mSegment.putInt(HEADER_FORMAT_VERSION, FORMAT_VERSION);
+        mSegment.putInt(HEADER_RECORD_SIZE, mRecordSize);
+        mSegment.putInt(HEADER_NUM_FEATURES, mNumFeatures);
+        mSegment.putInt(HEADER_NUM_CLASSES, mNumClasses);
+        mSegment.putLong(HEADER_RECORD_COUNT, 0);
+        mSegment.putLong(HEADER_DROPPED_COUNT, mDropped.sum());
+        mSegment.putLong(HEADER_CREATED_MILLIS, System.currentTimeMillis());
+        mSegment.position(HEADER_SIZE);
+        mSegmentRecords = 0;
+
+        mSegments.add(file);
+        while (mMaxSegments > 0 && mSegments.size() > mMaxSegments) {
+            File oldest = mSegments.poll();
+            if (!oldest.delete()) {
+                InferenceLog.w(TAG, "Cannot delete " + oldest);
+            }
+        }
+        return true;
+    }
+
+    /** Flushes the current segment and trims it to the records it holds. */
+    private void closeSegment() {
+        if (mSegment == null) {
+            return;
+        }
+        mSegment.putLong(HEADER_RECORD_COUNT, mSegmentRecords);
+        mSegment.putLong(HEADER_DROPPED_COUNT, mDropped.sum());
+        mSegment.force();
+        long length = HEADER_SIZE + mSegmentRecords * mRecordSize;
+        mSegment = null;
+        try {
+            mSegmentChannel.truncate(length);
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "truncate segment error: " + e.getMessage());
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (mSegmentChannel == null) {
+            return;
+        }
+        try {
+            mSegmentChannel.close();
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "close segment error: " + e.getMessage());
+        }
+        mSegmentChannel = null;
+    }
+
+    /**
+     * Stops accepting records, waits for the writer to write the ones already recorded and
+     * closes the current segment. Detach the log from its models first. Idempotent.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mWriter);
+        boolean interrupted = false;
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static final class Builder {
+        private final File mDirectory;
+        private final int mNumFeatures;
+        private final int mNumClasses;
+        private int mCapacity = 8192;
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP;
+        private long mSegmentSize = 64L << 20;
+        private int mMaxSegments;
+        private long mDrainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        private String mLabelOutput = "output_label";
+        private String mScoreOutput = "output_probability";
+
+        /**
+         * @param directory   Where the segments are written; created if missing. Segments
+         *                    already there are kept and new ones numbered after them.
+         * @param numFeatures The number of features kept per row.
+         * @param numClasses  The number of scores kept per row.
+         */
+        public Builder(File directory, int numFeatures, int numClasses) {
+            mDirectory = directory;
+            mNumFeatures = numFeatures;
+            mNumClasses = numClasses;
+        }
+
+        /** Sets the number of records the ring holds; must be a power of two. Defaults to 8192. */
+        public Builder setCapacity(int capacity) {
+            mCapacity = capacity;
+            return this;
+        }
+
+        /** Sets what a full ring does to new records. Defaults to {@link OverflowPolicy#DROP}. */
+        public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            mOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /** Sets the size a segment is mapped with and rotated at. Defaults to 64 MiB. */
+        public Builder setSegmentSize(long segmentSize) {
+            mSegmentSize = segmentSize;
+            return this;
+        }
+
+        /** Sets how many segments are kept, deleting the oldest; 0, the default, keeps them all. */
+        public Builder setMaxSegments(int maxSegments) {
+            mMaxSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * Sets how often the writer polls the ring while records arrive; it backs off to
+         * 100 ms while idle. Defaults to 1 ms.
+         */
+        public Builder setDrainInterval(long interval, TimeUnit unit) {
+            mDrainIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Sets the outputs read as the label and the scores, null to not record one. Defaults
+         * to {@code output_label} and {@code output_probability}, the names ONNX converters
+         * give classifier outputs.
+         */
+        public Builder setOutputs(String labelOutput, String scoreOutput) {
+            mLabelOutput = labelOutput;
+            mScoreOutput = scoreOutput;
+            return this;
+        }
+
+        /**
+         * Creates the directory and starts the writer.
+         *
+         * @throws IllegalArgumentException if a setting is out of range.
+         * @throws IOException              if the directory or its models file cannot be read.
+         */
+        public PredictionAuditLog build() throws IOException {
+            if (mDirectory == null) {
+                throw new IllegalArgumentException("directory is required");
+            }
+            if (mNumFeatures < 0 || mNumClasses < 0) {
+                throw new IllegalArgumentException("numFeatures and numClasses must be >= 0");
+            }
+            if (mCapacity <= 0 || Integer.bitCount(mCapacity) != 1) {
+                throw new IllegalArgumentException("capacity must be a power of two, got " + mCapacity);
+            }
+            if ((long) mCapacity * recordSize(mNumFeatures, mNumClasses) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("capacity " + mCapacity + " does not fit in one buffer");
+            }
+            if (mSegmentSize < HEADER_SIZE + recordSize(mNumFeatures, mNumClasses)
+                    || mSegmentSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("segmentSize out of range: " + mSegmentSize);
+            }
+            if (mMaxSegments < 0) {
+                throw new IllegalArgumentException("maxSegments must be >= 0");
+            }
+            if (mDrainIntervalNanos <= 0) {
+                throw new IllegalArgumentException("drainInterval must be > 0");
+            }
+            if (mOverflowPolicy == null) {
+                throw new IllegalArgumentException("overflowPolicy is required");
+            }
+            return new PredictionAuditLog(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{" + mDirectory + ", features=" + mNumFeatures + ", classes=" + mNumClasses
+                + ", capacity=" + mCapacity + ", " + mOverflowPolicy + ", written=" + getWrittenCount()
+                + ", dropped=" + getDroppedCount() + "}";
+    }
+}
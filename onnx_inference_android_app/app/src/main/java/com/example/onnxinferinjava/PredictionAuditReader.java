@@ -0,0 +1,243 @@
+package com.example.onnxinferinjava;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the segments written by a {@link PredictionAuditLog}, in the order they were
+ * recorded. A segment still being written can be read; it yields the records the writer had
+ * drained at the time.
+ * <p>
+ * Run {@link #main} with the log's directory to print every record as CSV.
+ */
+public final class PredictionAuditReader {
+    private static final String TAG = "PredictionAuditReader";
+
+    /** One decoded prediction. */
+    public static final class Record {
+        private final long mSequence;
+        private final long mTimestampMillis;
+        private final long mLatencyNanos;
+        private final String mModelKey;
+        private final int mBatchSize;
+        private final long mLabel;
+        private final float[] mFeatures;
+        private final float[] mScores;
+
+        Record(long sequence, long timestampMillis, long latencyNanos, String modelKey, int batchSize, long label,
+               float[] features, float[] scores) {
+            mSequence = sequence;
+            mTimestampMillis = timestampMillis;
+            mLatencyNanos = latencyNanos;
+            mModelKey = modelKey;
+            mBatchSize = batchSize;
+            mLabel = label;
+            mFeatures = features;
+            mScores = scores;
+        }
+
+        /** Returns the record's position among those the log recorded since it was opened. */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTimestampMillis() {
+            return mTimestampMillis;
+        }
+
+        /** Returns the latency of the call that made the prediction. */
+        public long getLatencyNanos() {
+            return mLatencyNanos;
+        }
+
+        public String getModelKey() {
+            return mModelKey;
+        }
+
+        /** Returns the number of rows scored by the call that made the prediction. */
+        public int getBatchSize() {
+            return mBatchSize;
+        }
+
+        /** Returns the predicted label, or {@link PredictionAuditLog#NO_LABEL}. */
+        public long getLabel() {
+            return mLabel;
+        }
+
+        public float[] getFeatures() {
+            return mFeatures;
+        }
+
+        /** Returns the class scores, NaN where the call did not fetch them. */
+        public float[] getScores() {
+            return mScores;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{#" + mSequence + ", " + mModelKey + ", label=" + mLabel
+                    + ", features=" + Arrays.toString(mFeatures) + ", scores=" + Arrays.toString(mScores) + "}";
+        }
+    }
+
+    private final File mDirectory;
+    private final Map<Integer, String> mModelKeys = new HashMap<>();
+    private long mDroppedCount;
+
+    /** Opens a log directory, reading its model keys. */
+    public PredictionAuditReader(File directory) throws IOException {
+        mDirectory = directory;
+        File modelsFile = new File(directory, PredictionAuditLog.MODELS_FILE_NAME);
+        if (modelsFile.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(modelsFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        mModelKeys.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the segments of the directory, oldest first. */
+    public List<File> getSegments() {
+        return listSegments(mDirectory);
+    }
+
+    /**
+     * Returns the number of records the log had dropped when the last segment read was
+     * written, as stored in its header.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /** Decodes every record of every segment, oldest first. */
+    public void readAll(Consumer<Record> consumer) throws IOException {
+        for (File segment : getSegments()) {
+            read(segment, consumer);
+        }
+    }
+
+    /**
+     * Decodes the records of one segment.
+     *
+     * @return The number of records read.
+     * @throws IOException if the file is not a segment of a supported format.
+     */
+    public long read(File segment, Consumer<Record> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < PredictionAuditLog.HEADER_SIZE) {
+                throw new IOException(segment + " is too short for a segment header");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong(0) != PredictionAuditLog.MAGIC) {
+                throw new IOException(segment + " is not an audit segment");
+            }
+            int version = buffer.getInt(PredictionAuditLog.HEADER_FORMAT_VERSION);
+            if (version != PredictionAuditLog.FORMAT_VERSION) {
+                throw new IOException(segment + " has unsupported format version " + version);
+            }
+            int recordSize = buffer.getInt(PredictionAuditLog.HEADER_RECORD_SIZE);
+            int numFeatures = buffer.getInt(PredictionAuditLog.HEADER_NUM_FEATURES);
+            int numClasses = buffer.getInt(PredictionAuditLog.HEADER_NUM_CLASSES);
+            long count = Math.min(buffer.getLong(PredictionAuditLog.HEADER_RECORD_COUNT),
+                    (size - PredictionAuditLog.HEADER_SIZE) / recordSize);
+            mDroppedCount = buffer.getLong(PredictionAuditLog.HEADER_DROPPED_COUNT);
+
+            for (long i = 0; i < count; i++) {
+                int offset = (int) (PredictionAuditLog.HEADER_SIZE + i * recordSize);
+                int position = offset + PredictionAuditLog.RECORD_FEATURES;
+                float[] features = new float[numFeatures];
+                for (int j = 0; j < numFeatures; j++, position += Float.BYTES) {
+                    features[j] = buffer.getFloat(position);
+                }
+                float[] scores = new float[numClasses];
+                for (int j = 0; j < numClasses; j++, position += Float.BYTES) {
+                    scores[j] = buffer.getFloat(position);
+                }
+                int modelId = buffer.getInt(offset + PredictionAuditLog.RECORD_MODEL_ID);
+                String modelKey = mModelKeys.get(modelId);
+                consumer.accept(new Record(
+                        buffer.getLong(offset + PredictionAuditLog.RECORD_SEQUENCE),
+                        buffer.getLong(offset + PredictionAuditLog.RECORD_TIMESTAMP_MILLIS),
+                        buffer.getLong(offset + PredictionAuditLog.RECORD_LATENCY_NANOS),
+                        modelKey != null ? modelKey : "#" + modelId,
+                        buffer.getInt(offset + PredictionAuditLog.RECORD_BATCH_SIZE),
+                        buffer.getLong(offset + PredictionAuditLog.RECORD_LABEL),
+                        features, scores));
+            }
+            return count;
+        }
+    }
+
+    static String segmentName(int index) {
+        return String.format("%s%08d%s", PredictionAuditLog.SEGMENT_PREFIX, index, PredictionAuditLog.SEGMENT_SUFFIX);
+    }
+
+    static int segmentIndex(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(PredictionAuditLog.SEGMENT_PREFIX.length(),
+                name.length() - PredictionAuditLog.SEGMENT_SUFFIX.length()));
+    }
+
+    static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.matches(
+                PredictionAuditLog.SEGMENT_PREFIX + "\\d+" + PredictionAuditLog.SEGMENT_SUFFIX.replace(".", "\\.")));
+        List<File> segments = new ArrayList<>();
+        if (files != null) {
+            segments.addAll(Arrays.asList(files));
+        }
+        segments.sort((a, b) -> Integer.compare(segmentIndex(a), segmentIndex(b)));
+        return segments;
+    }
+
+    /**
+     * Prints the records of a log directory as CSV:
+     * {@code sequence,timestamp_millis,latency_us,model,batch_size,label,f0..,s0..}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: " + TAG + " <audit directory>");
+            System.exit(2);
+        }
+        PredictionAuditReader reader = new PredictionAuditReader(new File(args[0]));
+        PrintStream out = System.out;
+        long[] total = new long[1];
+        reader.readAll(record -> {
+            StringBuilder line = new StringBuilder()
+                    .append(record.getSequence()).append(',')
+                    .append(record.getTimestampMillis()).append(',')
+                    .append(record.getLatencyNanos() / 1000.0).append(',')
+                    .append(record.getModelKey()).append(',')
+                    .append(record.getBatchSize()).append(',')
+                    .append(record.getLabel() != PredictionAuditLog.NO_LABEL ? String.valueOf(record.getLabel()) : "");
+            for (float feature : record.getFeatures()) {
+                line.append(',').append(feature);
+            }
+            for (float score : record.getScores()) {
+                line.append(',').append(score);
+            }
+            out.println(line);
+            total[0]++;
+        });
+        System.err.println(total[0] + " records, " + reader.getDroppedCount() + " dropped");
+    }
+}
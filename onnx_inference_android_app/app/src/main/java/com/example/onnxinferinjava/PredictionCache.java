@@ -0,0 +1,484 @@
+package com.example.onnxinferinjava;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of {@link XgbcOnnxModel} predictions keyed by the input feature vector.
+ * <p>
+ * Keys are the exact float bits of a row, or, with a quantization step, the bits of the row
+ * rounded to the nearest multiple of the step. In the quantized case the rounded row is what
+ * the model scores, so the cached result does not depend on which row of a bucket arrived
+ * first. For batch calls only the rows that miss are sent to the model, in one call.
+ * <p>
+ * Entries live in preallocated parallel arrays indexed by an open-addressing hash table of
+ * ints, so lookups and inserts do not allocate per row. When the cache is full, the CLOCK
+ * algorithm evicts an entry that has not been hit since the hand last passed it. The cache is
+ * cleared automatically whenever the model's session changes, e.g. on a {@link ModelHandle}
+ * deploy or rollback, so it never serves predictions of another model version.
+ * <p>
+ * If the model has a {@link PredictionAuditLog}, rows answered from the cache are recorded in
+ * it too, with the cached prediction and the lookup's latency, under the model key of the
+ * version that computed them followed by {@value #CACHE_KEY_SUFFIX}. Rows sent to the model are
+ * recorded by the model call itself.
+ * <p>
+ * All methods are thread-safe. Lookups and inserts take a short lock; model calls and audit
+ * records run outside it.
+ */
+public final class PredictionCache {
+    private static final String TAG = "PredictionCache";
+
+    /** Audit key suffix for rows answered from the cache. */
+    static final String CACHE_KEY_SUFFIX = "#cache";
+
+    private static final byte HAS_LABEL = 1;
+    private static final byte HAS_PROBABILITIES = 1 << 1;
+    private static final byte REFERENCED = 1 << 2;
+
+    private final XgbcOnnxModel mModel;
+    private final int mNumFeatures;
+    private final int mCapacity;
+    private final float mQuantizationStep;
+
+    // Entries, by slot.
+    private final int[] mKeys;
+    private final int[] mHashes;
+    private final byte[] mFlags;
+    private final long[] mLabels;
+    /** Allocated once the number of classes is known from the first probability result. */
+    private float[] mProbabilities;
+    private int mNumClasses;
+
+    /** Open-addressing table of slot + 1, 0 for empty, with linear probing. */
+    private final int[] mIndex;
+    private final int mIndexMask;
+
+    private int mSize;
+    private int mClockHand;
+    /** The session the cached entries were computed with. */
+    private LoadedModel mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mInvalidationCount;
+
+    private PredictionCache(Builder builder) {
+        mModel = builder.mModel;
+        mNumFeatures = builder.mNumFeatures;
+        mCapacity = builder.mCapacity;
+        mQuantizationStep = builder.mQuantizationStep;
+
+        mKeys = new int[mCapacity * mNumFeatures];
+        mHashes = new int[mCapacity];
+        mFlags = new byte[mCapacity];
+        mLabels = new long[mCapacity];
+        int indexSize = Integer.highestOneBit(mCapacity * 2 - 1) << 1;
+        mIndex = new int[indexSize];
+        mIndexMask = indexSize - 1;
+    }
+
+    public XgbcOnnxModel getModel() {
+        return mModel;
+    }
+
+    /** Returns the label of one row, or null if the model fails. */
+    public Long getLabel(float[] row) {
+        long[] labels = getLabels(row, 1);
+        return labels != null ? labels[0] : null;
+    }
+
+    /** Returns the class probabilities of one row, or null if the model fails. */
+    public float[] getProbabilities(float[] row) {
+        float[][] probabilities = getProbabilities(row, 1);
+        return probabilities != null ? probabilities[0] : null;
+    }
+
+    /**
+     * Returns one label per row, scoring only the rows that are not cached.
+     *
+     * @return The labels, or null if the rows do not fit or the model fails.
+     */
+    public long[] getLabels(float[] rows, int numRows) {
+        int[] keys = keysOf(rows, numRows);
+        if (keys == null) {
+            return null;
+        }
+        PredictionAuditLog auditLog = mModel.getAuditLog();
+        long start = auditLog != null ? System.nanoTime() : 0;
+        long[] labels = new long[numRows];
+        int[] missedRows = new int[numRows];
+        int[] hitRows = auditLog != null ? new int[numRows] : null;
+        int numMissed;
+        LoadedModel generation;
+        synchronized (this) {
+            generation = checkGeneration();
+            numMissed = 0;
+            for (int row = 0; row < numRows; row++) {
+                int slot = find(keys, row, hashOf(keys, row));
+                if (slot >= 0 && (mFlags[slot] & HAS_LABEL) != 0) {
+                    mFlags[slot] |= REFERENCED;
+                    labels[row] = mLabels[slot];
+                    if (hitRows != null) {
+                        hitRows[row - numMissed] = row;
+                    }
+                } else {
+                    missedRows[numMissed++] = row;
+                }
+            }
+            mHitCount += numRows - numMissed;
+            mMissCount += numMissed;
+        }
+        if (hitRows != null && numMissed < numRows) {
+            int numHits = numRows - numMissed;
+            long[] hitLabels = new long[numHits];
+            for (int i = 0; i < numHits; i++) {
+                hitLabels[i] = labels[hitRows[i]];
+            }
+            auditLog.record(generation.mModelKey + CACHE_KEY_SUFFIX, gather(keys, hitRows, numHits), numHits,
+                    hitLabels, null, null, System.nanoTime() - start);
+        }
+        if (numMissed == 0) {
+            return labels;
+        }
+
+        long[] missedLabels = mModel.runInferenceGetLabels(gather(keys, missedRows, numMissed), numMissed);
+        if (missedLabels == null) {
+            return null;
+        }
+        synchronized (this) {
+            boolean sameGeneration = checkGeneration() == generation;
+            for (int i = 0; i < numMissed; i++) {
+                int row = missedRows[i];
+                labels[row] = missedLabels[i];
+                if (sameGeneration) {
+                    int slot = findOrInsert(keys, row);
+                    mLabels[slot] = missedLabels[i];
+                    mFlags[slot] |= HAS_LABEL;
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Returns a {@code [numRows][numClasses]} probability matrix, scoring only the rows that
+     * are not cached. The returned rows are copies and may be modified.
+     *
+     * @return The probabilities, or null if the rows do not fit or the model fails.
+     */
+    public float[][] getProbabilities(float[] rows, int numRows) {
+        int[] keys = keysOf(rows, numRows);
+        if (keys == null) {
+            return null;
+        }
+        PredictionAuditLog auditLog = mModel.getAuditLog();
+        long start = auditLog != null ? System.nanoTime() : 0;
+        float[][] probabilities = new float[numRows][];
+        int[] missedRows = new int[numRows];
+        int[] hitRows = auditLog != null ? new int[numRows] : null;
+        int numMissed;
+        LoadedModel generation;
+        synchronized (this) {
+            generation = checkGeneration();
+            numMissed = 0;
+            for (int row = 0; row < numRows; row++) {
+                int slot = find(keys, row, hashOf(keys, row));
+                if (slot >= 0 && (mFlags[slot] & HAS_PROBABILITIES) != 0) {
+                    mFlags[slot] |= REFERENCED;
+                    probabilities[row] = Arrays.copyOfRange(mProbabilities, slot * mNumClasses, (slot + 1) * mNumClasses);
+                    if (hitRows != null) {
+                        hitRows[row - numMissed] = row;
+                    }
+                } else {
+                    missedRows[numMissed++] = row;
+                }
+            }
+            mHitCount += numRows - numMissed;
+            mMissCount += numMissed;
+        }
+        if (hitRows != null && numMissed < numRows) {
+            int numHits = numRows - numMissed;
+            float[][] hitProbabilities = new float[numHits][];
+            for (int i = 0; i < numHits; i++) {
+                hitProbabilities[i] = probabilities[hitRows[i]];
+            }
+            auditLog.record(generation.mModelKey + CACHE_KEY_SUFFIX, gather(keys, hitRows, numHits), numHits,
+                    null, null, hitProbabilities, System.nanoTime() - start);
+        }
+        if (numMissed == 0) {
+            return probabilities;
+        }
+
+        float[][] missedProbabilities = mModel.runInferenceGetProbabilities(gather(keys, missedRows, numMissed), numMissed);
+        if (missedProbabilities == null) {
+            return null;
+        }
+        synchronized (this) {
+            boolean sameGeneration = checkGeneration() == generation;
+            for (int i = 0; i < numMissed; i++) {
+                int row = missedRows[i];
+                float[] rowProbabilities = missedProbabilities[i];
+                probabilities[row] = rowProbabilities;
+                if (sameGeneration && ensureClasses(rowProbabilities.length)) {
+                    int slot = findOrInsert(keys, row);
+                    System.arraycopy(rowProbabilities, 0, mProbabilities, slot * mNumClasses, mNumClasses);
+                    mFlags[slot] |= HAS_PROBABILITIES;
+                }
+            }
+        }
+        return probabilities;
+    }
+
+    /** Drops every entry. */
+    public synchronized void clear() {
+        Arrays.fill(mIndex, 0);
+        Arrays.fill(mFlags, (byte) 0);
+        mSize = 0;
+        mClockHand = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mSize, mHitCount, mMissCount, mEvictionCount, mInvalidationCount);
+    }
+
+    /**
+     * Converts rows into keys: the float bits of each value, rounded to the quantization step
+     * first if there is one.
+     *
+     * @return The keys, or null if {@code rows} does not hold {@code numRows} rows.
+     */
+    private int[] keysOf(float[] rows, int numRows) {
+        if (numRows <= 0 || rows.length != numRows * mNumFeatures) {
+            InferenceLog.e(TAG, "Cannot split " + rows.length + " values into " + numRows + " rows of "
+                    + mNumFeatures + " features.");
+            return null;
+        }
+        int[] keys = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keys[i] = Float.floatToIntBits(quantize(rows[i]));
+        }
+        return keys;
+    }
+
+    private float quantize(float value) {
+        if (mQuantizationStep == 0 || Float.isNaN(value) || Float.isInfinite(value)) {
+            return value;
+        }
+        return (float) (Math.rint(value / (double) mQuantizationStep) * mQuantizationStep);
+    }
+
+    /** Rebuilds the rows to score from their keys, i.e. the quantized rows. */
+    private float[] gather(int[] keys, int[] rowIndices, int numRows) {
+        float[] rows = new float[numRows * mNumFeatures];
+        for (int i = 0; i < numRows; i++) {
+            int offset = rowIndices[i] * mNumFeatures;
+            for (int f = 0; f < mNumFeatures; f++) {
+                rows[i * mNumFeatures + f] = Float.intBitsToFloat(keys[offset + f]);
+            }
+        }
+        return rows;
+    }
+
+    /** Clears the cache if the model now runs on a different session, and returns the session. */
+    private LoadedModel checkGeneration() {
+        LoadedModel current = mModel.getLoadedModel();
+        if (current != mGeneration) {
+            if (mSize > 0) {
+                mInvalidationCount++;
+                InferenceLog.d(TAG, "model changed, dropping " + mSize + " entries");
+            }
+            clear();
+            mGeneration = current;
+        }
+        return current;
+    }
+
+    private boolean ensureClasses(int numClasses) {
+        if (mProbabilities == null) {
+            mNumClasses = numClasses;
+            mProbabilities = new float[mCapacity * numClasses];
+        }
+        return numClasses == mNumClasses;
+    }
+
+    private int hashOf(int[] keys, int row) {
+        int hash = 1;
+        int offset = row * mNumFeatures;
+        for (int f = 0; f < mNumFeatures; f++) {
+            hash = 31 * hash + keys[offset + f];
+        }
+        // Spread the bits so that linear probing does not cluster on similar rows.
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Returns the slot holding the row's key, or -1. */
+    private int find(int[] keys, int row, int hash) {
+        for (int i = hash & mIndexMask; ; i = (i + 1) & mIndexMask) {
+            int entry = mIndex[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (mHashes[slot] == hash && keyEquals(slot, keys, row)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean keyEquals(int slot, int[] keys, int row) {
+        int slotOffset = slot * mNumFeatures;
+        int rowOffset = row * mNumFeatures;
+        for (int f = 0; f < mNumFeatures; f++) {
+            if (mKeys[slotOffset + f] != keys[rowOffset + f]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int findOrInsert(int[] keys, int row) {
+        int hash = hashOf(keys, row);
+        int slot = find(keys, row, hash);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        if (mSize < mCapacity) {
+            slot = mSize++;
+        } else {
+            slot = evict();
+        }
+        System.arraycopy(keys, row * mNumFeatures, mKeys, slot * mNumFeatures, mNumFeatures);
+        mHashes[slot] = hash;
+        mFlags[slot] = 0;
+        int i = hash & mIndexMask;
+        while (mIndex[i] != 0) {
+            i = (i + 1) & mIndexMask;
+        }
+        mIndex[i] = slot + 1;
+        return slot;
+    }
+
+    /** Frees the first slot after the clock hand that was not hit since the last sweep. */
+    private int evict() {
+        while ((mFlags[mClockHand] & REFERENCED) != 0) {
+            mFlags[mClockHand] &= ~REFERENCED;
+            mClockHand = (mClockHand + 1) % mCapacity;
+        }
+        int victim = mClockHand;
+        mClockHand = (mClockHand + 1) % mCapacity;
+        removeFromIndex(victim);
+        mEvictionCount++;
+        return victim;
+    }
+
+    /** Removes a slot from the index, shifting later entries of its probe run back. */
+    private void removeFromIndex(int slot) {
+        int i = mHashes[slot] & mIndexMask;
+        while (mIndex[i] != slot + 1) {
+            i = (i + 1) & mIndexMask;
+        }
+        for (int j = (i + 1) & mIndexMask; mIndex[j] != 0; j = (j + 1) & mIndexMask) {
+            int home = mHashes[mIndex[j] - 1] & mIndexMask;
+            // Move the entry at j into the hole at i unless its home lies cyclically in (i, j].
+            boolean homeInRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!homeInRange) {
+                mIndex[i] = mIndex[j];
+                i = j;
+            }
+        }
+        mIndex[i] = 0;
+    }
+
+    /** Counters of a {@link PredictionCache} at one point in time. */
+    public static final class Stats {
+        private final int mSize;
+        private final long mHitCount;
+        private final long mMissCount;
+        private final long mEvictionCount;
+        private final long mInvalidationCount;
+
+        private Stats(int size, long hitCount, long missCount, long evictionCount, long invalidationCount) {
+            mSize = size;
+            mHitCount = hitCount;
+            mMissCount = missCount;
+            mEvictionCount = evictionCount;
+            mInvalidationCount = invalidationCount;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        /** Rows answered from the cache. */
+        public long getHitCount() {
+            return mHitCount;
+        }
+
+        /** Rows sent to the model. */
+        public long getMissCount() {
+            return mMissCount;
+        }
+
+        public long getEvictionCount() {
+            return mEvictionCount;
+        }
+
+        /** Times the cache was cleared because the model version changed. */
+        public long getInvalidationCount() {
+            return mInvalidationCount;
+        }
+
+        public double getHitRate() {
+            long lookups = mHitCount + mMissCount;
+            return lookups == 0 ? 0 : (double) mHitCount / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + mSize + " hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mEvictionCount + " invalidations=" + mInvalidationCount;
+        }
+    }
+
+    public static final class Builder {
+        private final XgbcOnnxModel mModel;
+        private final int mNumFeatures;
+        private int mCapacity = 4096;
+        private float mQuantizationStep;
+
+        public Builder(XgbcOnnxModel model, int numFeatures) {
+            mModel = model;
+            mNumFeatures = numFeatures;
+        }
+
+        /** Maximum number of cached rows; memory is allocated for all of them up front. */
+        public Builder setCapacity(int capacity) {
+            mCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Rounds every feature to the nearest multiple of {@code step} before lookup, so that
+         * nearly identical rows share an entry. 0, the default, keys on the exact bits.
+         */
+        public Builder setQuantizationStep(float step) {
+            mQuantizationStep = step;
+            return this;
+        }
+
+        public PredictionCache build() {
+            if (mNumFeatures <= 0) {
+                throw new IllegalArgumentException("numFeatures must be positive");
+            }
+            if (mCapacity <= 0 || mCapacity > (1 << 28) / mNumFeatures) {
+                throw new IllegalArgumentException("Capacity out of range: " + mCapacity);
+            }
+            if (!(mQuantizationStep >= 0) || Float.isInfinite(mQuantizationStep)) {
+                throw new IllegalArgumentException("Quantization step must be finite and not negative");
+            }
+            return new PredictionCache(this);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.ExecutionMode;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+
+import java.util.Collections;
+
+/**
+ * Immutable description of the {@link SessionOptions} used to open a session.
+ * <p>
+ * {@link SessionOptions} is an opaque native handle and cannot be compared, so the
+ * {@link SessionRegistry} keys its cache on {@link #fingerprint()} instead and only
+ * materializes the native options when a session actually has to be created.
+ * <p>
+ * Thread counts of 0 and a null spinning setting leave ORT's defaults in place, which is one
+ * intra-op thread per physical core with spinning enabled. When many callers share a session,
+ * a single intra-op thread per call with spinning disabled usually scales better.
+ * <p>
+ * For throughput across cores, {@link Builder#setSessionPoolSize} opens several independent
+ * sessions of the model and sends each call to the least-loaded one. Pooled sessions run each
+ * call on a single intra-op thread unless told otherwise, so concurrent callers scale with the
+ * number of sessions instead of contending for one session's thread pool. With
+ * {@link Builder#setUseGlobalThreadPool} the sessions instead share the process-wide pool
+ * created by {@link SessionRegistry#enableGlobalThreadPool}.
+ * <p>
+ * With an optimized-model cache directory, the first session created for a model saves its
+ * optimized graph there, and later sessions, also in later processes, load that graph with
+ * optimization turned off. See {@link OptimizedModelCache}.
+ * <p>
+ * The tunable settings (optimization level, threading, execution mode, memory pattern, CPU
+ * arena and XNNPACK) can be measured per model by a {@link SessionTuner}. The profile it saves
+ * is applied on top of this config whenever the model is loaded, unless
+ * {@link Builder#setUseTuningProfile} turns that off.
+ * <p>
+ * A profiling file prefix turns on ORT's built-in profiler, which records every operator run
+ * to a JSON trace until {@link OnnxModel#endProfiling()}. It slows inference down and is meant
+ * for investigation builds only.
+ */
+public final class SessionConfig {
+
+    public static final SessionConfig DEFAULT = new Builder().build();
+
+    private static final String CONFIG_INTRA_OP_ALLOW_SPINNING = "session.intra_op.allow_spinning";
+    private static final String CONFIG_INTER_OP_ALLOW_SPINNING = "session.inter_op.allow_spinning";
+    private static final String XNNPACK_INTRA_OP_NUM_THREADS = "intra_op_num_threads";
+
+    private final OptLevel mOptLevel;
+    private final int mIntraOpNumThreads;
+    private final int mInterOpNumThreads;
+    private final ExecutionMode mExecutionMode;
+    private final Boolean mAllowSpinning;
+    private final String mProfilingFilePrefix;
+    private final int mSessionPoolSize;
+    private final boolean mUseGlobalThreadPool;
+    private final String mOptimizedModelCacheDir;
+    private final Boolean mMemoryPatternEnabled;
+    private final Boolean mCpuArenaEnabled;
+    private final boolean mUseXnnpack;
+    private final boolean mUseTuningProfile;
+
+    private SessionConfig(Builder builder) {
+        mOptLevel = builder.mOptLevel;
+        mIntraOpNumThreads = builder.mIntraOpNumThreads;
+        mInterOpNumThreads = builder.mInterOpNumThreads;
+        mExecutionMode = builder.mExecutionMode;
+        mAllowSpinning = builder.mAllowSpinning;
+        mProfilingFilePrefix = builder.mProfilingFilePrefix;
+        mSessionPoolSize = builder.mSessionPoolSize > 0
+                ? builder.mSessionPoolSize : Runtime.getRuntime().availableProcessors();
+        mUseGlobalThreadPool = builder.mUseGlobalThreadPool;
+        mOptimizedModelCacheDir = builder.mOptimizedModelCacheDir;
+        mMemoryPatternEnabled = builder.mMemoryPatternEnabled;
+        mCpuArenaEnabled = builder.mCpuArenaEnabled;
+        mUseXnnpack = builder.mUseXnnpack;
+        mUseTuningProfile = builder.mUseTuningProfile;
+    }
+
+    public OptLevel getOptLevel() {
+        return mOptLevel;
+    }
+
+    public int getIntraOpNumThreads() {
+        return mIntraOpNumThreads;
+    }
+
+    public int getInterOpNumThreads() {
+        return mInterOpNumThreads;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return mExecutionMode;
+    }
+
+    /** Returns whether ORT's thread pools spin while waiting for work, or null for the default. */
+    public Boolean getAllowSpinning() {
+        return mAllowSpinning;
+    }
+
+    /** Returns the prefix of ORT's profiling trace files, or null if profiling is off. */
+    public String getProfilingFilePrefix() {
+        return mProfilingFilePrefix;
+    }
+
+    /** Returns the number of independent sessions a model opens. */
+    public int getSessionPoolSize() {
+        return mSessionPoolSize;
+    }
+
+    /** Returns whether sessions run on the global thread pool instead of their own. */
+    public boolean getUseGlobalThreadPool() {
+        return mUseGlobalThreadPool;
+    }
+
+    /** Returns the directory optimized models are cached in, or null if caching is off. */
+    public String getOptimizedModelCacheDir() {
+        return mOptimizedModelCacheDir;
+    }
+
+    /** Returns whether ORT plans memory from the first run's pattern, or null for the default. */
+    public Boolean getMemoryPatternEnabled() {
+        return mMemoryPatternEnabled;
+    }
+
+    /** Returns whether the CPU provider allocates from an arena, or null for the default. */
+    public Boolean getCpuArenaEnabled() {
+        return mCpuArenaEnabled;
+    }
+
+    /** Returns whether the XNNPACK execution provider is registered ahead of the CPU one. */
+    public boolean getUseXnnpack() {
+        return mUseXnnpack;
+    }
+
+    /** Returns whether a saved {@link TuningProfile} overrides the tunable settings on load. */
+    public boolean getUseTuningProfile() {
+        return mUseTuningProfile;
+    }
+
+    /** Returns true if the XNNPACK provider is compiled into the ORT build in use. */
+    public static boolean isXnnpackAvailable() {
+        return OrtEnvironment.getAvailableProviders().contains(OrtProvider.XNNPACK);
+    }
+
+    /**
+     * Returns a stable string identifying these options. Two configs with the same
+     * fingerprint produce interchangeable sessions.
+     */
+    public String fingerprint() {
+        return "opt=" + mOptLevel
+                + ",intra=" + mIntraOpNumThreads
+                + ",inter=" + mInterOpNumThreads
+                + ",mode=" + mExecutionMode
+                + ",spin=" + mAllowSpinning
+                + (mProfilingFilePrefix != null ? ",profile=" + mProfilingFilePrefix : "")
+                + (mSessionPoolSize > 1 ? ",pool=" + mSessionPoolSize : "")
+                + (mUseGlobalThreadPool ? ",global" : "")
+                + (mMemoryPatternEnabled != null ? ",mempattern=" + mMemoryPatternEnabled : "")
+                + (mCpuArenaEnabled != null ? ",arena=" + mCpuArenaEnabled : "")
+                + (mUseXnnpack ? ",xnnpack" : "");
+    }
+
+    /**
+     * Creates native session options for this config. The caller owns the returned
+     * object and must close it once the session has been created.
+     */
+    public SessionOptions createSessionOptions() throws OrtException {
+        return createSessionOptions(mOptLevel);
+    }
+
+    /**
+     * Creates native session options with another optimization level, e.g. to load a model
+     * that has already been optimized.
+     */
+    SessionOptions createSessionOptions(OptLevel optLevel) throws OrtException {
+        SessionOptions options = new SessionOptions();
+        try {
+            options.setOptimizationLevel(optLevel);
+            options.setExecutionMode(mExecutionMode);
+            if (mUseGlobalThreadPool) {
+                options.disablePerSessionThreads();
+            } else {
+                if (mIntraOpNumThreads > 0) {
+                    options.setIntraOpNumThreads(mIntraOpNumThreads);
+                } else if (mSessionPoolSize > 1) {
+                    options.setIntraOpNumThreads(1);
+                }
+                if (mInterOpNumThreads > 0) {
+                    options.setInterOpNumThreads(mInterOpNumThreads);
+                }
+            }
+            if (mAllowSpinning != null) {
+                String allowSpinning = mAllowSpinning ? "1" : "0";
+                options.addConfigEntry(CONFIG_INTRA_OP_ALLOW_SPINNING, allowSpinning);
+                options.addConfigEntry(CONFIG_INTER_OP_ALLOW_SPINNING, allowSpinning);
+            }
+            if (mMemoryPatternEnabled != null) {
+                options.setMemoryPatternOptimization(mMemoryPatternEnabled);
+            }
+            if (mCpuArenaEnabled != null) {
+                options.setCPUArenaAllocator(mCpuArenaEnabled);
+            }
+            if (mUseXnnpack) {
+                // XNNPACK runs its kernels on its own pool, sized like the intra-op one.
+                options.addXnnpack(mIntraOpNumThreads > 0
+                        ? Collections.singletonMap(XNNPACK_INTRA_OP_NUM_THREADS, String.valueOf(mIntraOpNumThreads))
+                        : Collections.emptyMap());
+            }
+            if (mProfilingFilePrefix != null) {
+                options.enableProfiling(mProfilingFilePrefix);
+            }
+        } catch (OrtException e) {
+            options.close();
+            throw e;
+        }
+        return options;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SessionConfig && fingerprint().equals(((SessionConfig) o).fingerprint());
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionConfig{" + fingerprint() + "}";
+    }
+
+    public static final class Builder {
+        private OptLevel mOptLevel = OptLevel.ALL_OPT;
+        private int mIntraOpNumThreads;
+        private int mInterOpNumThreads;
+        private ExecutionMode mExecutionMode = ExecutionMode.SEQUENTIAL;
+        private Boolean mAllowSpinning;
+        private String mProfilingFilePrefix;
+        private int mSessionPoolSize = 1;
+        private boolean mUseGlobalThreadPool;
+        private String mOptimizedModelCacheDir;
+        private Boolean mMemoryPatternEnabled;
+        private Boolean mCpuArenaEnabled;
+        private boolean mUseXnnpack;
+        private boolean mUseTuningProfile = true;
+
+        public Builder() {
+        }
+
+        /** Starts from the settings of {@code config}. */
+        public Builder(SessionConfig config) {
+            mOptLevel = config.mOptLevel;
+            mIntraOpNumThreads = config.mIntraOpNumThreads;
+            mInterOpNumThreads = config.mInterOpNumThreads;
+            mExecutionMode = config.mExecutionMode;
+            mAllowSpinning = config.mAllowSpinning;
+            mProfilingFilePrefix = config.mProfilingFilePrefix;
+            mSessionPoolSize = config.mSessionPoolSize;
+            mUseGlobalThreadPool = config.mUseGlobalThreadPool;
+            mOptimizedModelCacheDir = config.mOptimizedModelCacheDir;
+            mMemoryPatternEnabled = config.mMemoryPatternEnabled;
+            mCpuArenaEnabled = config.mCpuArenaEnabled;
+            mUseXnnpack = config.mUseXnnpack;
+            mUseTuningProfile = config.mUseTuningProfile;
+        }
+
+        public Builder setOptLevel(OptLevel optLevel) {
+            mOptLevel = optLevel;
+            return this;
+        }
+
+        /**
+         * Threads used to parallelize a single operator; 0 for ORT's default, or 1 when
+         * sessions are pooled.
+         */
+        public Builder setIntraOpNumThreads(int intraOpNumThreads) {
+            mIntraOpNumThreads = intraOpNumThreads;
+            return this;
+        }
+
+        /**
+         * Threads used to run independent operators in parallel; 0 for ORT's default.
+         * Only used with {@link ExecutionMode#PARALLEL}.
+         */
+        public Builder setInterOpNumThreads(int interOpNumThreads) {
+            mInterOpNumThreads = interOpNumThreads;
+            return this;
+        }
+
+        public Builder setExecutionMode(ExecutionMode executionMode) {
+            mExecutionMode = executionMode;
+            return this;
+        }
+
+        /** Whether idle pool threads busy-wait for work; null for ORT's default. */
+        public Builder setAllowSpinning(Boolean allowSpinning) {
+            mAllowSpinning = allowSpinning;
+            return this;
+        }
+
+        /**
+         * Turns on ORT's profiler; traces are written to files starting with this prefix,
+         * e.g. a path under {@code Context.getCacheDir()}. Null, the default, turns it off.
+         */
+        public Builder setProfilingFilePrefix(String profilingFilePrefix) {
+            mProfilingFilePrefix = profilingFilePrefix;
+            return this;
+        }
+
+        /**
+         * Number of independent sessions of the model, each serving a share of the calls; 0
+         * for one per available processor. Defaults to 1. Every session holds its own copy of
+         * the optimized graph.
+         */
+        public Builder setSessionPoolSize(int sessionPoolSize) {
+            mSessionPoolSize = sessionPoolSize;
+            return this;
+        }
+
+        /**
+         * Runs the sessions on the process-wide thread pool instead of giving each its own,
+         * which keeps the thread count fixed however many sessions are open. The thread counts
+         * set here are then ignored. {@link SessionRegistry#enableGlobalThreadPool} must have
+         * been called first.
+         */
+        public Builder setUseGlobalThreadPool(boolean useGlobalThreadPool) {
+            mUseGlobalThreadPool = useGlobalThreadPool;
+            return this;
+        }
+
+        /**
+         * Directory to cache optimized models in, e.g. under {@code Context.getCodeCacheDir()}
+         * so that app updates clear it. Null, the default, turns caching off.
+         */
+        public Builder setOptimizedModelCacheDir(String optimizedModelCacheDir) {
+            mOptimizedModelCacheDir = optimizedModelCacheDir;
+            return this;
+        }
+
+        /**
+         * Whether ORT plans the memory of later runs from the allocations of the first one;
+         * null for ORT's default, which is on. It only pays off when input shapes repeat.
+         */
+        public Builder setMemoryPatternEnabled(Boolean memoryPatternEnabled) {
+            mMemoryPatternEnabled = memoryPatternEnabled;
+            return this;
+        }
+
+        /** Whether the CPU provider allocates from an arena; null for ORT's default, which is on. */
+        public Builder setCpuArenaEnabled(Boolean cpuArenaEnabled) {
+            mCpuArenaEnabled = cpuArenaEnabled;
+            return this;
+        }
+
+        /**
+         * Registers the XNNPACK execution provider, which takes the operators it supports and
+         * leaves the rest to the CPU provider. Only for ORT builds that include it, see
+         * {@link SessionConfig#isXnnpackAvailable()}; creating a session fails otherwise.
+         */
+        public Builder setUseXnnpack(boolean useXnnpack) {
+            mUseXnnpack = useXnnpack;
+            return this;
+        }
+
+        /**
+         * Whether a {@link TuningProfile} saved by a {@link SessionTuner} replaces the tunable
+         * settings of this config when the model is loaded. Defaults to true.
+         */
+        public Builder setUseTuningProfile(boolean useTuningProfile) {
+            mUseTuningProfile = useTuningProfile;
+            return this;
+        }
+
+        public SessionConfig build() {
+            if (mSessionPoolSize < 0) {
+                throw new IllegalArgumentException("Session pool size must not be negative");
+            }
+            if (mIntraOpNumThreads < 0 || mInterOpNumThreads < 0) {
+                throw new IllegalArgumentException("Thread counts must not be negative");
+            }
+            return new SessionConfig(this);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtSession;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A counted reference to a session shared through the {@link SessionRegistry}.
+ * <p>
+ * The session stays open at least until this handle is closed. Closing the handle more
+ * than once is harmless; using the session after closing the handle is not.
+ */
+public final class SessionHandle implements AutoCloseable {
+
+    private final SessionRegistry mRegistry;
+    private final SessionRegistry.Entry mEntry;
+    private final OrtSession mSession;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    SessionHandle(SessionRegistry registry, SessionRegistry.Entry entry) {
+        mRegistry = registry;
+        mEntry = entry;
+        mSession = entry.getSession();
+    }
+
+    public OrtSession getSession() {
+        return mSession;
+    }
+
+    public String getKey() {
+        return mEntry.mKey;
+    }
+
+    @Override
+    public void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            mRegistry.release(mEntry);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtLoggingLevel;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of {@link OrtSession}s keyed by {@link ModelSource} and {@link SessionConfig}.
+ * <p>
+ * Creating a session (reading the model and optimizing the graph) costs far more than a
+ * single prediction, so sessions are shared between all {@link OnnxModel} instances that
+ * load the same model with the same options. Callers {@link #acquire} a reference-counted
+ * {@link SessionHandle} and close it when done; a session whose last handle was closed stays
+ * resident for the configured idle timeout so that the next caller can reuse it, and is closed
+ * afterwards or earlier by {@link #trimIdle()} when the system is low on memory.
+ * <p>
+ * The key includes the source's {@link ModelSource#getVersionStamp() version stamp} and the
+ * name of the {@link ModelHandle} version being loaded, so that a model file replaced in place
+ * is read again rather than served from a session of its old content.
+ */
+public final class SessionRegistry {
+    public static final String TAG = "SessionRegistry";
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final SessionRegistry sInstance = new SessionRegistry();
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private ScheduledExecutorService mReaper;
+    private boolean mGlobalThreadPool;
+
+    private SessionRegistry() {
+    }
+
+    public static SessionRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets how long a session with no open handles stays cached. A timeout of 0 closes
+     * sessions as soon as their last handle is released; a negative timeout keeps idle
+     * sessions until {@link #trimIdle()} is called.
+     */
+    public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+        mIdleTimeoutMs = timeout < 0 ? -1 : unit.toMillis(timeout);
+    }
+
+    /**
+     * Creates the ORT environment with a process-wide intra-op thread pool, which sessions
+     * configured with {@link SessionConfig.Builder#setUseGlobalThreadPool} share instead of
+     * starting their own threads. Must be called before any session is created, since the
+     * environment cannot be changed afterwards.
+     *
+     * @param intraOpNumThreads Threads in the pool; 0 for ORT's default of one per core.
+     * @param allowSpinning     Whether idle pool threads busy-wait for work; null for ORT's default.
+     * @return true if the global pool is available, false if the environment already existed
+     *         without it.
+     */
+    public synchronized boolean enableGlobalThreadPool(int intraOpNumThreads, Boolean allowSpinning) {
+        if (mGlobalThreadPool) {
+            return true;
+        }
+        try (OrtEnvironment.ThreadingOptions options = new OrtEnvironment.ThreadingOptions()) {
+            if (intraOpNumThreads > 0) {
+                options.setGlobalIntraOpNumThreads(intraOpNumThreads);
+            }
+            if (allowSpinning != null) {
+                options.setGlobalSpinControl(allowSpinning);
+            }
+            OrtEnvironment.getEnvironment(OrtLoggingLevel.ORT_LOGGING_LEVEL_WARNING, OrtEnvironment.DEFAULT_NAME, options);
+            mGlobalThreadPool = true;
+            InferenceLog.d(TAG, "enabled the global thread pool with " + intraOpNumThreads + " thread(s)");
+            return true;
+        } catch (OrtException | IllegalStateException e) {
+            InferenceLog.e(TAG, "enable global thread pool error: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a handle to the shared session for the given model and config, creating the
+     * session on first use. The caller must close the handle when it no longer needs it.
+     */
+    public SessionHandle acquire(ModelSource source, SessionConfig config) throws OrtException, IOException {
+        return acquire(source, config, 0, null);
+    }
+
+    /**
+     * Returns a handle to one of the independent sessions of a session pool. Shard 0 is the
+     * session {@link #acquire(ModelSource, SessionConfig)} returns.
+     *
+     * @param version The name a {@link ModelHandle} deployed the model under, or null. Versions
+     *                never share a session, even when their sources have the same key.
+     */
+    SessionHandle acquire(ModelSource source, SessionConfig config, int shard, String version)
+            throws OrtException, IOException {
+        String stamp = source.getVersionStamp();
+        String key = source.getKey() + (stamp != null ? "[" + stamp + "]" : "") + (version != null ? "@" + version : "")
+                + "|" + config.fingerprint() + (shard > 0 ? "#" + shard : "");
+        Entry entry;
+        synchronized (this) {
+            if (config.getUseGlobalThreadPool() && !mGlobalThreadPool) {
+                throw new IllegalStateException("The global thread pool is not enabled");
+            }
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                mEntries.put(key, entry);
+            }
+            entry.mRefCount++;
+        }
+
+        try {
+            entry.open(source, config);
+        } catch (OrtException | IOException | RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+        return new SessionHandle(this, entry);
+    }
+
+    /**
+     * Eagerly creates the session for the given model so that the first {@link #acquire}
+     * does not pay for loading it. The session is subject to the idle timeout like any other.
+     */
+    public void preload(ModelSource source, SessionConfig config) throws OrtException, IOException {
+        acquire(source, config).close();
+    }
+
+    /**
+     * Closes every cached session that has no open handles, regardless of the idle timeout.
+     * Intended to be called from {@code onTrimMemory}.
+     *
+     * @return The number of sessions closed.
+     */
+    public int trimIdle() {
+        List<Entry> idle = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.mRefCount == 0) {
+                    it.remove();
+                    idle.add(entry);
+                }
+            }
+        }
+        for (Entry entry : idle) {
+            entry.close();
+        }
+        InferenceLog.d(TAG, "trimIdle closed " + idle.size() + " session(s)");
+        return idle.size();
+    }
+
+    void release(Entry entry) {
+        boolean closeNow = false;
+        long idleTimeoutMs;
+        synchronized (this) {
+            idleTimeoutMs = mIdleTimeoutMs;
+            if (--entry.mRefCount > 0) {
+                return;
+            }
+            entry.mIdleSinceNanos = System.nanoTime();
+            if (!entry.isOpen() || idleTimeoutMs == 0) {
+                mEntries.remove(entry.mKey);
+                closeNow = true;
+            } else if (idleTimeoutMs > 0) {
+                if (mReaper == null) {
+                    mReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, TAG + "-reaper");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                mReaper.schedule(this::reapIdle, idleTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (closeNow) {
+            entry.close();
+        }
+    }
+
+    private void reapIdle() {
+        List<Entry> expired = new ArrayList<>();
+        synchronized (this) {
+            if (mIdleTimeoutMs < 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMs);
+            Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.mRefCount == 0 && now - entry.mIdleSinceNanos >= timeoutNanos) {
+                    it.remove();
+                    expired.add(entry);
+                }
+            }
+        }
+        for (Entry entry : expired) {
+            entry.close();
+        }
+    }
+
+    /**
+     * A cached session. {@link #mRefCount} and {@link #mIdleSinceNanos} are guarded by the
+     * registry lock, the session itself by the entry's own monitor so that loading one model
+     * does not block callers of another.
+     */
+    static final class Entry {
+        final String mKey;
+        int mRefCount;
+        long mIdleSinceNanos;
+        private OrtSession mSession;
+
+        Entry(String key) {
+            mKey = key;
+        }
+
+        synchronized boolean isOpen() {
+            return mSession != null;
+        }
+
+        synchronized OrtSession getSession() {
+            return mSession;
+        }
+
+        synchronized void open(ModelSource source, SessionConfig config) throws OrtException, IOException {
+            if (mSession != null) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (config.getOptimizedModelCacheDir() != null) {
+                mSession = OptimizedModelCache.createSession(source, config, OrtEnvironment.getEnvironment());
+            } else {
+                try (SessionOptions options = config.createSessionOptions()) {
+                    mSession = source.createSession(OrtEnvironment.getEnvironment(), options);
+                }
+            }
+            InferenceLog.d(TAG, "created session " + mKey + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        synchronized void close() {
+            if (mSession == null) {
+                return;
+            }
+            try {
+                mSession.close();
+                InferenceLog.d(TAG, "closed session " + mKey);
+            } catch (OrtException e) {
+                InferenceLog.e(TAG, "close session " + mKey + " error: " + e.getMessage(), e);
+            } finally {
+                mSession = null;
+            }
+        }
+    }
+}
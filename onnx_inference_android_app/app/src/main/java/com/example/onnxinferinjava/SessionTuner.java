@@ -0,0 +1,356 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.ExecutionMode;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the fastest CPU session settings for a model on the local machine by timing a
+ * representative input batch under every combination of:
+ * <ul>
+ *     <li>optimization level,</li>
+ *     <li>execution mode, with every intra-op thread count, and with every inter-op thread
+ *     count in parallel mode,</li>
+ *     <li>memory pattern on and off,</li>
+ *     <li>CPU arena on and off,</li>
+ *     <li>XNNPACK on and off, when the ORT build includes it.</li>
+ * </ul>
+ * Each combination gets a fresh session, bypassing the {@link SessionRegistry}, which is
+ * warmed up and then timed by the median latency of a single call. The fastest settings are
+ * saved as a {@link TuningProfile} next to the model, which every later load of the model
+ * then applies to its {@link SessionConfig}.
+ * <p>
+ * The matrix grows with the product of the dimensions, so narrow them for models that take
+ * long to load or run, and run the tuner off the main thread, e.g. once after installation.
+ * It measures the latency of one call at a time; for a model serving many concurrent callers,
+ * prefer a {@link SessionConfig.Builder#setSessionPoolSize session pool} over intra-op
+ * threads. Pooled configs and those on the global thread pool keep their own thread counts
+ * when the profile is applied.
+ */
+public final class SessionTuner {
+    public static final String TAG = "SessionTuner";
+
+    private final ModelSource mSource;
+    private final float[] mRows;
+    private final int mNumRows;
+    private final ModelInputs mInputs;
+    private final SessionConfig mBaseConfig;
+    private final OptLevel[] mOptLevels;
+    private final ExecutionMode[] mExecutionModes;
+    private final int[] mThreadCounts;
+    private final boolean mTryXnnpack;
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final File mProfileFile;
+
+    private SessionTuner(Builder builder) {
+        mSource = builder.mSource;
+        mRows = builder.mRows;
+        mNumRows = builder.mNumRows;
+        mInputs = builder.mInputs;
+        mBaseConfig = builder.mBaseConfig;
+        mOptLevels = builder.mOptLevels;
+        mExecutionModes = builder.mExecutionModes;
+        mThreadCounts = builder.mThreadCounts;
+        mTryXnnpack = builder.mTryXnnpack && SessionConfig.isXnnpackAvailable();
+        mWarmupIterations = builder.mWarmupIterations;
+        mIterations = builder.mIterations;
+        mProfileFile = builder.mProfileFile;
+    }
+
+    /** Returns every combination the tuner will time. */
+    public List<SessionConfig> getCandidates() {
+        List<SessionConfig> candidates = new ArrayList<>();
+        boolean[] onOff = {true, false};
+        for (OptLevel optLevel : mOptLevels) {
+            for (ExecutionMode executionMode : mExecutionModes) {
+                int[] interOpCounts = executionMode == ExecutionMode.PARALLEL ? mThreadCounts : new int[]{0};
+                for (int intraOp : mThreadCounts) {
+                    for (int interOp : interOpCounts) {
+                        for (boolean memoryPattern : onOff) {
+                            for (boolean cpuArena : onOff) {
+                                for (boolean xnnpack : mTryXnnpack ? onOff : new boolean[]{false}) {
+                                    candidates.add(new SessionConfig.Builder(mBaseConfig)
+                                            .setOptLevel(optLevel)
+                                            .setExecutionMode(executionMode)
+                                            .setIntraOpNumThreads(intraOp)
+                                            .setInterOpNumThreads(interOp)
+                                            .setMemoryPatternEnabled(memoryPattern)
+                                            .setCpuArenaEnabled(cpuArena)
+                                            .setUseXnnpack(xnnpack)
+                                            .setSessionPoolSize(1)
+                                            .setUseGlobalThreadPool(false)
+                                            .setProfilingFilePrefix(null)
+                                            .setUseTuningProfile(false)
+                                            .build());
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Times every candidate and saves the fastest to the profile file, if there is one.
+     * Candidates whose session cannot be created or run are logged and skipped.
+     *
+     * @throws IllegalStateException if no candidate could be run.
+     */
+    public Result tune() throws OrtException, IOException {
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        List<Measurement> measurements = new ArrayList<>();
+        OnnxTensor rowsTensor = null;
+        try {
+            if (mInputs == null) {
+                long[] shape = {mNumRows, mRows.length / mNumRows};
+                rowsTensor = NativeTensors.created(OnnxTensor.createTensor(environment, FloatBuffer.wrap(mRows), shape));
+            }
+            for (SessionConfig candidate : getCandidates()) {
+                try {
+                    measurements.add(measure(environment, candidate, rowsTensor));
+                } catch (OrtException e) {
+                    InferenceLog.w(TAG, "skipping " + candidate.fingerprint() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if (rowsTensor != null) {
+                NativeTensors.close(rowsTensor);
+            }
+        }
+        if (measurements.isEmpty()) {
+            throw new IllegalStateException("No configuration could run " + mSource);
+        }
+
+        measurements.sort(Comparator.comparingLong(Measurement::getMedianNanos));
+        Measurement best = measurements.get(0);
+        InferenceLog.d(TAG, mSource + ": fastest of " + measurements.size() + " is " + best);
+        if (mProfileFile != null) {
+            TuningProfile.save(mProfileFile, best.getConfig(), best.getMedianNanos());
+        }
+        return new Result(measurements, mProfileFile);
+    }
+
+    private Measurement measure(OrtEnvironment environment, SessionConfig config, OnnxTensor rowsTensor)
+            throws OrtException, IOException {
+        long loadStart = System.nanoTime();
+        try (SessionOptions options = config.createSessionOptions();
+             OrtSession session = mSource.createSession(environment, options)) {
+            long loadNanos = System.nanoTime() - loadStart;
+            Map<String, OnnxTensor> inputs = mInputs != null ? mInputs.getTensors()
+                    : Collections.singletonMap(session.getInputNames().iterator().next(), rowsTensor);
+
+            for (int i = 0; i < mWarmupIterations; i++) {
+                // Only the first runs' allocations and caches matter here.
+                NativeTensors.close(NativeTensors.created(session.run(inputs)));
+            }
+            long[] nanos = new long[mIterations];
+            for (int i = 0; i < mIterations; i++) {
+                long start = System.nanoTime();
+                OrtSession.Result result = NativeTensors.created(session.run(inputs));
+                nanos[i] = System.nanoTime() - start;
+                NativeTensors.close(result);
+            }
+            Arrays.sort(nanos);
+            return new Measurement(config, loadNanos, nanos[nanos.length / 2], nanos[nanos.length * 9 / 10]);
+        }
+    }
+
+    /** The timings of one candidate. Durations are in nanoseconds. */
+    public static final class Measurement {
+        private final SessionConfig mConfig;
+        private final long mLoadNanos;
+        private final long mMedianNanos;
+        private final long mP90Nanos;
+
+        private Measurement(SessionConfig config, long loadNanos, long medianNanos, long p90Nanos) {
+            mConfig = config;
+            mLoadNanos = loadNanos;
+            mMedianNanos = medianNanos;
+            mP90Nanos = p90Nanos;
+        }
+
+        public SessionConfig getConfig() {
+            return mConfig;
+        }
+
+        /** Time to create the session, including graph optimization. */
+        public long getLoadNanos() {
+            return mLoadNanos;
+        }
+
+        public long getMedianNanos() {
+            return mMedianNanos;
+        }
+
+        public long getP90Nanos() {
+            return mP90Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return mConfig.fingerprint() + ": median " + mMedianNanos / 1000 + " us, p90 " + mP90Nanos / 1000
+                    + " us, load " + mLoadNanos / 1000 + " us";
+        }
+    }
+
+    public static final class Result {
+        private final List<Measurement> mMeasurements;
+        private final File mProfileFile;
+
+        private Result(List<Measurement> measurements, File profileFile) {
+            mMeasurements = Collections.unmodifiableList(measurements);
+            mProfileFile = profileFile;
+        }
+
+        /** Returns the timings of every candidate that ran, fastest first. */
+        public List<Measurement> getMeasurements() {
+            return mMeasurements;
+        }
+
+        public Measurement getBest() {
+            return mMeasurements.get(0);
+        }
+
+        /** Returns the file the best settings were saved to, or null if they were not saved. */
+        public File getProfileFile() {
+            return mProfileFile;
+        }
+    }
+
+    public static final class Builder {
+        private final ModelSource mSource;
+        private final float[] mRows;
+        private final int mNumRows;
+        private final ModelInputs mInputs;
+        private SessionConfig mBaseConfig = SessionConfig.DEFAULT;
+        private OptLevel[] mOptLevels = OptLevel.values();
+        private ExecutionMode[] mExecutionModes = ExecutionMode.values();
+        private int[] mThreadCounts = defaultThreadCounts();
+        private boolean mTryXnnpack = true;
+        private int mWarmupIterations = 3;
+        private int mIterations = 20;
+        private File mProfileFile;
+
+        /**
+         * Tunes a model with one float input on {@code numRows} row-major rows.
+         *
+         * @param rows A representative batch, e.g. of the size the model usually serves.
+         */
+        public Builder(ModelSource source, float[] rows, int numRows) {
+            if (numRows <= 0 || rows.length % numRows != 0) {
+                throw new IllegalArgumentException("Cannot split " + rows.length + " values into " + numRows + " rows");
+            }
+            mSource = source;
+            mRows = rows;
+            mNumRows = numRows;
+            mInputs = null;
+            mProfileFile = source.getTuningProfileFile();
+        }
+
+        /**
+         * Tunes a model on inputs built by {@link OnnxModel#newInputs()}. They stay owned by
+         * the caller and must stay open until {@link #tune()} returns.
+         */
+        public Builder(ModelSource source, ModelInputs inputs) {
+            mSource = source;
+            mRows = null;
+            mNumRows = inputs.getNumRows();
+            mInputs = inputs;
+            mProfileFile = source.getTuningProfileFile();
+        }
+
+        /**
+         * Settings the candidates start from; only the tuned ones are saved. Defaults to
+         * {@link SessionConfig#DEFAULT}.
+         */
+        public Builder setBaseConfig(SessionConfig baseConfig) {
+            mBaseConfig = baseConfig;
+            return this;
+        }
+
+        /** Optimization levels to try; defaults to all of them. */
+        public Builder setOptLevels(OptLevel... optLevels) {
+            mOptLevels = optLevels.clone();
+            return this;
+        }
+
+        /** Execution modes to try; defaults to both. */
+        public Builder setExecutionModes(ExecutionMode... executionModes) {
+            mExecutionModes = executionModes.clone();
+            return this;
+        }
+
+        /**
+         * Intra-op, and in parallel mode inter-op, thread counts to try; defaults to 1, half
+         * the cores and all of them.
+         */
+        public Builder setThreadCounts(int... threadCounts) {
+            mThreadCounts = threadCounts.clone();
+            return this;
+        }
+
+        /** Whether to try XNNPACK when the ORT build includes it; defaults to true. */
+        public Builder setTryXnnpack(boolean tryXnnpack) {
+            mTryXnnpack = tryXnnpack;
+            return this;
+        }
+
+        /** Untimed runs per candidate; defaults to 3. */
+        public Builder setWarmupIterations(int warmupIterations) {
+            mWarmupIterations = warmupIterations;
+            return this;
+        }
+
+        /** Timed runs per candidate; defaults to 20. */
+        public Builder setIterations(int iterations) {
+            mIterations = iterations;
+            return this;
+        }
+
+        /**
+         * Where to save the best settings; defaults to {@link ModelSource#getTuningProfileFile()},
+         * which is also where loads look for them. Null only reports the results.
+         */
+        public Builder setProfileFile(File profileFile) {
+            mProfileFile = profileFile;
+            return this;
+        }
+
+        public SessionTuner build() {
+            if (mOptLevels.length == 0 || mExecutionModes.length == 0 || mThreadCounts.length == 0) {
+                throw new IllegalArgumentException("Every tuned dimension needs at least one value");
+            }
+            for (int threadCount : mThreadCounts) {
+                if (threadCount <= 0) {
+                    throw new IllegalArgumentException("Thread counts must be positive");
+                }
+            }
+            if (mWarmupIterations < 0 || mIterations <= 0) {
+                throw new IllegalArgumentException("iterations must be positive and warmupIterations not negative");
+            }
+            return new SessionTuner(this);
+        }
+
+        private static int[] defaultThreadCounts() {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return Arrays.stream(new int[]{1, cores / 2, cores}).filter(n -> n > 0).distinct().toArray();
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package com.example.onnxinferinjava;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Pure-Java evaluator for models whose graph is a single {@code TreeEnsembleClassifier}, such
+ * as the XGBoost classifiers exported by {@code xgboost_train/train.py}.
+ * <p>
+ * For a model with a few shallow trees, an ORT call is dominated by crossing JNI, creating
+ * native tensors and handling the {@code Result}, not by walking the trees. This class parses
+ * the ensemble's node attributes out of the {@code .onnx} file into flat primitive arrays and
+ * scores rows on the Java heap, with no native calls and no allocation per row.
+ * <p>
+ * It reproduces ORT's arithmetic exactly: scores are accumulated in {@code float}, tree by
+ * tree in ORT's order, the base values are added last, the label is the first class with the
+ * highest score, and the post-transform uses ORT's formulas. {@link XgbcOnnxModel} still
+ * checks that both engines agree on sample rows before it uses this one.
+ * <p>
+ * {@link #parse} returns null for anything outside what it implements: other operators in
+ * the graph (besides {@code Cast}, {@code ZipMap} and {@code Identity}), string class labels,
+ * tensor-valued attributes, binary classifiers that store a single score column, and the
+ * {@code SOFTMAX_ZERO} and {@code PROBIT} post-transforms.
+ */
+public final class TreeEnsembleModel {
+    private static final String TAG = "TreeEnsembleModel";
+
+    private static final String OP_TREE_ENSEMBLE_CLASSIFIER = "TreeEnsembleClassifier";
+
+    private static final byte MODE_LEQ = 0;
+    private static final byte MODE_LT = 1;
+    private static final byte MODE_GTE = 2;
+    private static final byte MODE_GT = 3;
+    private static final byte MODE_EQ = 4;
+    private static final byte MODE_NEQ = 5;
+
+    private static final int POST_NONE = 0;
+    private static final int POST_SOFTMAX = 1;
+    private static final int POST_LOGISTIC = 2;
+
+    private final int mNumFeatures;
+    private final long[] mClassLabels;
+    private final float[] mBaseValues;
+    private final int mPostTransform;
+
+    /** Node index of every tree's root, in ORT's evaluation order. */
+    private final int[] mRoots;
+    // Branch nodes, by node index.
+    private final int[] mFeature;
+    private final float[] mThreshold;
+    private final byte[] mMode;
+    private final boolean[] mMissingTracksTrue;
+    /**
+     * Children of node {@code i} at {@code 2 * i} (condition true) and {@code 2 * i + 1}
+     * (condition false). A child {@code >= 0} is a branch node index, a negative child
+     * {@code c} is leaf {@code ~c}.
+     */
+    private final int[] mChildren;
+    /** True when every branch is {@code BRANCH_LT} without missing-value tracking. */
+    private final boolean mAllLessThan;
+    // Leaf weights: leaf l adds mWeightValue[k] to class mWeightClass[k] for k in
+    // [mLeafStart[l], mLeafStart[l + 1]).
+    private final int[] mLeafStart;
+    private final int[] mWeightClass;
+    private final float[] mWeightValue;
+
+    private TreeEnsembleModel(int numFeatures, long[] classLabels, float[] baseValues, int postTransform,
+                              int[] roots, int[] feature, float[] threshold, byte[] mode,
+                              boolean[] missingTracksTrue, int[] children, int[] leafStart,
+                              int[] weightClass, float[] weightValue) {
+        mNumFeatures = numFeatures;
+        mClassLabels = classLabels;
+        mBaseValues = baseValues;
+        mPostTransform = postTransform;
+        mRoots = roots;
+        mFeature = feature;
+        mThreshold = threshold;
+        mMode = mode;
+        mMissingTracksTrue = missingTracksTrue;
+        mChildren = children;
+        mLeafStart = leafStart;
+        mWeightClass = weightClass;
+        mWeightValue = weightValue;
+
+        boolean allLessThan = true;
+        for (int i = 0; i < mode.length; i++) {
+            allLessThan &= mode[i] == MODE_LT && !missingTracksTrue[i];
+        }
+        mAllLessThan = allLessThan;
+    }
+
+    public int getNumFeatures() {
+        return mNumFeatures;
+    }
+
+    public int getNumClasses() {
+        return mClassLabels.length;
+    }
+
+    public int getNumTrees() {
+        return mRoots.length;
+    }
+
+    /**
+     * Parses the tree ensemble out of a serialized {@code .onnx} model.
+     *
+     * @param onnxModel   The model bytes; not consumed.
+     * @param numFeatures The model's input width.
+     * @return The evaluator, or null if the model is not a tree ensemble this class supports.
+     */
+    public static TreeEnsembleModel parse(ByteBuffer onnxModel, int numFeatures) {
+        List<OnnxGraphReader.Node> nodes;
+        try {
+            nodes = OnnxGraphReader.readNodes(onnxModel);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException e) {
+            InferenceLog.w(TAG, "Not a readable ONNX model: " + e.getMessage());
+            return null;
+        }
+
+        OnnxGraphReader.Node ensemble = null;
+        for (OnnxGraphReader.Node node : nodes) {
+            if (OP_TREE_ENSEMBLE_CLASSIFIER.equals(node.mOpType) && ensemble == null) {
+                ensemble = node;
+            } else if (!"Cast".equals(node.mOpType) && !"ZipMap".equals(node.mOpType)
+                    && !"Identity".equals(node.mOpType)) {
+                InferenceLog.w(TAG, "Unsupported node " + node.mOpType + " in graph");
+                return null;
+            }
+        }
+        if (ensemble == null) {
+            InferenceLog.w(TAG, "No " + OP_TREE_ENSEMBLE_CLASSIFIER + " in graph");
+            return null;
+        }
+        try {
+            return fromNode(ensemble, numFeatures);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            InferenceLog.w(TAG, "Unsupported tree ensemble: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static TreeEnsembleModel fromNode(OnnxGraphReader.Node node, int numFeatures) {
+        if (!node.mUnsupported.isEmpty()) {
+            throw new IllegalArgumentException("tensor attributes " + node.mUnsupported);
+        }
+        long[] classLabels = require(node.mInts, "classlabels_int64s");
+        int numClasses = classLabels.length;
+
+        int postTransform;
+        String post = node.mString.getOrDefault("post_transform", "NONE");
+        switch (post) {
+            case "NONE":
+                postTransform = POST_NONE;
+                break;
+            case "SOFTMAX":
+                postTransform = POST_SOFTMAX;
+                break;
+            case "LOGISTIC":
+                postTransform = POST_LOGISTIC;
+                break;
+            default:
+                throw new IllegalArgumentException("post_transform " + post);
+        }
+
+        float[] baseValues = node.mFloats.getOrDefault("base_values", new float[0]);
+        if (baseValues.length != 0 && baseValues.length != numClasses) {
+            throw new IllegalArgumentException(baseValues.length + " base values for " + numClasses + " classes");
+        }
+
+        long[] treeIds = require(node.mInts, "nodes_treeids");
+        long[] nodeIds = require(node.mInts, "nodes_nodeids");
+        long[] featureIds = require(node.mInts, "nodes_featureids");
+        float[] values = require(node.mFloats, "nodes_values");
+        long[] trueIds = require(node.mInts, "nodes_truenodeids");
+        long[] falseIds = require(node.mInts, "nodes_falsenodeids");
+        List<String> modes = node.mStrings.get("nodes_modes");
+        long[] missingTracks = node.mInts.getOrDefault("nodes_missing_value_tracks_true", new long[treeIds.length]);
+        int numNodes = treeIds.length;
+        if (modes == null || nodeIds.length != numNodes || featureIds.length != numNodes || values.length != numNodes
+                || trueIds.length != numNodes || falseIds.length != numNodes || modes.size() != numNodes
+                || missingTracks.length != numNodes) {
+            throw new IllegalArgumentException("node attributes have different lengths");
+        }
+
+        long[] weightTreeIds = require(node.mInts, "class_treeids");
+        long[] weightNodeIds = require(node.mInts, "class_nodeids");
+        long[] weightClassIds = require(node.mInts, "class_ids");
+        float[] weights = require(node.mFloats, "class_weights");
+        int numWeights = weightTreeIds.length;
+        if (weightNodeIds.length != numWeights || weightClassIds.length != numWeights || weights.length != numWeights) {
+            throw new IllegalArgumentException("class attributes have different lengths");
+        }
+        boolean[] hasClass = new boolean[numClasses];
+        for (long classId : weightClassIds) {
+            if (classId < 0 || classId >= numClasses) {
+                throw new IllegalArgumentException("class id " + classId);
+            }
+            hasClass[(int) classId] = true;
+        }
+        for (boolean has : hasClass) {
+            if (!has) {
+                // ORT derives the missing score of binary classifiers from the other column.
+                throw new IllegalArgumentException("classes without weights");
+            }
+        }
+
+        // Split nodes into branches and leaves, and index them by (tree, node) id.
+        Map<Long, Integer> indexOf = new HashMap<>();
+        int numBranches = 0;
+        int numLeaves = 0;
+        int[] flatIndex = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            long key = treeIds[i] << 32 | nodeIds[i];
+            if (indexOf.put(key, i) != null) {
+                throw new IllegalArgumentException("duplicate node " + treeIds[i] + "/" + nodeIds[i]);
+            }
+            flatIndex[i] = "LEAF".equals(modes.get(i)) ? ~numLeaves++ : numBranches++;
+        }
+
+        int[] feature = new int[numBranches];
+        float[] threshold = new float[numBranches];
+        byte[] mode = new byte[numBranches];
+        boolean[] missingTracksTrue = new boolean[numBranches];
+        int[] children = new int[2 * numBranches];
+        boolean[] isChild = new boolean[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            if (flatIndex[i] < 0) {
+                continue;
+            }
+            int b = flatIndex[i];
+            if (featureIds[i] < 0 || featureIds[i] >= numFeatures) {
+                throw new IllegalArgumentException("feature " + featureIds[i] + " out of " + numFeatures);
+            }
+            feature[b] = (int) featureIds[i];
+            threshold[b] = values[i];
+            mode[b] = modeOf(modes.get(i));
+            missingTracksTrue[b] = missingTracks[i] != 0;
+            children[2 * b] = flatIndex[child(indexOf, treeIds[i], trueIds[i], isChild)];
+            children[2 * b + 1] = flatIndex[child(indexOf, treeIds[i], falseIds[i], isChild)];
+        }
+
+        // Roots are the nodes no other node points to, in attribute order, as in ORT.
+        int numRoots = 0;
+        int[] roots = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            if (!isChild[i]) {
+                roots[numRoots++] = flatIndex[i];
+            }
+        }
+
+        // Group leaf weights by leaf, keeping their attribute order within each leaf.
+        int[] leafStart = new int[numLeaves + 1];
+        int[] weightLeaf = new int[numWeights];
+        for (int k = 0; k < numWeights; k++) {
+            Integer i = indexOf.get(weightTreeIds[k] << 32 | weightNodeIds[k]);
+            if (i == null || flatIndex[i] >= 0) {
+                throw new IllegalArgumentException("weight on non-leaf " + weightTreeIds[k] + "/" + weightNodeIds[k]);
+            }
+            weightLeaf[k] = ~flatIndex[i];
+            leafStart[weightLeaf[k] + 1]++;
+        }
+        for (int l = 0; l < numLeaves; l++) {
+            leafStart[l + 1] += leafStart[l];
+        }
+        int[] fill = leafStart.clone();
+        int[] weightClass = new int[numWeights];
+        float[] weightValue = new float[numWeights];
+        for (int k = 0; k < numWeights; k++) {
+            int slot = fill[weightLeaf[k]]++;
+            weightClass[slot] = (int) weightClassIds[k];
+            weightValue[slot] = weights[k];
+        }
+
+        return new TreeEnsembleModel(numFeatures, classLabels, baseValues, postTransform,
+                Arrays.copyOf(roots, numRoots), feature, threshold, mode, missingTracksTrue,
+                children, leafStart, weightClass, weightValue);
+    }
+
+    private static int child(Map<Long, Integer> indexOf, long treeId, long nodeId, boolean[] isChild) {
+        Integer i = indexOf.get(treeId << 32 | nodeId);
+        if (i == null) {
+            throw new IllegalArgumentException("missing node " + treeId + "/" + nodeId);
+        }
+        isChild[i] = true;
+        return i;
+    }
+
+    private static byte modeOf(String mode) {
+        switch (mode) {
+            case "BRANCH_LEQ":
+                return MODE_LEQ;
+            case "BRANCH_LT":
+                return MODE_LT;
+            case "BRANCH_GTE":
+                return MODE_GTE;
+            case "BRANCH_GT":
+                return MODE_GT;
+            case "BRANCH_EQ":
+                return MODE_EQ;
+            case "BRANCH_NEQ":
+                return MODE_NEQ;
+            default:
+                throw new IllegalArgumentException("node mode " + mode);
+        }
+    }
+
+    private static <T> T require(Map<String, T> attributes, String name) {
+        T value = attributes.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing attribute " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Scores {@code numRows} row-major rows.
+     *
+     * @param labelsOut        Receives one label per row, or null.
+     * @param probabilitiesOut Receives {@code numRows * getNumClasses()} post-transformed
+     *                         scores in row-major order, or null.
+     */
+    public void predict(float[] rows, int numRows, long[] labelsOut, float[] probabilitiesOut) {
+        if (rows.length < numRows * mNumFeatures) {
+            throw new IllegalArgumentException("Cannot read " + numRows + " rows from " + rows.length + " values");
+        }
+        int numClasses = mClassLabels.length;
+        float[] scores = new float[numClasses];
+        for (int row = 0; row < numRows; row++) {
+            score(rows, row * mNumFeatures, scores);
+            if (labelsOut != null) {
+                labelsOut[row] = mClassLabels[argMax(scores)];
+            }
+            if (probabilitiesOut != null) {
+                postTransform(scores);
+                System.arraycopy(scores, 0, probabilitiesOut, row * numClasses, numClasses);
+            }
+        }
+    }
+
+    /** Returns one label per row. */
+    public long[] predictLabels(float[] rows, int numRows) {
+        long[] labels = new long[numRows];
+        predict(rows, numRows, labels, null);
+        return labels;
+    }
+
+    /** Returns a {@code [numRows][numClasses]} matrix of post-transformed scores. */
+    public float[][] predictProbabilities(float[] rows, int numRows) {
+        int numClasses = mClassLabels.length;
+        float[] flat = new float[numRows * numClasses];
+        predict(rows, numRows, null, flat);
+        float[][] probabilities = new float[numRows][];
+        for (int row = 0; row < numRows; row++) {
+            probabilities[row] = Arrays.copyOfRange(flat, row * numClasses, (row + 1) * numClasses);
+        }
+        return probabilities;
+    }
+
+    /** Writes the raw class scores of the row starting at {@code offset} into {@code scores}. */
+    private void score(float[] rows, int offset, float[] scores) {
+        Arrays.fill(scores, 0f);
+        int[] children = mChildren;
+        for (int root : mRoots) {
+            int node = root;
+            if (mAllLessThan) {
+                // The comparison compiles to a flag move rather than a jump, so the walk has
+                // no data-dependent branch besides the loop exit.
+                float[] threshold = mThreshold;
+                int[] feature = mFeature;
+                while (node >= 0) {
+                    node = children[2 * node + (rows[offset + feature[node]] < threshold[node] ? 0 : 1)];
+                }
+            } else {
+                while (node >= 0) {
+                    node = children[2 * node + (goesTrue(node, rows[offset + mFeature[node]]) ? 0 : 1)];
+                }
+            }
+            int leaf = ~node;
+            for (int k = mLeafStart[leaf]; k < mLeafStart[leaf + 1]; k++) {
+                scores[mWeightClass[k]] += mWeightValue[k];
+            }
+        }
+        if (mBaseValues.length != 0) {
+            for (int c = 0; c < scores.length; c++) {
+                scores[c] += mBaseValues[c];
+            }
+        }
+    }
+
+    private boolean goesTrue(int node, float value) {
+        if (Float.isNaN(value) && mMissingTracksTrue[node]) {
+            return true;
+        }
+        float threshold = mThreshold[node];
+        switch (mMode[node]) {
+            case MODE_LEQ:
+                return value <= threshold;
+            case MODE_LT:
+                return value < threshold;
+            case MODE_GTE:
+                return value >= threshold;
+            case MODE_GT:
+                return value > threshold;
+            case MODE_EQ:
+                return value == threshold;
+            default:
+                return value != threshold;
+        }
+    }
+
+    private static int argMax(float[] scores) {
+        int best = 0;
+        for (int c = 1; c < scores.length; c++) {
+            if (scores[c] > scores[best]) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private void postTransform(float[] scores) {
+        switch (mPostTransform) {
+            case POST_SOFTMAX: {
+                float max = -Float.MAX_VALUE;
+                for (float score : scores) {
+                    if (score > max) {
+                        max = score;
+                    }
+                }
+                float sum = 0f;
+                for (int c = 0; c < scores.length; c++) {
+                    scores[c] = (float) Math.exp(scores[c] - max);
+                    sum += scores[c];
+                }
+                for (int c = 0; c < scores.length; c++) {
+                    scores[c] /= sum;
+                }
+                break;
+            }
+            case POST_LOGISTIC:
+                for (int c = 0; c < scores.length; c++) {
+                    float v = 1f / (1f + (float) Math.exp(-Math.abs(scores[c])));
+                    scores[c] = scores[c] < 0 ? 1f - v : v;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns {@code numRows} deterministic rows that exercise both sides of every threshold,
+     * for comparing this evaluator with ORT.
+     */
+    float[] sampleRows(int numRows, long seed) {
+        float[] min = new float[mNumFeatures];
+        float[] max = new float[mNumFeatures];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+        for (int b = 0; b < mFeature.length; b++) {
+            min[mFeature[b]] = Math.min(min[mFeature[b]], mThreshold[b]);
+            max[mFeature[b]] = Math.max(max[mFeature[b]], mThreshold[b]);
+        }
+        Random random = new Random(seed);
+        float[] rows = new float[numRows * mNumFeatures];
+        for (int i = 0; i < rows.length; i++) {
+            int f = i % mNumFeatures;
+            if (min[f] > max[f]) {
+                rows[i] = random.nextFloat();
+            } else if (random.nextInt(8) == 0) {
+                // Exactly on a threshold, where the comparison operators differ.
+                rows[i] = random.nextBoolean() ? min[f] : max[f];
+            } else {
+                float span = Math.max(1f, max[f] - min[f]);
+                rows[i] = min[f] - span / 4 + random.nextFloat() * span * 1.5f;
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.onnxinferinjava;
+
+import ai.onnxruntime.OrtSession.SessionOptions.ExecutionMode;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The tunable session settings a {@link SessionTuner} found fastest for a model, saved as a
+ * properties file next to it (see {@link ModelSource#getTuningProfileFile()}).
+ * <p>
+ * {@link LoadedModel#load} applies the profile on top of the model's {@link SessionConfig},
+ * replacing its optimization level, thread counts, execution mode, memory pattern, CPU arena
+ * and XNNPACK settings and keeping everything else. The thread counts are only applied to a
+ * single session with its own threads: the tuner measures one session running alone, so its
+ * counts would oversubscribe the cores when multiplied across a session pool and mean nothing
+ * for the global thread pool. A profile only describes the machine it was measured on, so it
+ * is ignored on another CPU architecture or core count, as is an unreadable one.
+ */
+final class TuningProfile {
+    private static final String TAG = "TuningProfile";
+
+    static final String FILE_SUFFIX = ".tuning";
+
+    private static final String KEY_OPT_LEVEL = "optLevel";
+    private static final String KEY_INTRA_OP_NUM_THREADS = "intraOpNumThreads";
+    private static final String KEY_INTER_OP_NUM_THREADS = "interOpNumThreads";
+    private static final String KEY_EXECUTION_MODE = "executionMode";
+    private static final String KEY_MEMORY_PATTERN = "memoryPattern";
+    private static final String KEY_CPU_ARENA = "cpuArena";
+    private static final String KEY_XNNPACK = "xnnpack";
+    private static final String KEY_OS_ARCH = "osArch";
+    private static final String KEY_AVAILABLE_PROCESSORS = "availableProcessors";
+    private static final String KEY_MEDIAN_NANOS = "medianNanos";
+
+    private TuningProfile() {
+    }
+
+    /**
+     * Returns {@code config} with the tunable settings of the source's saved profile, or
+     * {@code config} itself if there is no usable profile or the config opts out.
+     */
+    static SessionConfig apply(ModelSource source, SessionConfig config) {
+        if (!config.getUseTuningProfile()) {
+            return config;
+        }
+        File file = source.getTuningProfileFile();
+        if (file == null || !file.isFile()) {
+            return config;
+        }
+
+        Properties profile = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            profile.load(in);
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "read " + file + " error: " + e.getMessage());
+            return config;
+        }
+        if (!System.getProperty("os.arch").equals(profile.getProperty(KEY_OS_ARCH))
+                || !String.valueOf(Runtime.getRuntime().availableProcessors())
+                .equals(profile.getProperty(KEY_AVAILABLE_PROCESSORS))) {
+            InferenceLog.d(TAG, "ignoring " + file + ", it was tuned on another machine");
+            return config;
+        }
+
+        try {
+            boolean xnnpack = Boolean.parseBoolean(profile.getProperty(KEY_XNNPACK));
+            SessionConfig.Builder builder = new SessionConfig.Builder(config)
+                    .setOptLevel(OptLevel.valueOf(profile.getProperty(KEY_OPT_LEVEL)))
+                    .setExecutionMode(ExecutionMode.valueOf(profile.getProperty(KEY_EXECUTION_MODE)))
+                    .setMemoryPatternEnabled(parseBoolean(profile.getProperty(KEY_MEMORY_PATTERN)))
+                    .setCpuArenaEnabled(parseBoolean(profile.getProperty(KEY_CPU_ARENA)))
+                    .setUseXnnpack(xnnpack && SessionConfig.isXnnpackAvailable());
+            if (config.getSessionPoolSize() > 1 || config.getUseGlobalThreadPool()) {
+                InferenceLog.d(TAG, "keeping the thread counts of " + config.fingerprint()
+                        + ", " + file.getName() + " was tuned on a single session");
+            } else {
+                builder.setIntraOpNumThreads(Integer.parseInt(profile.getProperty(KEY_INTRA_OP_NUM_THREADS)))
+                        .setInterOpNumThreads(Integer.parseInt(profile.getProperty(KEY_INTER_OP_NUM_THREADS)));
+            }
+            SessionConfig tuned = builder.build();
+            InferenceLog.d(TAG, "applied " + file.getName() + ": " + tuned.fingerprint());
+            return tuned;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            InferenceLog.w(TAG, "ignoring malformed " + file + ": " + e.getMessage());
+            return config;
+        }
+    }
+
+    /** Saves the tunable settings of {@code config}, replacing the file atomically. */
+    static void save(File file, SessionConfig config, long medianNanos) throws IOException {
+        Properties profile = new Properties();
+        profile.setProperty(KEY_OPT_LEVEL, config.getOptLevel().name());
+        profile.setProperty(KEY_INTRA_OP_NUM_THREADS, String.valueOf(config.getIntraOpNumThreads()));
+        profile.setProperty(KEY_INTER_OP_NUM_THREADS, String.valueOf(config.getInterOpNumThreads()));
+        profile.setProperty(KEY_EXECUTION_MODE, config.getExecutionMode().name());
+        profile.setProperty(KEY_MEMORY_PATTERN, String.valueOf(config.getMemoryPatternEnabled()));
+        profile.setProperty(KEY_CPU_ARENA, String.valueOf(config.getCpuArenaEnabled()));
+        profile.setProperty(KEY_XNNPACK, String.valueOf(config.getUseXnnpack()));
+        profile.setProperty(KEY_OS_ARCH, System.getProperty("os.arch"));
+        profile.setProperty(KEY_AVAILABLE_PROCESSORS, String.valueOf(Runtime.getRuntime().availableProcessors()));
+        profile.setProperty(KEY_MEDIAN_NANOS, String.valueOf(medianNanos));
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                profile.store(out, "Session settings tuned by " + SessionTuner.TAG);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                InferenceLog.w(TAG, "Cannot delete " + temp);
+            }
+        }
+    }
+
+    /** Parses a saved nullable boolean, where "null" leaves ORT's default. */
+    private static Boolean parseBoolean(String value) {
+        return value == null || "null".equals(value) ? null : Boolean.valueOf(value);
+    }
+}
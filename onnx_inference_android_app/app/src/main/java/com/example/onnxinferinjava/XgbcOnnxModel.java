@@ -1,37 +1,349 @@
 package com.example.onnxinferinjava;
 
-import android.content.Context;
-import android.util.Log;
+import ai.onnxruntime.OrtException;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * {@link OnnxModel} for the XGBoost iris classifier, with typed label and probability getters.
+ * <p>
+ * Besides ORT, the model can be scored by a {@link TreeEnsembleModel} that walks the trees in
+ * pure Java. With {@link Engine#AUTO}, the default, each loaded version is parsed for it; if
+ * both engines return bit-identical labels and probabilities on sample rows, the faster one on
+ * a single row is used. The Java engine needs the {@code .onnx} file: models loaded from the
+ * {@code .ort} format always run on ORT.
+ */
 public class XgbcOnnxModel extends OnnxModel {
 
     private static final String TAG = "XgbcOnnxModel";
 
-    public XgbcOnnxModel(Context context, String modelFile) {
-        super(context, modelFile);
+    static final String LABEL_OUTPUT_NAME = "output_label";
+    static final String PROBABILITY_OUTPUT_NAME = "output_probability";
+    /** Output projections for calls that only read one of the outputs. */
+    static final Set<String> LABEL_OUTPUT = Collections.singleton(LABEL_OUTPUT_NAME);
+    static final Set<String> PROBABILITY_OUTPUT = Collections.singleton(PROBABILITY_OUTPUT_NAME);
+
+    /** Metrics key suffix for calls served by the Java engine. */
+    static final String JAVA_ENGINE_KEY_SUFFIX = "#java";
+
+    private static final int CONFORMANCE_ROWS = 1024;
+    private static final int CALIBRATION_ITERATIONS = 200;
+
+    public enum Engine {
+        /** Use the Java engine when it agrees with ORT and is faster. */
+        AUTO,
+        /** Always use ORT. */
+        ORT,
+        /** Use the Java engine whenever the model supports it and it agrees with ORT. */
+        JAVA
     }
 
-    public float[] runInferenceGetProbabilities(float[] inputData) {
-        String probabilitiesOutputName = "output_probabilities";
-        Object result = runInference(inputData, probabilitiesOutputName);
+    private volatile Engine mEngine = Engine.AUTO;
+
+    public XgbcOnnxModel(ModelSource modelSource) {
+        super(modelSource);
+    }
+
+    public XgbcOnnxModel(ModelSource modelSource, SessionConfig sessionConfig) {
+        super(modelSource, sessionConfig);
+    }
+
+    /** Sets how the engine is chosen for versions loaded from now on. */
+    public void setEngine(Engine engine) {
+        mEngine = engine;
+    }
+
+    /** Returns the engine serving calls right now, or null if the model is not loaded. */
+    public Engine getActiveEngine() {
+        LoadedModel loadedModel = getLoadedModel();
+        if (loadedModel == null) {
+            return null;
+        }
+        return loadedModel.mTreeEnsemble != null ? Engine.JAVA : Engine.ORT;
+    }
+
+    @Override
+    void onLoaded(LoadedModel loadedModel, ModelSource source) {
+        Engine engine = mEngine;
+        if (engine == Engine.ORT || loadedModel.mTensorPool == null) {
+            return;
+        }
+        ByteBuffer modelBytes;
+        try {
+            modelBytes = source.readModel();
+        } catch (IOException e) {
+            InferenceLog.w(TAG, "read " + source + " error: " + e.getMessage());
+            return;
+        }
+        if (modelBytes == null) {
+            return;
+        }
+        TreeEnsembleModel treeEnsemble = TreeEnsembleModel.parse(modelBytes, loadedModel.mTensorPool.getNumFeatures());
+        if (treeEnsemble == null) {
+            return;
+        }
+
+        try {
+            if (!conformsToOrt(loadedModel, treeEnsemble)) {
+                InferenceLog.w(TAG, "Java engine disagrees with ORT on " + source + ", using ORT");
+                return;
+            }
+            if (engine == Engine.AUTO) {
+                long ortNanos = timeOrt(loadedModel, treeEnsemble);
+                long javaNanos = timeJava(treeEnsemble);
+                InferenceLog.d(TAG, source + ": ORT " + ortNanos + " ns, Java " + javaNanos + " ns per row");
+                if (javaNanos >= ortNanos) {
+                    return;
+                }
+            }
+        } catch (OrtException e) {
+            InferenceLog.w(TAG, "calibrate " + source + " error: " + e.getMessage());
+            return;
+        }
+        loadedModel.mTreeEnsemble = treeEnsemble;
+        InferenceLog.d(TAG, "using the Java engine for " + source);
+    }
+
+    private static boolean conformsToOrt(LoadedModel loadedModel, TreeEnsembleModel treeEnsemble) throws OrtException {
+        float[] rows = treeEnsemble.sampleRows(CONFORMANCE_ROWS, CONFORMANCE_ROWS);
+        InferenceOutputs outputs = OnnxModel.run(loadedModel, rows, CONFORMANCE_ROWS, InferenceMetrics.NOOP);
+        long[] ortLabels = getLabels(outputs);
+        float[][] ortProbabilities = getProbabilities(outputs);
+        if (ortLabels == null || ortProbabilities == null) {
+            return false;
+        }
+
+        long[] labels = new long[CONFORMANCE_ROWS];
+        float[] probabilities = new float[CONFORMANCE_ROWS * treeEnsemble.getNumClasses()];
+        treeEnsemble.predict(rows, CONFORMANCE_ROWS, labels, probabilities);
+        for (int row = 0; row < CONFORMANCE_ROWS; row++) {
+            if (labels[row] != ortLabels[row] || ortProbabilities[row].length != treeEnsemble.getNumClasses()) {
+                return false;
+            }
+            for (int c = 0; c < ortProbabilities[row].length; c++) {
+                float probability = probabilities[row * ortProbabilities[row].length + c];
+                if (Float.floatToIntBits(probability) != Float.floatToIntBits(ortProbabilities[row][c])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the median time of a one-row ORT call, which is what label lookups pay. */
+    private static long timeOrt(LoadedModel loadedModel, TreeEnsembleModel treeEnsemble) throws OrtException {
+        float[] row = treeEnsemble.sampleRows(1, 1);
+        long[] nanos = new long[CALIBRATION_ITERATIONS];
+        for (int i = 0; i < CALIBRATION_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            OnnxModel.run(loadedModel, row, 1, InferenceMetrics.NOOP);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return median(nanos);
+    }
+
+    private static long timeJava(TreeEnsembleModel treeEnsemble) {
+        float[] row = treeEnsemble.sampleRows(1, 1);
+        long[] labels = new long[1];
+        long[] nanos = new long[CALIBRATION_ITERATIONS];
+        for (int i = 0; i < CALIBRATION_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            treeEnsemble.predict(row, 1, labels, null);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return median(nanos);
+    }
 
-        if (result instanceof float[]) {
-            return (float[]) result;
-        } else {
-            Log.e(TAG, "Unexpected output type for probabilities: " + (result != null ? result.getClass().getName() : "null"));
+    private static long median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    /**
+     * Returns the current version if it uses the Java engine and the rows fit it, otherwise
+     * null, in which case the call goes to ORT.
+     */
+    private LoadedModel javaEngine(float[] rows, int numRows) {
+        LoadedModel loadedModel = getLoadedModel();
+        TreeEnsembleModel treeEnsemble = loadedModel != null ? loadedModel.mTreeEnsemble : null;
+        if (treeEnsemble == null || numRows <= 0 || rows.length != numRows * treeEnsemble.getNumFeatures()) {
             return null;
         }
+        return loadedModel;
+    }
+
+    /**
+     * Reports a call served by the Java engine to the metrics and the audit log, which gets
+     * the probabilities either flat or per row.
+     */
+    private void recordJavaCall(LoadedModel loadedModel, long start, float[] rows, int numRows, long[] labels,
+                                float[] flatProbabilities, float[][] probabilities) {
+        long latencyNanos = System.nanoTime() - start;
+        InferenceMetrics metrics = getMetrics();
+        if (metrics != InferenceMetrics.NOOP) {
+            metrics.onInference(loadedModel.mModelKey + JAVA_ENGINE_KEY_SUFFIX, numRows, 0, latencyNanos, 0);
+        }
+        PredictionAuditLog auditLog = getAuditLog();
+        if (auditLog != null) {
+            auditLog.record(loadedModel.mModelKey, rows, numRows, labels, flatProbabilities, probabilities,
+                    latencyNanos);
+        }
+    }
+
+    public float[] runInferenceGetProbabilities(float[] inputData) {
+        float[][] probabilities = runInferenceGetProbabilities(inputData, 1);
+        return probabilities != null ? probabilities[0] : null;
     }
 
     public Long runInferenceGetLabel(float[] inputData) {
-        String labelOutputName = "output_label";
-        Object result = runInference(inputData, labelOutputName);
+        long[] labels = runInferenceGetLabels(inputData, 1);
+        return labels != null && labels.length > 0 ? labels[0] : null;
+    }
+
+    /**
+     * Predicts the class label of every row with a single native call.
+     *
+     * @return One label per row, or null if inference fails.
+     */
+    public long[] runInferenceGetLabels(float[][] rows) {
+        float[] flatRows = flattenRows(rows);
+        return flatRows != null ? runInferenceGetLabels(flatRows, rows.length) : null;
+    }
+
+    /**
+     * Predicts the class label of {@code numRows} row-major rows with a single native call.
+     *
+     * @return One label per row, or null if inference fails.
+     */
+    public long[] runInferenceGetLabels(float[] rows, int numRows) {
+        LoadedModel javaModel = javaEngine(rows, numRows);
+        if (javaModel != null) {
+            long start = System.nanoTime();
+            long[] labels = javaModel.mTreeEnsemble.predictLabels(rows, numRows);
+            recordJavaCall(javaModel, start, rows, numRows, labels, null, null);
+            return labels;
+        }
+        return getLabels(runInferenceOutputs(rows, numRows, LABEL_OUTPUT, null));
+    }
+
+    /**
+     * Predicts the class label of {@code numRows} row-major rows into a caller-owned array,
+     * without allocating tensors or boxing results.
+     *
+     * @param labelsOut Receives one label per row; must hold at least {@code numRows} elements.
+     * @return true on success, false if inference fails.
+     * @see OnnxModel#runInferenceInto(float[], int, String, long[])
+     */
+    public boolean runInferenceGetLabels(float[] rows, int numRows, long[] labelsOut) {
+        return runInferenceGetLabels(rows, numRows, labelsOut, null);
+    }
 
-        if (result instanceof Long) {
-            return (Long) result;
-        } else {
-            Log.e(TAG, "Unexpected output type for label: " + (result != null ? result.getClass().getName() : "null"));
+    /**
+     * Like {@link #runInferenceGetLabels(float[], int, long[])}, but gives up when
+     * {@code token} expires. The Java engine only checks the token before scoring, since it
+     * runs in microseconds.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return true on success, false if inference fails or the token expired.
+     */
+    public boolean runInferenceGetLabels(float[] rows, int numRows, long[] labelsOut, CancellationToken token) {
+        LoadedModel javaModel = javaEngine(rows, numRows);
+        if (javaModel != null && labelsOut.length >= numRows) {
+            if (rejectExpired(token)) {
+                return false;
+            }
+            long start = System.nanoTime();
+            javaModel.mTreeEnsemble.predict(rows, numRows, labelsOut, null);
+            recordJavaCall(javaModel, start, rows, numRows, labelsOut, null, null);
+            return true;
+        }
+        return runInferenceInto(rows, numRows, LABEL_OUTPUT_NAME, labelsOut, token);
+    }
+
+    /**
+     * Predicts the class probabilities of every row with a single native call.
+     *
+     * @return A {@code [rows.length][numClasses]} matrix, or null if inference fails.
+     */
+    public float[][] runInferenceGetProbabilities(float[][] rows) {
+        float[] flatRows = flattenRows(rows);
+        return flatRows != null ? runInferenceGetProbabilities(flatRows, rows.length) : null;
+    }
+
+    /**
+     * Predicts the class probabilities of {@code numRows} row-major rows with a single native call.
+     *
+     * @return A {@code [numRows][numClasses]} matrix, or null if inference fails.
+     */
+    public float[][] runInferenceGetProbabilities(float[] rows, int numRows) {
+        return runInferenceGetProbabilities(rows, numRows, null);
+    }
+
+    /**
+     * Like {@link #runInferenceGetProbabilities(float[], int)}, but gives up when
+     * {@code token} expires.
+     *
+     * @param token The token to observe, or null to run to completion.
+     * @return A {@code [numRows][numClasses]} matrix, or null if inference fails or the token expired.
+     */
+    public float[][] runInferenceGetProbabilities(float[] rows, int numRows, CancellationToken token) {
+        LoadedModel javaModel = javaEngine(rows, numRows);
+        if (javaModel != null) {
+            if (rejectExpired(token)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            float[][] probabilities = javaModel.mTreeEnsemble.predictProbabilities(rows, numRows);
+            recordJavaCall(javaModel, start, rows, numRows, null, null, probabilities);
+            return probabilities;
+        }
+        return getProbabilities(runInferenceOutputs(rows, numRows, PROBABILITY_OUTPUT, token));
+    }
+
+    /**
+     * Predicts both the label and the class probabilities of {@code numRows} row-major rows
+     * with a single call, for callers that need both outputs of every row.
+     *
+     * @param labelsOut Receives one label per row; must hold at least {@code numRows} elements.
+     * @return A {@code [numRows][numClasses]} matrix, or null if inference fails.
+     */
+    public float[][] runInferenceGetLabelsAndProbabilities(float[] rows, int numRows, long[] labelsOut) {
+        if (labelsOut.length < numRows) {
+            InferenceLog.e(TAG, "Label buffer holds " + labelsOut.length + " labels, need " + numRows);
+            return null;
+        }
+        LoadedModel javaModel = javaEngine(rows, numRows);
+        if (javaModel != null) {
+            long start = System.nanoTime();
+            int numClasses = javaModel.mTreeEnsemble.getNumClasses();
+            float[] flatProbabilities = new float[numRows * numClasses];
+            javaModel.mTreeEnsemble.predict(rows, numRows, labelsOut, flatProbabilities);
+            recordJavaCall(javaModel, start, rows, numRows, labelsOut, flatProbabilities, null);
+            float[][] probabilities = new float[numRows][];
+            for (int i = 0; i < numRows; i++) {
+                probabilities[i] = Arrays.copyOfRange(flatProbabilities, i * numClasses, (i + 1) * numClasses);
+            }
+            return probabilities;
+        }
+        InferenceOutputs outputs = runInferenceOutputs(rows, numRows);
+        long[] labels = getLabels(outputs);
+        float[][] probabilities = getProbabilities(outputs);
+        if (labels == null || probabilities == null) {
             return null;
         }
+        System.arraycopy(labels, 0, labelsOut, 0, numRows);
+        return probabilities;
+    }
+
+    static long[] getLabels(InferenceOutputs outputs) {
+        return outputs != null ? outputs.getLongs(LABEL_OUTPUT_NAME) : null;
+    }
+
+    static float[][] getProbabilities(InferenceOutputs outputs) {
+        return outputs != null ? outputs.getFloatMatrix(PROBABILITY_OUTPUT_NAME) : null;
     }
-}
\ No newline at end of file
+}
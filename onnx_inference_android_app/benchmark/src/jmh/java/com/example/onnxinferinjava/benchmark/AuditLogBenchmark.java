@@ -0,0 +1,90 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.PredictionAuditLog;
+import com.example.onnxinferinjava.XgbcOnnxModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of a {@link PredictionAuditLog} on the inference thread: label prediction on the Java
+ * engine, whose sub-microsecond calls leave the recording cost visible, with and without a log
+ * attached. The log drops records rather than blocking, and the number it dropped is printed
+ * at the end of the trial; scores are per call of {@code batchSize} rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuditLogBenchmark {
+
+    @Param({"false", "true"})
+    public boolean audit;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private XgbcOnnxModel mModel;
+    private PredictionAuditLog mAuditLog;
+    private Path mDirectory;
+    private float[] mRows;
+    private long[] mLabels;
+
+    @Setup
+    public void setUp() throws IOException {
+        mModel = new XgbcOnnxModel(new FileModelSource(BenchmarkModels.onnxModel().toString()));
+        mModel.setEngine(XgbcOnnxModel.Engine.JAVA);
+        mModel.init();
+        if (mModel.getActiveEngine() != XgbcOnnxModel.Engine.JAVA) {
+            throw new IllegalStateException("Model runs on " + mModel.getActiveEngine() + ", not JAVA");
+        }
+        if (audit) {
+            mDirectory = Files.createTempDirectory("audit");
+            mAuditLog = new PredictionAuditLog.Builder(mDirectory.toFile(), 4, 3)
+                    .setMaxSegments(2)
+                    .build();
+            mModel.setAuditLog(mAuditLog);
+        }
+        mRows = BenchmarkModels.rows(batchSize);
+        mLabels = new long[batchSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mModel.deinit();
+        if (mAuditLog != null) {
+            mAuditLog.close();
+            System.out.println(mAuditLog);
+            try (Stream<Path> files = Files.list(mDirectory)) {
+                files.map(Path::toFile).forEach(File::delete);
+            }
+            Files.delete(mDirectory);
+        }
+    }
+
+    @Benchmark
+    public long[] labels() {
+        mModel.runInferenceGetLabels(mRows, batchSize, mLabels);
+        return mLabels;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.onnxinferinjava.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Locates the bundled iris models and builds input rows for the benchmarks.
+ * <p>
+ * The Gradle build passes the model paths as system properties; the fallbacks let the
+ * benchmarks be started from the {@code onnx_inference_android_app} directory by hand.
+ */
+final class BenchmarkModels {
+
+    static final int NUM_FEATURES = 4;
+
+    /** Rows from the iris test split, one per class. */
+    private static final float[][] SAMPLE_ROWS = {
+            {5.7f, 3.8f, 1.7f, 0.3f},
+            {6.1f, 2.8f, 4.7f, 1.2f},
+            {7.7f, 2.6f, 6.9f, 2.3f},
+    };
+
+    private BenchmarkModels() {
+    }
+
+    static Path ortModel() {
+        return Paths.get(System.getProperty("benchmark.ortModel", "app/src/main/assets/models/xgbc_iris.ort"));
+    }
+
+    static Path onnxModel() {
+        return Paths.get(System.getProperty("benchmark.onnxModel", "../xgboost_train/xgbc_iris.onnx"));
+    }
+
+    /** The {@code .onnx} model exported with {@code --no_zipmap}: probabilities as a float tensor. */
+    static Path noZipmapOnnxModel() {
+        return Paths.get(System.getProperty("benchmark.noZipmapOnnxModel", "../xgboost_train/xgbc_iris_nozipmap.onnx"));
+    }
+
+    static Path model(String format) {
+        return "ort".equals(format) ? ortModel() : onnxModel();
+    }
+
+    static byte[] readModel(String format) throws IOException {
+        return Files.readAllBytes(model(format));
+    }
+
+    /** Returns {@code numRows} sample rows flattened in row-major order. */
+    static float[] rows(int numRows) {
+        float[] rows = new float[numRows * NUM_FEATURES];
+        for (int i = 0; i < numRows; i++) {
+            System.arraycopy(SAMPLE_ROWS[i % SAMPLE_ROWS.length], 0, rows, i * NUM_FEATURES, NUM_FEATURES);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.XgbcOnnxModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ORT against the pure-Java tree ensemble behind the same {@link XgbcOnnxModel} API, both
+ * loaded from the {@code .onnx} model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({"ORT", "JAVA"})
+    public XgbcOnnxModel.Engine engine;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private XgbcOnnxModel mModel;
+    private float[] mRows;
+    private long[] mLabels;
+
+    @Setup
+    public void setUp() {
+        mModel = new XgbcOnnxModel(new FileModelSource(BenchmarkModels.onnxModel().toString()));
+        mModel.setEngine(engine);
+        mModel.init();
+        if (mModel.getActiveEngine() != engine) {
+            throw new IllegalStateException("Model runs on " + mModel.getActiveEngine() + ", not " + engine);
+        }
+        mRows = BenchmarkModels.rows(batchSize);
+        mLabels = new long[batchSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    @Benchmark
+    public long[] runInferenceGetLabels() {
+        mModel.runInferenceGetLabels(mRows, batchSize, mLabels);
+        return mLabels;
+    }
+
+    @Benchmark
+    public float[][] runInferenceGetProbabilities() {
+        return mModel.runInferenceGetProbabilities(mRows, batchSize);
+    }
+}
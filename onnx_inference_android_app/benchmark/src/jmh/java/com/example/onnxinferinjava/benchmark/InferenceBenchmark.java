@@ -0,0 +1,84 @@
+package com.example.onnxinferinjava.benchmark;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of {@code OrtSession.run} on one shared iris session, using the same
+ * call pattern as {@code OnnxModel.runInferenceBatch}: a heap array wrapped into a new tensor
+ * per call, every output fetched, tensor and result closed afterwards.
+ * <p>
+ * Scores are per call; divide by {@code batchSize} for the per-row cost. The contended variant
+ * runs the same call from as many threads as there are cores against the one session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferenceBenchmark {
+
+    @Param({"1", "8", "64", "512"})
+    public int batchSize;
+
+    private OrtEnvironment mEnvironment;
+    private OrtSession mSession;
+    private String mInputName;
+    private float[] mRows;
+    private long[] mShape;
+
+    @Setup
+    public void setUp() throws OrtException {
+        mEnvironment = OrtEnvironment.getEnvironment();
+        mSession = mEnvironment.createSession(BenchmarkModels.ortModel().toString(), new OrtSession.SessionOptions());
+        mInputName = mSession.getInputNames().iterator().next();
+        mRows = BenchmarkModels.rows(batchSize);
+        mShape = new long[]{batchSize, BenchmarkModels.NUM_FEATURES};
+    }
+
+    @TearDown
+    public void tearDown() throws OrtException {
+        mSession.close();
+    }
+
+    @Benchmark
+    public void run(Blackhole blackhole) throws OrtException {
+        runOnce(blackhole);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void runContended(Blackhole blackhole) throws OrtException {
+        runOnce(blackhole);
+    }
+
+    private void runOnce(Blackhole blackhole) throws OrtException {
+        try (OnnxTensor input = OnnxTensor.createTensor(mEnvironment, FloatBuffer.wrap(mRows), mShape);
+             OrtSession.Result result = mSession.run(Collections.singletonMap(mInputName, input))) {
+            blackhole.consume(result.get(0).getValue());
+            blackhole.consume(result.get(1).getValue());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.XgbcOnnxModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the {@link XgbcOnnxModel} entry points, including everything the wrapper
+ * adds on top of {@code OrtSession.run}: tensor creation, output decoding and logging.
+ * Compare the {@code gc.alloc.rate.norm} column to see the allocation of each path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnnxModelBenchmark {
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private XgbcOnnxModel mModel;
+    private float[] mRow;
+    private float[] mRows;
+    private long[] mLabels;
+
+    @Setup
+    public void setUp() {
+        mModel = new XgbcOnnxModel(new FileModelSource(BenchmarkModels.ortModel().toString()));
+        mModel.init();
+        mRow = BenchmarkModels.rows(1);
+        mRows = BenchmarkModels.rows(batchSize);
+        mLabels = new long[batchSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    /** The original single-row path; ignores {@code batchSize}. */
+    @Benchmark
+    public Long runInferenceGetLabel() {
+        return mModel.runInferenceGetLabel(mRow);
+    }
+
+    @Benchmark
+    public long[] runInferenceGetLabelsBatch() {
+        return mModel.runInferenceGetLabels(mRows, batchSize);
+    }
+
+    @Benchmark
+    public long[] runInferenceGetLabelsPooled() {
+        mModel.runInferenceGetLabels(mRows, batchSize, mLabels);
+        return mLabels;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long[] runInferenceGetLabelsPooledContended() {
+        long[] labels = new long[batchSize];
+        mModel.runInferenceGetLabels(mRows, batchSize, labels);
+        return labels;
+    }
+}
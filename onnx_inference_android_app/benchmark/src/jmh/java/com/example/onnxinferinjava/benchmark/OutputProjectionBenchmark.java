@@ -0,0 +1,81 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.InferenceOutputs;
+import com.example.onnxinferinjava.XgbcOnnxModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of unneeded outputs, for the iris model exported with a ZipMap probability output (the
+ * default) and with {@code --no_zipmap}, which leaves probabilities as a float tensor.
+ * <p>
+ * {@code labelsAllOutputs} fetches and decodes every output and reads the labels, as
+ * {@code runInferenceOutputs} did before output projection; {@code labels} and
+ * {@code probabilities} fetch only the output they return. All calls run on ORT through the
+ * decoding path, and scores are per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputProjectionBenchmark {
+
+    @Param({"zipmap", "tensor"})
+    public String variant;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private XgbcOnnxModel mModel;
+    private float[] mRows;
+
+    @Setup
+    public void setUp() {
+        Path model = "tensor".equals(variant) ? BenchmarkModels.noZipmapOnnxModel() : BenchmarkModels.onnxModel();
+        mModel = new XgbcOnnxModel(new FileModelSource(model.toString()));
+        mModel.setEngine(XgbcOnnxModel.Engine.ORT);
+        mModel.init();
+        if (!mModel.isInitialized()) {
+            throw new IllegalStateException("Model failed to load: " + model);
+        }
+        mRows = BenchmarkModels.rows(batchSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    @Benchmark
+    public long[] labelsAllOutputs() {
+        InferenceOutputs outputs = mModel.runInferenceOutputs(mRows, batchSize);
+        return outputs.getLongs("output_label");
+    }
+
+    @Benchmark
+    public long[] labels() {
+        return mModel.runInferenceGetLabels(mRows, batchSize);
+    }
+
+    @Benchmark
+    public float[][] probabilities() {
+        return mModel.runInferenceGetProbabilities(mRows, batchSize);
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.MappedFileModelSource;
+import com.example.onnxinferinjava.SessionConfig;
+import com.example.onnxinferinjava.SessionHandle;
+import com.example.onnxinferinjava.SessionRegistry;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of opening a session, i.e. what every prediction used to pay before sessions were
+ * shared. Compares the {@code .onnx} and {@code .ort} formats, loaded from a file path by
+ * ORT itself, memory-mapped, or from a byte array already on the Java heap. The registry
+ * variants go through {@link SessionRegistry} with sharing turned off, without and with an
+ * optimized-model cache, i.e. a cold start against a warm one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionCreationBenchmark {
+
+    @Param({"onnx", "ort"})
+    public String format;
+
+    private OrtEnvironment mEnvironment;
+    private String mModelPath;
+    private byte[] mModelData;
+    private MappedFileModelSource mMappedSource;
+    private FileModelSource mFileSource;
+    private Path mCacheDir;
+    private SessionConfig mCachedConfig;
+
+    @Setup
+    public void setUp() throws IOException {
+        mEnvironment = OrtEnvironment.getEnvironment();
+        mModelPath = BenchmarkModels.model(format).toString();
+        mModelData = BenchmarkModels.readModel(format);
+        mMappedSource = new MappedFileModelSource(mModelPath);
+        mFileSource = new FileModelSource(mModelPath);
+        mCacheDir = Files.createTempDirectory("optimized-models");
+        mCachedConfig = new SessionConfig.Builder().setOptimizedModelCacheDir(mCacheDir.toString()).build();
+        SessionRegistry.getInstance().setIdleTimeout(0, TimeUnit.MILLISECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(mCacheDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void createSessionFromPath() throws OrtException {
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+             OrtSession session = mEnvironment.createSession(mModelPath, options)) {
+            session.getNumInputs();
+        }
+    }
+
+    @Benchmark
+    public void createSessionFromBytes() throws OrtException {
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+             OrtSession session = mEnvironment.createSession(mModelData, options)) {
+            session.getNumInputs();
+        }
+    }
+
+    @Benchmark
+    public void createSessionFromMappedFile() throws OrtException, IOException {
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+             OrtSession session = mMappedSource.createSession(mEnvironment, options)) {
+            session.getNumInputs();
+        }
+    }
+
+    @Benchmark
+    public void createSessionThroughRegistry() throws OrtException, IOException {
+        try (SessionHandle handle = SessionRegistry.getInstance().acquire(mFileSource, SessionConfig.DEFAULT)) {
+            handle.getSession().getNumInputs();
+        }
+    }
+
+    @Benchmark
+    public void createSessionThroughRegistryCached() throws OrtException, IOException {
+        try (SessionHandle handle = SessionRegistry.getInstance().acquire(mFileSource, mCachedConfig)) {
+            handle.getSession().getNumInputs();
+        }
+    }
+}
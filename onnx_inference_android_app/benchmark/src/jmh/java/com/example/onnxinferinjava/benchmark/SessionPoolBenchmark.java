@@ -0,0 +1,115 @@
+package com.example.onnxinferinjava.benchmark;
+
+import com.example.onnxinferinjava.FileModelSource;
+import com.example.onnxinferinjava.SessionConfig;
+import com.example.onnxinferinjava.SessionRegistry;
+import com.example.onnxinferinjava.XgbcOnnxModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput scaling of one {@link XgbcOnnxModel} with the number of calling threads, for one
+ * shared session with ORT's default threading against a pool of one single-threaded session
+ * per core, with per-session or global thread pools.
+ * <p>
+ * Scores are calls per millisecond summed over all threads, each call scoring one row on ORT
+ * through the pooled label path. With the pool, throughput should grow close to linearly up
+ * to the core count; compare the {@code threadsN} scores of each {@code mode}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionPoolBenchmark {
+
+    public enum PoolMode {
+        /** One session with ORT's default intra-op thread pool. */
+        SHARED,
+        /** One session per core, each running calls on the calling thread. */
+        POOL,
+        /** One session per core on the process-wide thread pool. */
+        POOL_GLOBAL
+    }
+
+    @Param({"SHARED", "POOL", "POOL_GLOBAL"})
+    public PoolMode mode;
+
+    private XgbcOnnxModel mModel;
+
+    @Setup
+    public void setUp() {
+        SessionConfig.Builder config = new SessionConfig.Builder();
+        if (mode != PoolMode.SHARED) {
+            config.setSessionPoolSize(0).setAllowSpinning(false);
+        }
+        if (mode == PoolMode.POOL_GLOBAL) {
+            // Each fork is a fresh JVM, so the environment does not exist yet.
+            if (!SessionRegistry.getInstance().enableGlobalThreadPool(0, false)) {
+                throw new IllegalStateException("Global thread pool unavailable");
+            }
+            config.setUseGlobalThreadPool(true);
+        }
+        mModel = new XgbcOnnxModel(new FileModelSource(BenchmarkModels.ortModel().toString()), config.build());
+        mModel.setEngine(XgbcOnnxModel.Engine.ORT);
+        mModel.init();
+        if (!mModel.isInitialized()) {
+            throw new IllegalStateException("Model failed to load");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final float[] mRow = BenchmarkModels.rows(1);
+        final long[] mLabels = new long[1];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1(Caller caller) {
+        return score(caller);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2(Caller caller) {
+        return score(caller);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4(Caller caller) {
+        return score(caller);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long threadsMax(Caller caller) {
+        return score(caller);
+    }
+
+    private long score(Caller caller) {
+        mModel.runInferenceGetLabels(caller.mRow, 1, caller.mLabels);
+        return caller.mLabels[0];
+    }
+}
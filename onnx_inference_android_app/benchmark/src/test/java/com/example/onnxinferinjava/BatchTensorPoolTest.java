@@ -0,0 +1,62 @@
+package com.example.onnxinferinjava;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link OnnxModel#runInferenceInto} on outputs that can and cannot be pinned by the
+ * {@link BatchTensorPool}.
+ */
+public class BatchTensorPoolTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void pinnedOutputMatchesUnpooledRun() {
+        XgbcOnnxModel model = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        model.setEngine(XgbcOnnxModel.Engine.ORT);
+        model.init();
+        try {
+            float[] rows = {5.1f, 3.5f, 1.4f, 0.2f, 6.7f, 3.0f, 5.2f, 2.3f, 5.9f, 3.0f, 4.2f, 1.5f};
+            long[] labels = new long[3];
+            assertTrue(model.runInferenceInto(rows, 3, XgbcOnnxModel.LABEL_OUTPUT_NAME, labels));
+            assertArrayEquals(model.runInferenceGetLabels(rows, 3), labels);
+            assertFalse(model.runInferenceInto(rows, 3, XgbcOnnxModel.LABEL_OUTPUT_NAME, new long[2]));
+            assertFalse(model.runInferenceInto(rows, 3, XgbcOnnxModel.LABEL_OUTPUT_NAME, new float[3]));
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void outputWithAnotherDynamicDimensionIsNotPinned() throws IOException {
+        // Output [N, K]: substituting the batch size for K would give ORT a wrongly sized tensor.
+        File file = mFolder.newFile("scale.onnx");
+        Files.write(file.toPath(), TestModels.scaleModel(2f, "K"));
+        OnnxModel model = new OnnxModel(new FileModelSource(file.getPath()));
+        model.init();
+        try {
+            float[] rows = {1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f};
+            float[] expected = {2f, 4f, 6f, 8f, 10f, 12f, 14f, 16f};
+            for (int numRows = 1; numRows <= 2; numRows++) {
+                float[] out = new float[numRows * 4];
+                assertTrue(model.runInferenceInto(rows, numRows, "output", out));
+                assertArrayEquals(Arrays.copyOf(expected, numRows * 4), out, 0f);
+            }
+            assertFalse(model.runInferenceInto(rows, 2, "output", new float[7]));
+        } finally {
+            model.deinit();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.onnxinferinjava;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interrupts {@link BulkScorer} runs partway and checks that resuming them writes exactly
+ * what an uninterrupted run writes.
+ */
+public class BulkScorerTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+    private static final int NUM_FEATURES = 4;
+    private static final int NUM_ROWS = 100;
+    private static final int BATCH_SIZE = 7;
+    /** Rows written when the model is taken away; a multiple of the checkpoint interval. */
+    private static final int FAIL_AFTER_ROWS = 28;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private XgbcOnnxModel mModel;
+
+    @Before
+    public void setUp() {
+        mModel = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        mModel.setEngine(XgbcOnnxModel.Engine.ORT);
+        mModel.init();
+        assertTrue(mModel.isInitialized());
+    }
+
+    @After
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    @Test
+    public void resumedCsvRunMatchesUninterruptedRun() throws IOException {
+        StringBuilder csv = new StringBuilder("sepal_length,sepal_width,petal_length,petal_width\n");
+        for (int i = 0; i < NUM_ROWS; i++) {
+            float[] row = row(i);
+            csv.append(row[0]).append(',').append(row[1]).append(',').append(row[2]).append(',').append(row[3]).append('\n');
+        }
+        Path input = mFolder.newFile("rows.csv").toPath();
+        Files.write(input, csv.toString().getBytes(StandardCharsets.US_ASCII));
+        assertResumeMatches(input, BulkScorer.Format.CSV);
+    }
+
+    @Test
+    public void resumedBinaryRunMatchesUninterruptedRun() throws IOException {
+        ByteBuffer binary = ByteBuffer.allocate(NUM_ROWS * NUM_FEATURES * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            for (float value : row(i)) {
+                binary.putFloat(value);
+            }
+        }
+        Path input = mFolder.newFile("rows.bin").toPath();
+        Files.write(input, binary.array());
+        assertResumeMatches(input, BulkScorer.Format.BINARY);
+    }
+
+    private void assertResumeMatches(Path input, BulkScorer.Format format) throws IOException {
+        Path expected = mFolder.getRoot().toPath().resolve("expected." + format);
+        BulkScorer.Result result = scorer(format, null).score(input, expected);
+        assertTrue(result.isComplete());
+        assertEquals(NUM_ROWS, result.getTotalRows());
+
+        // One worker and one pending batch, so no batch is scored ahead of the failure.
+        Path output = mFolder.getRoot().toPath().resolve("output." + format);
+        BulkScorer.ProgressListener failing = (rowsScored, rowsPerSecond) -> {
+            if (rowsScored >= FAIL_AFTER_ROWS) {
+                mModel.deinit();
+            }
+        };
+        result = scorer(format, failing).score(input, output);
+        assertFalse(result.isComplete());
+        assertEquals(FAIL_AFTER_ROWS, result.getTotalRows());
+        assertTrue(Files.exists(BulkScorer.getCheckpointPath(output)));
+        // Rows written after the checkpoint by a run that then crashed are discarded on resume.
+        Files.write(output, "9,0.5\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        mModel.init();
+        result = scorer(format, null).resume(input, output);
+        assertTrue(result.isComplete());
+        assertEquals(NUM_ROWS, result.getTotalRows());
+        assertEquals(NUM_ROWS - FAIL_AFTER_ROWS, result.getRowsScored());
+        assertFalse(Files.exists(BulkScorer.getCheckpointPath(output)));
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(output));
+    }
+
+    private BulkScorer scorer(BulkScorer.Format format, BulkScorer.ProgressListener listener) {
+        return new BulkScorer.Builder(mModel, NUM_FEATURES)
+                .setInputFormat(format)
+                .setOutputFormat(format)
+                .setCsvHeader(format == BulkScorer.Format.CSV)
+                .setBatchSize(BATCH_SIZE)
+                .setNumThreads(1)
+                .setMaxPendingBatches(1)
+                .setCheckpointInterval(2 * BATCH_SIZE)
+                .setProgressListener(listener)
+                .build();
+    }
+
+    private static float[] row(int index) {
+        return new float[]{4.3f + (index % 36) * 0.1f, 2f + index % 24 * 0.1f, 1f + index % 7 * 0.8f, 0.1f + index % 5 * 0.5f};
+    }
+}
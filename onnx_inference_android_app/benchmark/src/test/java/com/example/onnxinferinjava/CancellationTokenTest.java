@@ -0,0 +1,135 @@
+package com.example.onnxinferinjava;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link OnnxModel} calls honour their {@link CancellationToken}: expired tokens
+ * are refused up front, and running calls are stopped in ORT and fail quietly.
+ */
+public class CancellationTokenTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+    /** A chain this long over {@link #SLOW_ROWS} rows runs for about 3 s on a desktop CPU. */
+    private static final int SLOW_NODES = 2000;
+    private static final int SLOW_ROWS = 1_000_000;
+    /** Well under the uncancelled run time, so only a stopped run returns this quickly. */
+    private static final long STOPPED_WITHIN_MILLIS = 1500;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void expiredTokenIsRejectedBeforeBuildingTensors() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        XgbcOnnxModel model = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        model.setEngine(XgbcOnnxModel.Engine.ORT);
+        model.setMetrics(metrics);
+        model.init();
+        try {
+            float[] rows = {5.1f, 3.5f, 1.4f, 0.2f};
+            CancellationToken cancelled = CancellationToken.create();
+            cancelled.cancel();
+            CancellationToken pastDeadline = CancellationToken.withDeadline(System.nanoTime() - 1);
+            long liveTensors = MetricsRecorder.getLiveTensorCount();
+
+            assertNull(model.runInferenceOutputs(rows, 1, cancelled));
+            assertFalse(model.runInferenceInto(rows, 1, XgbcOnnxModel.LABEL_OUTPUT_NAME, new long[1], cancelled));
+            assertNull(model.runInferenceOutputs(rows, 1, pastDeadline));
+            // Neither the per-call input nor a pooled batch was created.
+            assertEquals(liveTensors, MetricsRecorder.getLiveTensorCount());
+
+            MetricsRecorder.Snapshot snapshot = metrics.snapshot(model.getLoadedModel().mModelKey);
+            assertEquals(0, snapshot.getCallCount());
+            assertEquals(Long.valueOf(2), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_CANCELLED));
+            assertEquals(Long.valueOf(1), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_DEADLINE_EXCEEDED));
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void cancelStopsARunningCall() throws Exception {
+        MetricsRecorder metrics = new MetricsRecorder();
+        OnnxModel model = slowModel(metrics);
+        try {
+            CancellationToken token = CancellationToken.create();
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                token.cancel();
+            });
+            long liveTensors = MetricsRecorder.getLiveTensorCount();
+            long start = System.nanoTime();
+            canceller.start();
+            assertNull(model.runInferenceOutputs(new float[SLOW_ROWS * 4], SLOW_ROWS, token));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(STOPPED_WITHIN_MILLIS));
+            canceller.join();
+            assertEquals(liveTensors, MetricsRecorder.getLiveTensorCount());
+
+            MetricsRecorder.Snapshot snapshot = metrics.snapshot(model.getLoadedModel().mModelKey);
+            assertEquals(Long.valueOf(1), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_CANCELLED));
+            // The failed run is reported as the cancellation only, not also as an ORT error.
+            assertEquals(1, snapshot.getErrorCounts().size());
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void deadlineStopsARunningCall() throws Exception {
+        MetricsRecorder metrics = new MetricsRecorder();
+        OnnxModel model = slowModel(metrics);
+        try {
+            long start = System.nanoTime();
+            assertNull(model.runInferenceOutputs(new float[SLOW_ROWS * 4], SLOW_ROWS,
+                    CancellationToken.withTimeout(200, TimeUnit.MILLISECONDS)));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(STOPPED_WITHIN_MILLIS));
+
+            MetricsRecorder.Snapshot snapshot = metrics.snapshot(model.getLoadedModel().mModelKey);
+            assertEquals(Long.valueOf(1), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_DEADLINE_EXCEEDED));
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void finishedRunsLeaveNoTimerBehind() {
+        XgbcOnnxModel model = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        model.setEngine(XgbcOnnxModel.Engine.ORT);
+        model.init();
+        try {
+            float[] rows = {5.1f, 3.5f, 1.4f, 0.2f};
+            int pendingTimers = CancellationToken.getPendingTimerCount();
+            for (int i = 0; i < 100; i++) {
+                CancellationToken token = CancellationToken.withTimeout(1, TimeUnit.HOURS);
+                assertNotNull(model.runInferenceOutputs(rows, 1, token));
+                assertTrue(model.runInferenceInto(rows, 1, XgbcOnnxModel.LABEL_OUTPUT_NAME, new long[1], token));
+            }
+            assertEquals(pendingTimers, CancellationToken.getPendingTimerCount());
+        } finally {
+            model.deinit();
+        }
+    }
+
+    private OnnxModel slowModel(MetricsRecorder metrics) throws IOException {
+        File file = mFolder.newFile("chain.onnx");
+        Files.write(file.toPath(), TestModels.chainModel(SLOW_NODES, 1.0001f));
+        OnnxModel model = new OnnxModel(new FileModelSource(file.getPath()));
+        model.setMetrics(metrics);
+        model.init();
+        assertTrue(model.isInitialized());
+        return model;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.onnxinferinjava;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives an {@link InferenceScheduler} over the iris model. Each test first parks the worker
+ * in its {@link InferenceScheduler.BatchListener}, so the queue fills up deterministically.
+ */
+public class InferenceSchedulerTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+    private static final int NUM_FEATURES = 4;
+    private static final long WAIT_SECONDS = 5;
+
+    private XgbcOnnxModel mModel;
+    private Gate mGate;
+
+    @Before
+    public void setUp() {
+        mModel = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        mModel.setEngine(XgbcOnnxModel.Engine.ORT);
+        mModel.init();
+        assertTrue(mModel.isInitialized());
+        mGate = new Gate();
+    }
+
+    @After
+    public void tearDown() {
+        mGate.open();
+        mModel.deinit();
+    }
+
+    @Test
+    public void batchesQueuedRowsAndSplitsTheResults() throws Exception {
+        try (InferenceScheduler scheduler = builder().setMaxBatchSize(8).setMaxWait(1, TimeUnit.SECONDS).build()) {
+            park(scheduler);
+            List<CompletableFuture<Long>> labels = new ArrayList<>();
+            List<CompletableFuture<float[]>> probabilities = new ArrayList<>();
+            for (int i = 1; i <= 8; i++) {
+                if (i % 2 == 0) {
+                    labels.add(scheduler.submitLabel(row(i)));
+                } else {
+                    probabilities.add(scheduler.submitProbabilities(row(i)));
+                }
+            }
+            mGate.open();
+
+            for (int i = 0; i < 4; i++) {
+                long expected = mModel.runInferenceGetLabels(row(2 * i + 2), 1)[0];
+                assertEquals(expected, (long) labels.get(i).get(WAIT_SECONDS, TimeUnit.SECONDS));
+                float[] expectedProbabilities = mModel.runInferenceGetProbabilities(row(2 * i + 1), 1)[0];
+                assertArrayEquals(expectedProbabilities, probabilities.get(i).get(WAIT_SECONDS, TimeUnit.SECONDS), 1e-6f);
+            }
+            // Joins the worker, which reports a batch only after completing its futures.
+            scheduler.close();
+            // The parked row ran alone; the eight queued behind it were merged into one batch.
+            assertEquals(Arrays.asList(1, 8), mGate.getBatchSizes());
+            assertEquals(2, scheduler.getBatchCount());
+            assertEquals(9, scheduler.getRowCount());
+            assertEquals(0, scheduler.getFailedBatchCount());
+        }
+    }
+
+    @Test
+    public void rejectsRequestsWhenTheQueueIsFull() throws Exception {
+        try (InferenceScheduler scheduler = builder().setQueueCapacity(2).build()) {
+            park(scheduler);
+            CompletableFuture<Long> first = scheduler.submitLabel(row(1));
+            CompletableFuture<Long> second = scheduler.submitLabel(row(2));
+            assertTrue(failure(scheduler.submitLabel(row(3))) instanceof RejectedExecutionException);
+            assertEquals(1, scheduler.getRejectedCount());
+
+            mGate.open();
+            assertNotNull(first.get(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertNotNull(second.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void blockedSubmitGivesUpAtItsDeadline() throws Exception {
+        try (InferenceScheduler scheduler = builder()
+                .setQueueCapacity(1)
+                .setOverflowPolicy(InferenceScheduler.OverflowPolicy.BLOCK)
+                .build()) {
+            park(scheduler);
+            CompletableFuture<Long> queued = scheduler.submitLabel(row(1));
+
+            long start = System.nanoTime();
+            CompletableFuture<Long> blocked = scheduler.submitLabel(row(2),
+                    CancellationToken.withTimeout(50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+            assertTrue(failure(blocked) instanceof TimeoutException);
+            assertEquals(1, scheduler.getExpiredCount());
+            assertEquals(0, scheduler.getRejectedCount());
+
+            mGate.open();
+            assertNotNull(queued.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void shedsRequestsThatExpireWhileQueued() throws Exception {
+        try (InferenceScheduler scheduler = builder().build()) {
+            CancellationToken expired = CancellationToken.create();
+            expired.cancel();
+            assertTrue(failure(scheduler.submitLabel(row(0), expired)) instanceof CancellationException);
+
+            park(scheduler);
+            CancellationToken cancelled = CancellationToken.create();
+            CompletableFuture<Long> timedOut = scheduler.submitLabel(row(1),
+                    CancellationToken.withTimeout(20, TimeUnit.MILLISECONDS));
+            CompletableFuture<float[]> dropped = scheduler.submitProbabilities(row(2), cancelled);
+            CompletableFuture<Long> live = scheduler.submitLabel(row(3));
+            cancelled.cancel();
+            Thread.sleep(50);
+            mGate.open();
+
+            assertTrue(failure(timedOut) instanceof TimeoutException);
+            assertTrue(failure(dropped) instanceof CancellationException);
+            assertEquals(mModel.runInferenceGetLabels(row(3), 1)[0], (long) live.get(WAIT_SECONDS, TimeUnit.SECONDS));
+            scheduler.close();
+            assertEquals(3, scheduler.getExpiredCount());
+            // Only the live row reached the model after the parked one.
+            assertEquals(Arrays.asList(1, 1), mGate.getBatchSizes());
+        }
+    }
+
+    @Test
+    public void closeFailsQueuedAndLaterRequests() throws Exception {
+        InferenceScheduler scheduler = builder().build();
+        park(scheduler);
+        CompletableFuture<Long> queued = scheduler.submitLabel(row(1));
+        // Interrupts the parked worker, which then stops without running the queued row.
+        scheduler.close();
+
+        assertTrue(failure(queued) instanceof IllegalStateException);
+        assertTrue(failure(scheduler.submitLabel(row(2))) instanceof IllegalStateException);
+        assertTrue(failure(scheduler.submitProbabilities(row(3))) instanceof IllegalStateException);
+        assertEquals(1, scheduler.getBatchCount());
+    }
+
+    private InferenceScheduler.Builder builder() {
+        return new InferenceScheduler.Builder(mModel, NUM_FEATURES).setBatchListener(mGate);
+    }
+
+    /** Runs one row and leaves the worker blocked in the listener until the gate opens. */
+    private void park(InferenceScheduler scheduler) throws InterruptedException {
+        scheduler.submitLabel(row(0));
+        assertTrue(mGate.awaitEntered());
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    /** Returns the exception a request failed with, failing the test if it succeeded. */
+    private static Throwable failure(CompletableFuture<?> future) throws InterruptedException, TimeoutException {
+        try {
+            future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        }
+        throw new AssertionError("Expected the request to fail");
+    }
+
+    private static float[] row(int index) {
+        return new float[]{4.3f + index * 0.3f, 2f + index % 4 * 0.4f, 1f + index * 0.7f, 0.1f + index % 5 * 0.5f};
+    }
+
+    /** Records batch sizes and holds the worker in its first batch until opened. */
+    private static final class Gate implements InferenceScheduler.BatchListener {
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+        private final List<Integer> mBatchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onBatch(int batchSize, long maxQueueWaitNanos, long runNanos, boolean success) {
+            mBatchSizes.add(batchSize);
+            mEntered.countDown();
+            try {
+                mOpen.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        boolean awaitEntered() throws InterruptedException {
+            return mEntered.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        void open() {
+            mOpen.countDown();
+        }
+
+        List<Integer> getBatchSizes() {
+            synchronized (mBatchSizes) {
+                return new ArrayList<>(mBatchSizes);
+            }
+        }
+    }
+}
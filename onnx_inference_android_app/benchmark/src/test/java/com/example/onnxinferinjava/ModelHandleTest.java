@@ -0,0 +1,77 @@
+package com.example.onnxinferinjava;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deploys versions of {@link TestModels#scaleModel(float)} through a {@link ModelHandle}.
+ */
+public class ModelHandleTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void redeployingReplacedFileLoadsNewContent() throws IOException {
+        File file = mFolder.newFile("scale.onnx");
+        Files.write(file.toPath(), TestModels.scaleModel(1f));
+        FileTime modified = Files.getLastModifiedTime(file.toPath());
+        float[] rows = {1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f};
+
+        OnnxModel model = new OnnxModel(new FileModelSource(file.getPath()));
+        model.init();
+        try (ModelHandle handle = new ModelHandle.Builder(model).setInitialVersion("v1").build()) {
+            assertArrayEquals(rows, model.runInferenceOutputs(rows, 2).getFloats("output"), 0f);
+
+            // Same size and modification time: only the version name tells the two apart.
+            Files.write(file.toPath(), TestModels.scaleModel(2f));
+            Files.setLastModifiedTime(file.toPath(), modified);
+            assertTrue(handle.deploy("v2", new FileModelSource(file.getPath())));
+            assertEquals("v2", handle.getActiveVersion());
+            float[] doubled = new float[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                doubled[i] = rows[i] * 2;
+            }
+            assertArrayEquals(doubled, model.runInferenceOutputs(rows, 2).getFloats("output"), 0f);
+            assertEquals(new FileModelSource(file.getPath()).getKey() + "@v2", model.getLoadedModel().mModelKey);
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void errorsAreKeyedOnTheActiveVersion() throws IOException {
+        File file = mFolder.newFile("scale.onnx");
+        Files.write(file.toPath(), TestModels.scaleModel(1f));
+        MetricsRecorder metrics = new MetricsRecorder();
+        OnnxModel model = new OnnxModel(new FileModelSource(file.getPath()));
+        model.setMetrics(metrics);
+        model.init();
+        try (ModelHandle handle = new ModelHandle.Builder(model).setInitialVersion("v1").build()) {
+            Files.write(file.toPath(), TestModels.scaleModel(2f));
+            assertTrue(handle.deploy("v2", new FileModelSource(file.getPath())));
+            float[] rows = {1f, 2f, 3f, 4f};
+            assertNotNull(model.runInferenceOutputs(rows, 1));
+            assertNull(model.runInferenceOutputs(rows, 3));
+            CancellationToken cancelled = CancellationToken.create();
+            cancelled.cancel();
+            assertNull(model.runInferenceOutputs(rows, 1, cancelled));
+            assertFalse(model.runInferenceInto(rows, 2, "output", new float[4]));
+
+            MetricsRecorder.Snapshot snapshot = metrics.snapshot(new FileModelSource(file.getPath()).getKey() + "@v2");
+            assertEquals(1, snapshot.getCallCount());
+            assertEquals(Long.valueOf(2), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_INVALID_ARGUMENT));
+            assertEquals(Long.valueOf(1), snapshot.getErrorCounts().get(InferenceMetrics.ERROR_CANCELLED));
+        } finally {
+            model.deinit();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.onnxinferinjava;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes predictions through a {@link PredictionAuditLog} and reads them back with
+ * {@link PredictionAuditReader}.
+ */
+public class PredictionAuditLogTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void concurrentRecordsAreWrittenInSequenceAcrossSegments() throws Exception {
+        File directory = mFolder.newFolder();
+        int numThreads = 4;
+        int perThread = 5000;
+        // A small ring makes the producers wait for the writer; small segments make it rotate.
+        PredictionAuditLog auditLog = new PredictionAuditLog.Builder(directory, 2, 1)
+                .setCapacity(64)
+                .setOverflowPolicy(PredictionAuditLog.OverflowPolicy.BLOCK)
+                .setSegmentSize(PredictionAuditLog.HEADER_SIZE + 1000L * PredictionAuditLog.recordSize(2, 1))
+                .build();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    auditLog.record("model-" + thread, new float[]{thread, i}, 1, new long[]{i},
+                            new float[]{thread * 0.5f}, null, 7);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        auditLog.close();
+        assertEquals(numThreads * perThread, auditLog.getWrittenCount());
+        assertEquals(0, auditLog.getDroppedCount());
+
+        PredictionAuditReader reader = new PredictionAuditReader(directory);
+        assertEquals(numThreads * perThread / 1000, reader.getSegments().size());
+        List<PredictionAuditReader.Record> records = new ArrayList<>();
+        reader.readAll(records::add);
+        assertEquals(numThreads * perThread, records.size());
+        int[] nextPerThread = new int[numThreads];
+        for (int i = 0; i < records.size(); i++) {
+            PredictionAuditReader.Record record = records.get(i);
+            assertEquals(i, record.getSequence());
+            int thread = (int) record.getFeatures()[0];
+            assertEquals("model-" + thread, record.getModelKey());
+            assertEquals(nextPerThread[thread], (int) record.getFeatures()[1]);
+            assertEquals(nextPerThread[thread], record.getLabel());
+            assertEquals(thread * 0.5f, record.getScores()[0], 0f);
+            assertEquals(7, record.getLatencyNanos());
+            nextPerThread[thread]++;
+        }
+    }
+
+    @Test
+    public void droppedRecordsAreCountedAndOldSegmentsDeleted() throws Exception {
+        File directory = mFolder.newFolder();
+        PredictionAuditLog auditLog = new PredictionAuditLog.Builder(directory, 1, 0)
+                .setCapacity(2)
+                .setSegmentSize(PredictionAuditLog.HEADER_SIZE + 10L * PredictionAuditLog.recordSize(1, 0))
+                .setMaxSegments(2)
+                .build();
+        int total = 10000;
+        for (int i = 0; i < total; i++) {
+            auditLog.record("model", new float[]{i}, 1, (long[]) null, null, null, 0);
+        }
+        auditLog.close();
+        assertEquals(total, auditLog.getWrittenCount() + auditLog.getDroppedCount());
+
+        PredictionAuditReader reader = new PredictionAuditReader(directory);
+        assertTrue(reader.getSegments().size() <= 2);
+        long[] lastSequence = {-1};
+        reader.readAll(record -> {
+            assertTrue(record.getSequence() > lastSequence[0]);
+            assertEquals(PredictionAuditLog.NO_LABEL, record.getLabel());
+            lastSequence[0] = record.getSequence();
+        });
+        assertEquals(auditLog.getDroppedCount(), reader.getDroppedCount());
+    }
+
+    @Test
+    public void recordsModelPredictions() throws IOException {
+        File directory = mFolder.newFolder();
+        float[] rows = {
+                5.7f, 3.8f, 1.7f, 0.3f,
+                6.1f, 2.8f, 4.7f, 1.2f,
+                7.7f, 2.6f, 6.9f, 2.3f,
+        };
+        FileModelSource source = new FileModelSource(ONNX_MODEL);
+        XgbcOnnxModel model = new XgbcOnnxModel(source);
+        model.setEngine(XgbcOnnxModel.Engine.ORT);
+        model.init();
+        long[] labels = new long[3];
+        float[][] probabilities;
+        try (PredictionAuditLog auditLog = new PredictionAuditLog.Builder(directory, 4, 3).build()) {
+            model.setAuditLog(auditLog);
+            probabilities = model.runInferenceGetLabelsAndProbabilities(rows, 3, labels);
+            assertTrue(model.runInferenceGetLabels(rows, 3, new long[3]));
+        } finally {
+            model.deinit();
+        }
+        assertNotNull(probabilities);
+
+        List<PredictionAuditReader.Record> records = new ArrayList<>();
+        new PredictionAuditReader(directory).readAll(records::add);
+        assertEquals(6, records.size());
+        for (int i = 0; i < 6; i++) {
+            PredictionAuditReader.Record record = records.get(i);
+            int row = i % 3;
+            assertEquals(source.getKey(), record.getModelKey());
+            assertEquals(3, record.getBatchSize());
+            assertEquals(labels[row], record.getLabel());
+            for (int j = 0; j < 4; j++) {
+                assertEquals(rows[row * 4 + j], record.getFeatures()[j], 0f);
+            }
+            for (int j = 0; j < 3; j++) {
+                if (i < 3) {
+                    assertEquals(probabilities[row][j], record.getScores()[j], 0f);
+                } else {
+                    assertTrue(Float.isNaN(record.getScores()[j]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void recordsVersionNames() throws IOException {
+        File directory = mFolder.newFolder();
+        File file = mFolder.newFile("scale.onnx");
+        Files.write(file.toPath(), TestModels.scaleModel(1f));
+        float[] rows = {1f, 2f, 3f, 4f};
+        OnnxModel model = new OnnxModel(new FileModelSource(file.getPath()));
+        model.init();
+        try (PredictionAuditLog auditLog = new PredictionAuditLog.Builder(directory, 4, 0).build();
+             ModelHandle handle = new ModelHandle.Builder(model).setInitialVersion("v1").build()) {
+            model.setAuditLog(auditLog);
+            assertNotNull(model.runInferenceOutputs(rows, 1));
+            Files.write(file.toPath(), TestModels.scaleModel(2f));
+            assertTrue(handle.deploy("v2", new FileModelSource(file.getPath())));
+            assertNotNull(model.runInferenceOutputs(rows, 1));
+        } finally {
+            model.deinit();
+        }
+
+        List<PredictionAuditReader.Record> records = new ArrayList<>();
+        new PredictionAuditReader(directory).readAll(records::add);
+        assertEquals(2, records.size());
+        String key = new FileModelSource(file.getPath()).getKey();
+        assertEquals(key + "@v1", records.get(0).getModelKey());
+        assertEquals(key + "@v2", records.get(1).getModelKey());
+    }
+
+    @Test
+    public void recordsCacheHits() throws IOException {
+        File directory = mFolder.newFolder();
+        float[] rows = {
+                5.7f, 3.8f, 1.7f, 0.3f,
+                6.1f, 2.8f, 4.7f, 1.2f,
+        };
+        FileModelSource source = new FileModelSource(ONNX_MODEL);
+        XgbcOnnxModel model = new XgbcOnnxModel(source);
+        model.init();
+        PredictionCache cache = new PredictionCache.Builder(model, 4).build();
+        long[] labels;
+        try (PredictionAuditLog auditLog = new PredictionAuditLog.Builder(directory, 4, 3).build()) {
+            model.setAuditLog(auditLog);
+            assertNotNull(cache.getLabels(Arrays.copyOf(rows, 4), 1));
+            labels = cache.getLabels(rows, 2);
+            assertNotNull(labels);
+        } finally {
+            model.deinit();
+        }
+
+        // The first row misses, then hits; the second row misses.
+        List<PredictionAuditReader.Record> records = new ArrayList<>();
+        new PredictionAuditReader(directory).readAll(records::add);
+        assertEquals(3, records.size());
+        assertEquals(source.getKey(), records.get(0).getModelKey());
+        assertEquals(source.getKey() + PredictionCache.CACHE_KEY_SUFFIX, records.get(1).getModelKey());
+        assertEquals(labels[0], records.get(1).getLabel());
+        assertArrayEquals(Arrays.copyOf(rows, 4), records.get(1).getFeatures(), 0f);
+        assertEquals(source.getKey(), records.get(2).getModelKey());
+        assertEquals(labels[1], records.get(2).getLabel());
+    }
+}
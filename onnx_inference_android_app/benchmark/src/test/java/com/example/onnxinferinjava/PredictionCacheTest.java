@@ -0,0 +1,151 @@
+package com.example.onnxinferinjava;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PredictionCache} lookups, eviction and invalidation against the iris model.
+ */
+public class PredictionCacheTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+    private static final int NUM_FEATURES = 4;
+
+    private XgbcOnnxModel mModel;
+
+    @Before
+    public void setUp() {
+        mModel = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        mModel.init();
+        assertTrue(mModel.isInitialized());
+    }
+
+    @After
+    public void tearDown() {
+        mModel.deinit();
+    }
+
+    @Test
+    public void hitsServeWhatTheModelPredicted() {
+        PredictionCache cache = new PredictionCache.Builder(mModel, NUM_FEATURES).build();
+        float[] rows = rows(0, 3);
+
+        long[] labels = cache.getLabels(rows, 3);
+        assertArrayEquals(mModel.runInferenceGetLabels(rows, 3), labels);
+        assertStats(cache, 3, 0, 3);
+
+        // Two cached rows and a new one: only the new row goes to the model.
+        float[] mixed = concat(row(1), row(3), row(0));
+        assertArrayEquals(mModel.runInferenceGetLabels(mixed, 3), cache.getLabels(mixed, 3));
+        assertStats(cache, 4, 2, 4);
+
+        // Labels and probabilities are cached separately.
+        float[][] probabilities = cache.getProbabilities(rows, 3);
+        assertArrayEquals(mModel.runInferenceGetProbabilities(rows, 3), probabilities);
+        assertStats(cache, 4, 2, 7);
+        probabilities[0][0] = -1;
+        assertArrayEquals(mModel.runInferenceGetProbabilities(rows, 3), cache.getProbabilities(rows, 3));
+        assertStats(cache, 4, 5, 7);
+    }
+
+    @Test
+    public void quantizedRowsShareAnEntry() {
+        PredictionCache cache = new PredictionCache.Builder(mModel, NUM_FEATURES).setQuantizationStep(0.5f).build();
+        float[] row = {5.1f, 3.4f, 1.4f, 0.2f};
+        float[] nearby = {4.9f, 3.6f, 1.6f, 0.1f};
+        float[] rounded = {5f, 3.5f, 1.5f, 0f};
+
+        assertEquals(mModel.runInferenceGetLabels(rounded, 1)[0], (long) cache.getLabel(row));
+        assertEquals(mModel.runInferenceGetLabels(rounded, 1)[0], (long) cache.getLabel(nearby));
+        assertStats(cache, 1, 1, 1);
+    }
+
+    @Test
+    public void evictsRowsNotHitSinceTheLastSweep() {
+        PredictionCache cache = new PredictionCache.Builder(mModel, NUM_FEATURES).setCapacity(4).build();
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(cache.getLabel(row(i)));
+        }
+        assertNotNull(cache.getLabel(row(0)));
+        assertStats(cache, 4, 1, 4);
+
+        // Row 0 was hit, so the hand passes it and evicts row 1.
+        assertNotNull(cache.getLabel(row(4)));
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertNotNull(cache.getLabels(concat(row(0), row(2), row(3), row(4)), 4));
+        assertStats(cache, 4, 5, 5);
+        assertNotNull(cache.getLabel(row(1)));
+        assertStats(cache, 4, 5, 6);
+    }
+
+    @Test
+    public void evictionKeepsEveryRemainingRowReachable() {
+        int capacity = 8;
+        int numRows = 500;
+        PredictionCache cache = new PredictionCache.Builder(mModel, NUM_FEATURES).setCapacity(capacity).build();
+        float[] rows = rows(0, numRows);
+        long[] expected = mModel.runInferenceGetLabels(rows, numRows);
+        // Rows are never hit, so the cache keeps the last ones inserted and evicts in order,
+        // removing entries from the middle of probe runs of the small index.
+        for (int i = 0; i < numRows; i++) {
+            assertEquals(expected[i], (long) cache.getLabel(row(i)));
+        }
+        assertEquals(numRows - capacity, cache.getStats().getEvictionCount());
+        assertStats(cache, capacity, 0, numRows);
+
+        float[] resident = rows(numRows - capacity, capacity);
+        assertArrayEquals(Arrays.copyOfRange(expected, numRows - capacity, numRows), cache.getLabels(resident, capacity));
+        assertStats(cache, capacity, capacity, numRows);
+        assertEquals(expected[0], (long) cache.getLabel(row(0)));
+        assertStats(cache, capacity, capacity, numRows + 1);
+    }
+
+    @Test
+    public void deployClearsTheCache() {
+        PredictionCache cache = new PredictionCache.Builder(mModel, NUM_FEATURES).build();
+        float[] rows = rows(0, 3);
+        assertNotNull(cache.getLabels(rows, 3));
+        assertNotNull(cache.getLabels(rows, 3));
+        assertStats(cache, 3, 3, 3);
+
+        try (ModelHandle handle = new ModelHandle.Builder(mModel).build()) {
+            assertTrue(handle.deploy("v2", new FileModelSource(ONNX_MODEL)));
+            assertArrayEquals(mModel.runInferenceGetLabels(rows, 3), cache.getLabels(rows, 3));
+            assertStats(cache, 3, 3, 6);
+            assertEquals(1, cache.getStats().getInvalidationCount());
+        }
+    }
+
+    private static void assertStats(PredictionCache cache, int size, long hits, long misses) {
+        PredictionCache.Stats stats = cache.getStats();
+        assertEquals(stats.toString(), size, stats.getSize());
+        assertEquals(stats.toString(), hits, stats.getHitCount());
+        assertEquals(stats.toString(), misses, stats.getMissCount());
+    }
+
+    /** Returns a distinct iris-like row for every index. */
+    private static float[] row(int index) {
+        return new float[]{4.3f + (index % 36) * 0.1f, 2f + (index / 36 % 24) * 0.1f, 1f + index % 7 * 0.8f, 0.1f + index % 5 * 0.5f};
+    }
+
+    private static float[] rows(int first, int numRows) {
+        float[] rows = new float[numRows * NUM_FEATURES];
+        for (int i = 0; i < numRows; i++) {
+            System.arraycopy(row(first + i), 0, rows, i * NUM_FEATURES, NUM_FEATURES);
+        }
+        return rows;
+    }
+
+    private static float[] concat(float[]... rows) {
+        float[] result = new float[rows.length * NUM_FEATURES];
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(rows[i], 0, result, i * NUM_FEATURES, NUM_FEATURES);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.onnxinferinjava;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand-encoded ONNX models with a {@code [N, 4]} float input named "input" and a float output
+ * named "output", for tests that need a model other than iris.
+ */
+final class TestModels {
+
+    private static final int NUM_FEATURES = 4;
+
+    private TestModels() {
+    }
+
+    /** Encodes a model computing {@code output = input * w}. */
+    static byte[] scaleModel(float w) {
+        return scaleModel(w, null);
+    }
+
+    /**
+     * Like {@link #scaleModel(float)}, but declares the output as {@code [N, outputSymbol]}
+     * when {@code outputSymbol} is not null, so its second dimension is dynamic.
+     */
+    static byte[] scaleModel(float w, String outputSymbol) {
+        return model(mul("input", "output"), w, outputSymbol);
+    }
+
+    /**
+     * Encodes a model multiplying the input by {@code w} in {@code numNodes} successive nodes.
+     * ORT checks for termination between nodes, so a long chain over a large batch makes a run
+     * that can be stopped partway.
+     */
+    static byte[] chainModel(int numNodes, float w) {
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        for (int i = 0; i < numNodes; i++) {
+            byte[] node = mul(i == 0 ? "input" : "x" + i, i == numNodes - 1 ? "output" : "x" + (i + 1));
+            nodes.write(node, 0, node.length);
+        }
+        return model(nodes.toByteArray(), w, null);
+    }
+
+    private static byte[] mul(String input, String output) {
+        return message(1, concat(string(1, input), string(1, "w"), string(2, output), string(4, "Mul")));
+    }
+
+    private static byte[] model(byte[] nodes, float w, String outputSymbol) {
+        byte[] weight = ByteBuffer.allocate(Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).putFloat(w).array();
+        byte[] graph = concat(
+                nodes,
+                string(2, "test"),
+                message(5, concat(varint(2, 1), string(8, "w"), message(9, weight))),
+                message(11, valueInfo("input", null)),
+                message(12, valueInfo("output", outputSymbol)));
+        return concat(varint(1, 8), message(8, concat(string(1, ""), varint(2, 13))), message(7, graph));
+    }
+
+    private static byte[] valueInfo(String name, String featureSymbol) {
+        byte[] features = featureSymbol != null ? string(2, featureSymbol) : varint(1, NUM_FEATURES);
+        byte[] shape = concat(message(1, string(2, "N")), message(1, features));
+        return concat(string(1, name), message(2, message(1, concat(varint(1, 1), message(2, shape)))));
+    }
+
+    private static byte[] varint(int field, long value) {
+        return concat(rawVarint((long) field << 3), rawVarint(value));
+    }
+
+    private static byte[] string(int field, String value) {
+        return message(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] message(int field, byte[] value) {
+        return concat(rawVarint((long) field << 3 | 2), rawVarint(value.length), value);
+    }
+
+    private static byte[] rawVarint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
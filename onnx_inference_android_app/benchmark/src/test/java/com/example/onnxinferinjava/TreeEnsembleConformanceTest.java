@@ -0,0 +1,124 @@
+package com.example.onnxinferinjava;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link TreeEnsembleModel} returns exactly what ORT returns for the iris model:
+ * the same labels and bit-identical probabilities.
+ */
+public class TreeEnsembleConformanceTest {
+
+    private static final String ONNX_MODEL = System.getProperty("test.onnxModel", "../xgboost_train/xgbc_iris.onnx");
+    private static final String ORT_MODEL = System.getProperty("test.ortModel", "app/src/main/assets/models/xgbc_iris.ort");
+    private static final int NUM_FEATURES = 4;
+
+    private static XgbcOnnxModel sOrt;
+    private static TreeEnsembleModel sTreeEnsemble;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        sOrt = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        sOrt.setEngine(XgbcOnnxModel.Engine.ORT);
+        sOrt.init();
+        assertEquals(XgbcOnnxModel.Engine.ORT, sOrt.getActiveEngine());
+        sTreeEnsemble = TreeEnsembleModel.parse(ByteBuffer.wrap(Files.readAllBytes(Paths.get(ONNX_MODEL))), NUM_FEATURES);
+        assertNotNull(sTreeEnsemble);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        sOrt.deinit();
+    }
+
+    @Test
+    public void parsesIrisEnsemble() {
+        assertEquals(3, sTreeEnsemble.getNumClasses());
+        assertEquals(6, sTreeEnsemble.getNumTrees());
+    }
+
+    @Test
+    public void rejectsOrtFormat() throws IOException {
+        assertNull(TreeEnsembleModel.parse(ByteBuffer.wrap(Files.readAllBytes(Paths.get(ORT_MODEL))), NUM_FEATURES));
+    }
+
+    @Test
+    public void matchesOrtOnIrisRows() {
+        assertConforms(new float[]{
+                5.7f, 3.8f, 1.7f, 0.3f,
+                6.1f, 2.8f, 4.7f, 1.2f,
+                7.7f, 2.6f, 6.9f, 2.3f,
+                5.1f, 3.5f, 1.4f, 0.2f,
+        }, 4);
+    }
+
+    @Test
+    public void matchesOrtOnSampledRows() {
+        int numRows = 50_000;
+        assertConforms(sTreeEnsemble.sampleRows(numRows, 7), numRows);
+    }
+
+    @Test
+    public void matchesOrtOnSpecialValues() {
+        float[] specials = {Float.NaN, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, -0f, 0f,
+                3f, Math.nextDown(3f), Math.nextUp(3f), 1.8f, 4.8f, 5f};
+        int numRows = specials.length * NUM_FEATURES;
+        float[] rows = sTreeEnsemble.sampleRows(numRows, 11);
+        for (int row = 0; row < numRows; row++) {
+            rows[row * NUM_FEATURES + row % NUM_FEATURES] = specials[row / NUM_FEATURES];
+        }
+        assertConforms(rows, numRows);
+    }
+
+    @Test
+    public void javaEngineServesModel() {
+        XgbcOnnxModel model = new XgbcOnnxModel(new FileModelSource(ONNX_MODEL));
+        model.setEngine(XgbcOnnxModel.Engine.JAVA);
+        model.init();
+        try {
+            assertEquals(XgbcOnnxModel.Engine.JAVA, model.getActiveEngine());
+            float[] rows = sTreeEnsemble.sampleRows(100, 3);
+            assertArrayEquals(sOrt.runInferenceGetLabels(rows, 100), model.runInferenceGetLabels(rows, 100));
+            long[] labels = new long[100];
+            assertTrue(model.runInferenceGetLabels(rows, 100, labels));
+            assertArrayEquals(sOrt.runInferenceGetLabels(rows, 100), labels);
+        } finally {
+            model.deinit();
+        }
+    }
+
+    @Test
+    public void ortFormatFallsBackToOrt() {
+        XgbcOnnxModel model = new XgbcOnnxModel(new FileModelSource(ORT_MODEL));
+        model.setEngine(XgbcOnnxModel.Engine.JAVA);
+        model.init();
+        try {
+            assertEquals(XgbcOnnxModel.Engine.ORT, model.getActiveEngine());
+        } finally {
+            model.deinit();
+        }
+    }
+
+    private static void assertConforms(float[] rows, int numRows) {
+        long[] ortLabels = sOrt.runInferenceGetLabels(rows, numRows);
+        float[][] ortProbabilities = sOrt.runInferenceGetProbabilities(rows, numRows);
+        long[] labels = sTreeEnsemble.predictLabels(rows, numRows);
+        float[][] probabilities = sTreeEnsemble.predictProbabilities(rows, numRows);
+
+        assertArrayEquals(ortLabels, labels);
+        for (int row = 0; row < numRows; row++) {
+            for (int c = 0; c < ortProbabilities[row].length; c++) {
+                assertEquals("row " + row + " class " + c,
+                        Float.floatToIntBits(ortProbabilities[row][c]), Float.floatToIntBits(probabilities[row][c]));
+            }
+        }
+    }
+}
@@ -62,7 +62,12 @@ def train_xgboost_model(X_train, y_train, n_estimators):
     return xgbc_model
 
 
-def convert_xgboost_to_onnx(model_xgboost):
+def convert_xgboost_to_onnx(model_xgboost, zipmap=True):
+    """Convert to ONNX.
+
+    With zipmap=False, output_probability is a float tensor [N, n_classes] instead of a
+    sequence of {label: probability} maps, which is much cheaper to materialize at inference.
+    """
     pipe = Pipeline([("xgb", model_xgboost)])
 
     update_registered_converter(
@@ -78,6 +83,7 @@ def convert_xgboost_to_onnx(model_xgboost):
         "pipeline_xgboost",
         [("input", FloatTensorType([None, 4]))],
         target_opset={"": 12, "ai.onnx.ml": 4},
+        options=None if zipmap else {id(model_xgboost): {"zipmap": False}},
     )
 
     return model_onnx
@@ -102,7 +108,7 @@ def main(args):
     assert model_xgboost
     save_xgboost_model_to_file(model_xgboost, args.output_xgboost)
 
-    model_onnx = convert_xgboost_to_onnx(model_xgboost)
+    model_onnx = convert_xgboost_to_onnx(model_xgboost, zipmap=not args.no_zipmap)
     assert model_onnx
     save_onnx_model_to_file(model_onnx, args.output_onnx)
 
@@ -110,7 +116,11 @@ def main(args):
     y_pred_xgboost = model_xgboost.predict(X_test)
     # make predictions for
     sess = onnxruntime.InferenceSession(args.output_onnx)
-    y_pred_onnx = sess.run(None, {"input": X_test.astype(numpy.float32)})[0]
+    y_pred_onnx, y_proba_onnx = sess.run(None, {"input": X_test.astype(numpy.float32)})
+    if args.no_zipmap and not numpy.allclose(
+        y_proba_onnx, model_xgboost.predict_proba(X_test), atol=1e-5
+    ):
+        logging.error("Error: onnx probabilities differ from xgboost\n")
 
     logging.info(f"Test Inputs:\n{X_test[:]}\n")
     logging.info(f"Test Outputs:\n{y_test[:]}\n")
@@ -137,6 +147,12 @@ if __name__ == "__main__":
         default="xgbc_iris.onnx",
         type=str,
     )
+    parser.add_argument(
+        "--no_zipmap",
+        action="store_true",
+        help="emit output_probability as a float tensor instead of a ZipMap "
+        "(e.g. --no_zipmap --output_onnx xgbc_iris_nozipmap.onnx)",
+    )
 
     try:
         args = parser.parse_args()